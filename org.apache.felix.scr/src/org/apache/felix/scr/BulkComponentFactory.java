@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr;
+
+
+import java.util.Dictionary;
+
+import org.osgi.service.component.ComponentFactory;
+import org.osgi.service.component.ComponentInstance;
+
+
+/**
+ * The <code>BulkComponentFactory</code> extends the
+ * <code>ComponentFactory</code> to create many component instances at once.
+ * Component factories of the Apache Felix Declarative Services implementation
+ * are registered as services under both the <code>ComponentFactory</code> and
+ * this interface name. Consumers may thus reference this interface directly
+ * or check whether a <code>ComponentFactory</code> implements it.
+ */
+public interface BulkComponentFactory extends ComponentFactory
+{
+
+    /**
+     * Creates a component instance for each of the given instance properties
+     * as if calling <code>newInstance</code> for each entry. This is cheaper
+     * than calling <code>newInstance</code> repeatedly since the
+     * implementation class and the component methods are only looked up
+     * once.
+     * <p>
+     * If any of the instances fails to activate, all instances created by
+     * this call are disposed off and a <code>ComponentException</code> is
+     * thrown.
+     *
+     * @param dictionaries The instance properties of the component instances
+     *      to create. Entries may be <code>null</code>.
+     *
+     * @return The component instances in the order of the instance properties
+     *
+     * @throws org.osgi.service.component.ComponentException If any of the
+     *      instances cannot be activated
+     */
+    ComponentInstance[] newInstances( Dictionary[] dictionaries );
+}
@@ -132,6 +132,16 @@ public interface Component
      */
     static final int STATE_DISPOSED = 256;
 
+    /**
+     * The Component instance could not be created or activated repeatedly
+     * and activation is suspended for a back-off period (value is 4096).
+     * While in this state, service events do not cause the Component to be
+     * activated. After the back-off period has elapsed the Component enters
+     * the {@link #STATE_UNSATISFIED} state and activation is retried.
+     * @since 1.3
+     */
+    static final int STATE_FAILED_BACKOFF = 4096;
+
 
     /**
      * Returns the component ID of this component. This ID is managed by the
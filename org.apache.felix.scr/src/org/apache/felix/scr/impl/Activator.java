@@ -19,11 +19,20 @@
 package org.apache.felix.scr.impl;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.apache.felix.scr.impl.config.ComponentHolder;
 import org.apache.felix.scr.impl.config.ConfigurationComponentRegistry;
 import org.apache.felix.scr.impl.config.ScrConfiguration;
+import org.apache.felix.scr.impl.helper.FilterCache;
+import org.apache.felix.scr.impl.manager.IdleInstanceEvictor;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
@@ -54,8 +63,11 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
   // this bundle's context
   private static BundleContext  m_context;
 
-  // the log service to log messages to
-  private static ServiceTracker m_logService;
+  // the log service to log messages to, tracked for all bundles
+  private static LogServiceHolder m_logServiceHolder;
+
+  // this bundle's view onto the log service
+  private static LogServiceHolder.BundleLogger m_logger;
 
   // the package admin service (see BindMethod.getParameterClass)
   private static ServiceTracker m_packageAdmin;
@@ -69,10 +81,17 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
   // thread acting upon configurations
   private ComponentActorThread  m_componentActor;
 
+  // evicts idle instances of delayed and service factory components
+  private IdleInstanceEvictor   m_instanceEvictor;
+
   // whether to support two workarounds to run the OSGi R 4.2 CT
   // See hasCtWorkaround()
   private static boolean        m_ctWorkaround;
 
+  // whether SCR is being stopped with fast shutdown configured, only set
+  // while disposing of the components. See isShuttingDown()
+  private static volatile boolean m_shuttingDown;
+
   /**
    * Registers this instance as a (synchronous) bundle listener and loads the components of already registered bundles.
    * 
@@ -81,12 +100,14 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
    */
   public void start(BundleContext context) throws Exception {
     m_context = context;
+    m_shuttingDown = false;
     m_componentBundles = new HashMap();
     m_componentRegistry = createComponentRegistry(context);
 
-    // require the log service
-    m_logService = new ServiceTracker(context, LOGSERVICE_CLASS, null);
-    m_logService.open();
+    // track the log service once for all bundles
+    m_logServiceHolder = new LogServiceHolder(context);
+    m_logServiceHolder.open();
+    m_logger = m_logServiceHolder.getLogger(context);
 
     // get the configuration
     m_configuration = new ScrConfiguration(context);
@@ -101,6 +122,10 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
     // check whether we workaround OSGi CT issues
     m_ctWorkaround = ScrConfiguration.hasCtWorkaround(context);
 
+    // evict idle component instances as configured
+    m_instanceEvictor = new IdleInstanceEvictor(m_configuration);
+    m_configuration.setInstanceEvictor(m_instanceEvictor);
+
     // create and start the component actor
     m_componentActor = new ComponentActorThread();
     Thread t = new Thread(m_componentActor, "SCR Component Actor");
@@ -147,22 +172,46 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
     // unregister as bundle listener
     context.removeBundleListener(this);
 
+    // components are not needed any more if the framework stops
+    if (m_configuration.isFastShutdown()) {
+      m_shuttingDown = true;
+    }
+    if (isShuttingDown()) {
+      log(LogService.LOG_DEBUG, context.getBundle(), "Framework shutting down, disposing components fast", null);
+    }
+
     // 112.8.2 dispose off all active components
-    disposeAllComponents();
+    try {
+      disposeAllComponents();
+    } finally {
+      m_shuttingDown = false;
+    }
 
     // dispose component registry
     m_componentRegistry.dispose();
 
+    // stop evicting idle instances
+    if (m_instanceEvictor != null) {
+      m_configuration.setInstanceEvictor(null);
+      m_instanceEvictor.dispose();
+      m_instanceEvictor = null;
+    }
+
+    // forget the target filters of all components
+    FilterCache.clear();
+
     // terminate the actor thread
     if (m_componentActor != null) {
       m_componentActor.terminate();
       m_componentActor = null;
     }
 
-    // close the LogService tracker now
-    if (m_logService != null) {
-      m_logService.close();
-      m_logService = null;
+    // stop tracking the LogService now
+    if (m_logServiceHolder != null) {
+      m_logger.close();
+      m_logger = null;
+      m_logServiceHolder.close();
+      m_logServiceHolder = null;
     }
 
     // close the PackageAdmin tracker now
@@ -179,7 +228,8 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
 
   /**
    * Loads and unloads any components provided by the bundle whose state changed. If the bundle has been started, the
-   * components are loaded. If the bundle is about to stop, the components are unloaded.
+   * components are loaded. If the bundle is about to stop, the components are unloaded. If the bundle has been updated
+   * while its components are loaded, the components are updated from the declarations of the updated bundle.
    * 
    * @param event
    *          The <code>BundleEvent</code> representing the bundle state change.
@@ -191,12 +241,38 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
       // actually load it; STARTED event is sent if bundle has regular
       // activation policy or if the lazily activated bundle finally is
       // really started. In both cases just try to load the components
-      loadComponents(event.getBundle());
+      startLoadingComponents(event.getBundle());
     } else if (event.getType() == BundleEvent.STOPPING) {
       disposeComponents(event.getBundle());
     }
   }
 
+  /**
+   * Reads the component descriptors of the given bundle again and applies changed declarations to its components. If
+   * no components have been loaded for the bundle, this method has no effect.
+   * 
+   * @return <code>true</code> if the components of the bundle have been reloaded
+   * @see BundleComponentActivator#reloadComponents()
+   */
+  public boolean reloadComponents(Bundle bundle) {
+    final Object ga;
+    synchronized (m_componentBundles) {
+      ga = m_componentBundles.get(new Long(bundle.getBundleId()));
+    }
+
+    if (!(ga instanceof BundleComponentActivator)) {
+      return false;
+    }
+
+    try {
+      ((BundleComponentActivator) ga).reloadComponents();
+    } catch (Exception e) {
+      log(LogService.LOG_ERROR, m_context.getBundle(),
+          "Error while reloading components of bundle " + bundle.getSymbolicName() + "/" + bundle.getBundleId(), e);
+    }
+    return true;
+  }
+
   // ---------- Component Management -----------------------------------------
 
   // Loads the components of all bundles currently active.
@@ -205,7 +281,7 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
     for (int i = 0; i < bundles.length; i++) {
       Bundle bundle = bundles[i];
       if (ComponentRegistry.isBundleActive(bundle)) {
-        loadComponents(bundle);
+        startLoadingComponents(bundle);
       }
     }
   }
@@ -255,19 +331,83 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
       return;
     }
 
+    createBundleComponentActivator(bundle, context, bundleId);
+  }
+
+  /**
+   * Loads the components of the given bundle in the background if asynchronous loading is configured. Otherwise the
+   * components are loaded right away by calling {@link #loadComponents(Bundle)}. When loading in the background, the
+   * bundle is only marked as being loaded by registering a {@link ComponentLoader} which is then run by the component
+   * actor thread.
+   */
+  private void startLoadingComponents(Bundle bundle) {
+    final ComponentActorThread componentActor = m_componentActor;
+    if (!m_configuration.isAsyncLoading() || componentActor == null) {
+      loadComponents(bundle);
+      return;
+    }
+
+    final Long bundleId = new Long(bundle.getBundleId());
+    final ComponentLoader loader;
+    synchronized (m_componentBundles) {
+      if (m_componentBundles.containsKey(bundleId)) {
+        loader = null;
+      } else {
+        loader = new ComponentLoader(bundle);
+        m_componentBundles.put(bundleId, loader);
+      }
+    }
+
+    // terminate if already loaded (or currently being loaded)
+    if (loader == null) {
+      log(LogService.LOG_DEBUG, m_context.getBundle(), "Components for bundle  " + bundle.getSymbolicName() + "/"
+          + bundle.getBundleId() + " already loaded. Nothing to do.", null);
+      return;
+    }
+
+    if (!componentActor.schedule(loader)) {
+      // SCR is stopping, unmark the bundle
+      synchronized (m_componentBundles) {
+        if (m_componentBundles.get(bundleId) == loader) {
+          m_componentBundles.remove(bundleId);
+        }
+      }
+      loader.cancel();
+    }
+  }
+
+  /**
+   * Creates the <code>BundleComponentActivator</code> loading the components of the given bundle and registers it in
+   * place of the marker which marks the bundle as being loaded. If the marker has been removed in the meantime because
+   * the bundle is stopping, the components are not loaded or disposed off again right away.
+   */
+  private void createBundleComponentActivator(Bundle bundle, BundleContext context, Object marker) {
+    final Long bundleId = new Long(bundle.getBundleId());
     try {
       BundleComponentActivator ga = new BundleComponentActivator(m_componentRegistry, m_componentActor, context,
-          m_configuration);
+          m_configuration, m_instanceEvictor, m_logServiceHolder);
 
-      // replace bundle activator in the map
+      // replace bundle activator in the map unless the bundle is stopping
+      final boolean stopped;
       synchronized (m_componentBundles) {
-        m_componentBundles.put(bundleId, ga);
+        stopped = m_componentBundles.get(bundleId) != marker;
+        if (!stopped) {
+          m_componentBundles.put(bundleId, ga);
+        }
+      }
+
+      if (stopped) {
+        log(LogService.LOG_DEBUG, m_context.getBundle(), "Bundle " + bundle.getSymbolicName() + "/"
+            + bundle.getBundleId() + " stopped while loading its components, disposing them again", null);
+        ga.dispose(ComponentConstants.DEACTIVATION_REASON_BUNDLE_STOPPED);
       }
     } catch (Exception e) {
       // remove the bundle id from the bundles map to ensure it is
       // not marked as being loaded
       synchronized (m_componentBundles) {
-        m_componentBundles.remove(bundleId);
+        if (m_componentBundles.get(bundleId) == marker) {
+          m_componentBundles.remove(bundleId);
+        }
       }
 
       if (e instanceof IllegalStateException && bundle.getState() != Bundle.ACTIVE) {
@@ -296,6 +436,11 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
       ga = m_componentBundles.remove(new Long(bundle.getBundleId()));
     }
 
+    // the bundle is still being loaded in the background
+    if (ga instanceof ComponentLoader) {
+      ((ComponentLoader) ga).cancel();
+    }
+
     if (ga instanceof BundleComponentActivator) {
       try {
         ((BundleComponentActivator) ga).dispose(ComponentConstants.DEACTIVATION_REASON_BUNDLE_STOPPED);
@@ -306,7 +451,8 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
     }
   }
 
-  // Unloads all components registered with the SCR
+  // Unloads all components registered with the SCR, consumers before providers
+  // across all bundles and independent components in parallel
   private void disposeAllComponents() {
     final Object[] activators;
     synchronized (m_componentBundles) {
@@ -314,6 +460,17 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
       m_componentBundles.clear();
     }
 
+    final List holders = new ArrayList();
+    for (int i = 0; i < activators.length; i++) {
+      if (activators[i] instanceof ComponentLoader) {
+        ((ComponentLoader) activators[i]).cancel();
+      } else if (activators[i] instanceof BundleComponentActivator) {
+        holders.addAll(Arrays.asList(((BundleComponentActivator) activators[i]).removeComponentHolders()));
+      }
+    }
+    ComponentDisposer.dispose(m_componentActor, (ComponentHolder[]) holders.toArray(new ComponentHolder[holders
+        .size()]), ComponentConstants.DEACTIVATION_REASON_DISPOSED);
+
     for (int i = 0; i < activators.length; i++) {
       if (activators[i] instanceof BundleComponentActivator) {
         final BundleComponentActivator ga = (BundleComponentActivator) activators[i];
@@ -328,6 +485,102 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
     }
   }
 
+  /**
+   * The <code>ComponentLoader</code> loads the components of a bundle in the background. While the components are
+   * being loaded, the loader is registered in the <code>m_componentBundles</code> map to mark the bundle as being
+   * loaded.
+   */
+  private final class ComponentLoader implements Runnable {
+    private final Bundle     m_bundle;
+
+    private final FutureTask m_task;
+
+    ComponentLoader(final Bundle bundle) {
+      m_bundle = bundle;
+      m_task = new FutureTask(new Runnable() {
+        public void run() {
+          load();
+        }
+      }, null);
+    }
+
+    public void run() {
+      m_task.run();
+    }
+
+    private void load() {
+      // the bundle may have been stopped before loading started
+      synchronized (m_componentBundles) {
+        if (m_componentBundles.get(new Long(m_bundle.getBundleId())) != this) {
+          return;
+        }
+      }
+
+      BundleContext context = m_bundle.getBundleContext();
+      if (context == null) {
+        log(LogService.LOG_ERROR, m_context.getBundle(), "Cannot get BundleContext of bundle "
+            + m_bundle.getSymbolicName() + "/" + m_bundle.getBundleId(), null);
+        synchronized (m_componentBundles) {
+          if (m_componentBundles.get(new Long(m_bundle.getBundleId())) == this) {
+            m_componentBundles.remove(new Long(m_bundle.getBundleId()));
+          }
+        }
+        return;
+      }
+
+      createBundleComponentActivator(m_bundle, context, this);
+    }
+
+    /**
+     * Called after this loader has been removed from the map because the bundle is stopping. Prevents loading if it
+     * has not started yet. Otherwise waits for loading to complete, which disposes off the components again. Loading is
+     * not waited for if called by the component actor thread, which is the thread loading the components.
+     */
+    void cancel() {
+      final ComponentActorThread componentActor = m_componentActor;
+      if (m_task.cancel(false) || (componentActor != null && componentActor.isCurrentThread())) {
+        return;
+      }
+
+      try {
+        m_task.get();
+      } catch (InterruptedException ie) {
+        // don't care
+      } catch (ExecutionException ee) {
+        // problems have already been logged
+      } catch (CancellationException ce) {
+        // cancelled concurrently
+      }
+    }
+
+    /**
+     * Loads the components in the calling thread unless loading has already started and waits for loading to
+     * complete. Loading is not waited for if called by the component actor thread while it is loading the components.
+     */
+    void await() {
+      m_task.run();
+
+      final ComponentActorThread componentActor = m_componentActor;
+      if (m_task.isDone() || (componentActor != null && componentActor.isCurrentThread())) {
+        return;
+      }
+
+      try {
+        m_task.get();
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+        // problems have already been logged
+      } catch (CancellationException ce) {
+        // cancelled concurrently
+      }
+    }
+
+    public String toString() {
+      return "Load components of bundle " + m_bundle.getSymbolicName() + "/" + m_bundle.getBundleId();
+    }
+  }
+
   public static ComponentRegistry createComponentRegistry(BundleContext bundleContext) {
     try {
       return new ConfigurationComponentRegistry(bundleContext);
@@ -353,8 +606,8 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
    */
   public static void log(int level, Bundle bundle, String message, Throwable ex) {
     if (m_logLevel >= level) {
-      Object logger = (m_logService != null) ? m_logService.getService() : null;
-      if (logger == null) {
+      final LogServiceHolder.BundleLogger logger = m_logger;
+      if (logger == null || !logger.log(level, message, ex)) {
         // output depending on level
         PrintStream out = (level == LogService.LOG_ERROR) ? System.err : System.out;
 
@@ -396,8 +649,6 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
             ex.printStackTrace(out);
           }
         }
-      } else {
-        ((LogService) logger).log(level, message, ex);
       }
     }
   }
@@ -437,23 +688,74 @@ public class Activator implements BundleActivator, SynchronousBundleListener {
     return m_ctWorkaround;
   }
 
+  /**
+   * Returns <code>true</code> if the framework is shutting down, that is if the system bundle is stopping or if SCR is
+   * stopped with the <code>ds.shutdown.fast</code> property set. While the framework is shutting down, components are
+   * not activated and services going away are neither replaced nor cause reactivation of their consumers. Unbind
+   * methods are still called as required by 112.5.13.
+   * 
+   * @return <code>true</code> if the framework is shutting down
+   */
+  public static boolean isShuttingDown() {
+    if (m_shuttingDown) {
+      return true;
+    }
+
+    final BundleContext context = m_context;
+    if (context != null) {
+      try {
+        final Bundle systemBundle = context.getBundle(0);
+        if (systemBundle != null && systemBundle.getState() == Bundle.STOPPING) {
+          return true;
+        }
+      } catch (IllegalStateException ise) {
+        // this bundle has been stopped already
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the <code>BundleComponentActivator</code> of the given bundle, creating it if the components of the bundle
+   * have not been loaded. If the components are being loaded in the background, they are loaded right away or loading
+   * is waited for. <code>null</code> is returned if the components are currently being loaded by the calling thread or
+   * concurrently by another thread without a background loader.
+   */
   public BundleComponentActivator getBundleComponentActivator(Bundle bundle) {
     if (bundle == null) {
       return null;
     }
 
-    synchronized (m_componentBundles) {
-      if (!m_componentBundles.containsKey(bundle.getBundleId())) {
+    final Long bundleId = new Long(bundle.getBundleId());
+    ComponentLoader loader = null;
+    while (true) {
+      final Object ga;
+      synchronized (m_componentBundles) {
+        ga = m_componentBundles.get(bundleId);
+        if (ga == null) {
+          BundleComponentActivator activator = new BundleComponentActivator(m_componentRegistry, m_componentActor,
+              bundle.getBundleContext(), m_configuration, m_instanceEvictor, m_logServiceHolder);
 
-        BundleComponentActivator ga = new BundleComponentActivator(m_componentRegistry, m_componentActor,
-            bundle.getBundleContext(), m_configuration);
+          // replace bundle activator in the map
 
-        // replace bundle activator in the map
+          m_componentBundles.put(bundleId, activator);
+          return activator;
+        }
+      }
+
+      if (ga instanceof BundleComponentActivator) {
+        return (BundleComponentActivator) ga;
+      }
 
-        m_componentBundles.put(bundle.getBundleId(), ga);
+      // still marked as being loaded after waiting for the loader or
+      // being loaded synchronously by another thread
+      if (ga == loader || !(ga instanceof ComponentLoader)) {
+        return null;
       }
 
-      return (BundleComponentActivator) m_componentBundles.get(bundle.getBundleId());
+      loader = (ComponentLoader) ga;
+      loader.await();
     }
   }
 }
\ No newline at end of file
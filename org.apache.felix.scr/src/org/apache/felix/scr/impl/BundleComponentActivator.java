@@ -18,6 +18,7 @@
  */
 package org.apache.felix.scr.impl;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -25,23 +26,35 @@ import java.io.InputStreamReader;
 import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.apache.felix.scr.Component;
 import org.apache.felix.scr.impl.config.ComponentHolder;
 import org.apache.felix.scr.impl.config.ScrConfiguration;
 import org.apache.felix.scr.impl.helper.Logger;
 import org.apache.felix.scr.impl.manager.AbstractComponentManager;
+import org.apache.felix.scr.impl.manager.IdleInstanceEvictor;
+import org.apache.felix.scr.impl.metadata.ComponentIndex;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
 import org.apache.felix.scr.impl.metadata.XmlHandler;
 import org.apache.felix.scr.impl.parser.KXml2SAXParser;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentConstants;
 import org.osgi.service.component.ComponentException;
 import org.osgi.service.log.LogService;
-import org.osgi.util.tracker.ServiceTracker;
 
 /**
  * The BundleComponentActivator is helper class to load and unload Components of a single bundle. It will read
@@ -57,8 +70,11 @@ public class BundleComponentActivator implements Logger {
   // This is a list of component instance managers that belong to a particular bundle
   private List                 m_managers = new ArrayList();
 
-  // The Configuration Admin tracker providing configuration for components
-  private ServiceTracker       m_logService;
+  // the names of the components declared in the component descriptors of the bundle
+  private Set                  m_declaredComponents = new HashSet();
+
+  // The view of the bundle onto the shared LogService
+  private LogServiceHolder.BundleLogger m_logger;
 
   // thread acting upon configurations
   private ComponentActorThread m_componentActor;
@@ -69,6 +85,9 @@ public class BundleComponentActivator implements Logger {
   // the configuration
   private ScrConfiguration     m_configuration;
 
+  // evicts idle instances of delayed and service factory components
+  private IdleInstanceEvictor  m_instanceEvictor;
+
   /**
    * Called upon starting of the bundle. This method invokes initialize() which parses the metadata and creates the
    * instance managers
@@ -78,12 +97,15 @@ public class BundleComponentActivator implements Logger {
    *          names and to ensure configuration updates.
    * @param context
    *          The bundle context owning the components
+   * @param logServiceHolder
+   *          The <code>LogServiceHolder</code> tracking the LogService shared by all bundles
    * 
    * @throws ComponentException
    *           if any error occurrs initializing this class
    */
   BundleComponentActivator(ComponentRegistry componentRegistry, ComponentActorThread componentActor,
-      BundleContext context, ScrConfiguration configuration) throws ComponentException {
+      BundleContext context, ScrConfiguration configuration, IdleInstanceEvictor instanceEvictor,
+      LogServiceHolder logServiceHolder) throws ComponentException {
     // keep the parameters for later
     m_componentRegistry = componentRegistry;
     m_componentActor = componentActor;
@@ -93,14 +115,51 @@ public class BundleComponentActivator implements Logger {
     m_active = true;
 
     // have the LogService handy (if available)
-    m_logService = new ServiceTracker(context, Activator.LOGSERVICE_CLASS, null);
-    m_logService.open();
+    m_logger = logServiceHolder.getLogger(context);
     m_configuration = configuration;
+    m_instanceEvictor = instanceEvictor;
 
     // Get the Metadata-Location value from the manifest
     String descriptorLocations = (String) m_context.getBundle().getHeaders().get("Service-Component");
     if (descriptorLocations != null) {
-      initialize(descriptorLocations);
+      initialize(descriptorLocations, null);
+    }
+  }
+
+  /**
+   * Reads the component descriptors of the bundle again and applies changed declarations to the registered components
+   * by calling {@link #updateComponent(ComponentMetadata)}. Components which had been declared in a descriptor but are
+   * not declared any more are disposed off. Components registered through {@link #registerComponent(ComponentMetadata)}
+   * are left alone. If a descriptor cannot be read, no components are disposed off because their declarations might
+   * just not have been read.
+   */
+  public void reloadComponents() {
+    final BundleContext context = m_context;
+    if (context == null || !m_active) {
+      return;
+    }
+
+    String descriptorLocations = (String) context.getBundle().getHeaders().get("Service-Component");
+    if (descriptorLocations == null) {
+      return;
+    }
+
+    final Set declared = new HashSet();
+    if (!initialize(descriptorLocations, declared)) {
+      log(LogService.LOG_WARNING, "Not all component descriptors could be read, keeping undeclared components", null,
+          null);
+      return;
+    }
+
+    final ComponentHolder[] holders = getSelectedComponents((String) null);
+    for (int i = 0; i < holders.length; i++) {
+      final ComponentMetadata metadata = holders[i].getComponentMetadata();
+      if (m_declaredComponents.contains(metadata.getName()) && !declared.contains(metadata.getName())) {
+        log(LogService.LOG_DEBUG, "Component not declared any more, disposing off", metadata, null);
+        m_declaredComponents.remove(metadata.getName());
+        m_managers.remove(holders[i]);
+        disposeComponentHolder(holders[i], ComponentConstants.DEACTIVATION_REASON_DISPOSED);
+      }
     }
   }
 
@@ -109,11 +168,22 @@ public class BundleComponentActivator implements Logger {
    * 
    * @param descriptorLocations
    *          A comma separated list of locations of component descriptors. This must not be <code>null</code>.
+   * @param declared
+   *          <code>null</code> to register the components or the set collecting the names of the declared components
+   *          when updating the components from the descriptors read again
+   * @return <code>true</code> if all descriptors have been read
    * 
    * @throws IllegalStateException
    *           If the bundle has already been uninstalled.
    */
-  private void initialize(String descriptorLocations) {
+  private boolean initialize(String descriptorLocations, Set declared) {
+
+    // use the precompiled component index if available and up to date
+    if (loadIndex(descriptorLocations, declared)) {
+      return true;
+    }
+
+    boolean complete = true;
 
     // 112.4.1: The value of the the header is a comma separated list of XML entries within the Bundle
     StringTokenizer st = new StringTokenizer(descriptorLocations, ", ");
@@ -127,14 +197,105 @@ public class BundleComponentActivator implements Logger {
         // fragments, SCR must log an error message with the Log Service, if present, and continue.
         log(LogService.LOG_ERROR, "Component descriptor entry ''{0}'' not found", new Object[] { descriptorLocation },
             null, null);
+        complete = false;
         continue;
       }
 
       // load from the descriptors
       for (int i = 0; i < descriptorURLs.length; i++) {
-        loadDescriptor(descriptorURLs[i]);
+        complete &= loadDescriptor(descriptorURLs[i], declared);
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * Registers the components declared in the component index of the bundle, if the bundle contains such an index
+   * generated for the given <code>Service-Component</code> header value and the current contents of the descriptors.
+   * 
+   * @param descriptorLocations
+   *          The value of the <code>Service-Component</code> header of the bundle
+   * @param declared
+   *          <code>null</code> or the set collecting the names of the declared components, see
+   *          {@link #declareComponent(ComponentMetadata, Set)}
+   * @return <code>true</code> if the components have been registered from the index, <code>false</code> if the
+   *         component descriptors have to be parsed because there is no index or the index cannot be used.
+   * @see ComponentIndex
+   */
+  private boolean loadIndex(String descriptorLocations, Set declared) {
+    final URL indexURL = m_context.getBundle().getEntry(ComponentIndex.INDEX_ENTRY);
+    if (indexURL == null) {
+      return false;
+    }
+
+    List components = null;
+    InputStream stream = null;
+    try {
+      final Map descriptors = getDescriptorChecksums(descriptorLocations);
+      stream = new BufferedInputStream(indexURL.openStream());
+      components = ComponentIndex.read(stream, descriptorLocations, descriptors);
+    } catch (IOException ex) {
+      log(LogService.LOG_WARNING, "Problem reading component index ''{0}'', parsing descriptors",
+          new Object[] { ComponentIndex.INDEX_ENTRY }, null, ex);
+    } finally {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException ignore) {
+        }
+      }
+    }
+
+    if (components == null) {
+      log(LogService.LOG_DEBUG, "Component index ''{0}'' not usable, parsing descriptors",
+          new Object[] { ComponentIndex.INDEX_ENTRY }, null, null);
+      return false;
+    }
+
+    log(LogService.LOG_DEBUG, "Registering {0} components from component index ''{1}''", new Object[] {
+        new Integer(components.size()), ComponentIndex.INDEX_ENTRY }, null, null);
+    for (Iterator ci = components.iterator(); ci.hasNext();) {
+      declareComponent((ComponentMetadata) ci.next(), declared);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the checksums of the component descriptors found for the given <code>Service-Component</code> header value
+   * to verify the component index has been generated from these descriptors.
+   * 
+   * @see ComponentIndex#read(InputStream, String, Map)
+   */
+  private Map getDescriptorChecksums(String descriptorLocations) throws IOException {
+    final Map descriptors = new HashMap();
+    StringTokenizer st = new StringTokenizer(descriptorLocations, ", ");
+    while (st.hasMoreTokens()) {
+      URL[] descriptorURLs = findDescriptors(m_context.getBundle(), st.nextToken());
+      for (int i = 0; i < descriptorURLs.length; i++) {
+        final InputStream stream = descriptorURLs[i].openStream();
+        try {
+          descriptors.put(ComponentIndex.getEntryPath(descriptorURLs[i].getPath()),
+              new Long(ComponentIndex.checksum(stream)));
+        } finally {
+          stream.close();
+        }
       }
     }
+    return descriptors;
+  }
+
+  /**
+   * Registers the component declared by the given metadata if <code>declared</code> is <code>null</code>. Otherwise
+   * the component is updated from the metadata read again and its name is added to <code>declared</code>.
+   */
+  private void declareComponent(ComponentMetadata metadata, Set declared) {
+    m_declaredComponents.add(metadata.getName());
+    if (declared == null) {
+      registerComponent(metadata);
+    } else {
+      declared.add(metadata.getName());
+      updateComponent(metadata);
+    }
   }
 
   /**
@@ -215,7 +376,65 @@ public class BundleComponentActivator implements Logger {
     }
   }
 
-  private void loadDescriptor(final URL descriptorURL) {
+  /**
+   * Replaces the declaration of a component of this bundle with the given new declaration. If the component is not
+   * registered yet, it is registered as if calling {@link #registerComponent(ComponentMetadata)}.
+   * <p>
+   * Changes are applied incrementally where possible: changed component properties are applied like a configuration
+   * update and changed target filters of dynamic references only affect the respective references. Any other change,
+   * for example of the implementation class, the provided services or a static reference, causes the component to be
+   * disposed off and recreated from the new declaration.
+   * 
+   * @param metadata
+   *          The new declaration of the component
+   */
+  public void updateComponent(ComponentMetadata metadata) {
+    final ComponentHolder holder = m_componentRegistry.getComponentHolder(metadata.getName());
+    if (holder == null || !m_managers.contains(holder)) {
+      registerComponent(metadata);
+      return;
+    }
+
+    final int changes;
+    try {
+      metadata.validate(this);
+      changes = holder.getComponentMetadata().getChanges(metadata);
+    } catch (Throwable t) {
+      log(LogService.LOG_ERROR, "Cannot update Component", metadata, t);
+      return;
+    }
+
+    if (changes == ComponentMetadata.CHANGE_NONE) {
+      log(LogService.LOG_DEBUG, "Component declaration not changed, nothing to update", metadata, null);
+      return;
+    }
+
+    if ((changes & ComponentMetadata.CHANGE_STRUCTURE) == 0) {
+      try {
+        if (holder.updateComponentMetadata(metadata, changes)) {
+          log(LogService.LOG_DEBUG, "Component declaration updated", metadata, null);
+          return;
+        }
+      } catch (Throwable t) {
+        log(LogService.LOG_ERROR, "Cannot update Component, recreating", metadata, t);
+      }
+    }
+
+    // structural change: dispose off the old components and start over
+    log(LogService.LOG_DEBUG, "Recreating Component for changed declaration", metadata, null);
+    m_managers.remove(holder);
+    try {
+      holder.disposeComponents(ComponentConstants.DEACTIVATION_REASON_DISPOSED);
+    } catch (Throwable t) {
+      log(LogService.LOG_ERROR, "Exception disposing off component", holder.getComponentMetadata(), t);
+    } finally {
+      m_componentRegistry.unregisterComponentHolder(metadata.getName());
+    }
+
+    registerComponent(metadata);
+  }
+
+  private boolean loadDescriptor(final URL descriptorURL, final Set declared) {
     // simple path for log messages
     final String descriptorLocation = descriptorURL.getPath();
 
@@ -236,8 +455,9 @@ public class BundleComponentActivator implements Logger {
       Iterator i = handler.getComponentMetadataList().iterator();
       while (i.hasNext()) {
         ComponentMetadata metadata = (ComponentMetadata) i.next();
-        registerComponent(metadata);
+        declareComponent(metadata, declared);
       }
+      return true;
     } catch (IOException ex) {
       // 112.4.1 If an XML document specified by the header cannot be located in the bundle and its attached
       // fragments, SCR must log an error message with the Log Service, if present, and continue.
@@ -255,6 +475,7 @@ public class BundleComponentActivator implements Logger {
         }
       }
     }
+    return false;
   }
 
   /**
@@ -265,31 +486,20 @@ public class BundleComponentActivator implements Logger {
       return;
     }
 
-    // mark instance inactive (no more component activations)
-    m_active = false;
+    final ComponentHolder[] holders = removeComponentHolders();
 
     log(LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] will destroy {1} instances", new Object[] {
-        new Long(m_context.getBundle().getBundleId()), new Integer(m_managers.size()) }, null, null);
-
-    while (m_managers.size() != 0) {
-      ComponentHolder holder = (ComponentHolder) m_managers.get(0);
-      try {
-        m_managers.remove(holder);
-        holder.disposeComponents(reason);
-      } catch (Exception e) {
-        log(LogService.LOG_ERROR, "BundleComponentActivator : Exception invalidating", holder.getComponentMetadata(), e);
-      } finally {
-        m_componentRegistry.unregisterComponentHolder(holder.getComponentMetadata().getName());
-      }
+        new Long(m_context.getBundle().getBundleId()), new Integer(holders.length) }, null, null);
 
-    }
+    // dispose off consumers before providers
+    ComponentDisposer.dispose(m_componentActor, holders, reason);
 
     log(LogService.LOG_DEBUG, "BundleComponentActivator : Bundle [{0}] STOPPED", new Object[] { new Long(m_context
         .getBundle().getBundleId()) }, null, null);
 
-    if (m_logService != null) {
-      m_logService.close();
-      m_logService = null;
+    if (m_logger != null) {
+      m_logger.close();
+      m_logger = null;
     }
 
     m_componentActor = null;
@@ -297,6 +507,40 @@ public class BundleComponentActivator implements Logger {
     m_context = null;
   }
 
+  /**
+   * Marks this instance inactive such that no more components are activated and removes all component holders from
+   * this instance. The components of the returned holders must be disposed off with
+   * {@link #disposeComponentHolder(ComponentHolder, int)} before calling {@link #dispose(int)}, which otherwise does
+   * not dispose off these components any more.
+   * 
+   * @return The component holders of this instance
+   */
+  ComponentHolder[] removeComponentHolders() {
+    // mark instance inactive (no more component activations)
+    m_active = false;
+
+    final ComponentHolder[] holders = (ComponentHolder[]) m_managers.toArray(new ComponentHolder[m_managers.size()]);
+    m_managers.clear();
+    m_declaredComponents.clear();
+    return holders;
+  }
+
+  /**
+   * Disposes off the components of the given holder and unregisters the holder from the component registry.
+   */
+  void disposeComponentHolder(ComponentHolder holder, int reason) {
+    try {
+      holder.disposeComponents(reason);
+    } catch (Exception e) {
+      log(LogService.LOG_ERROR, "BundleComponentActivator : Exception invalidating", holder.getComponentMetadata(), e);
+    } finally {
+      ComponentRegistry componentRegistry = m_componentRegistry;
+      if (componentRegistry != null) {
+        componentRegistry.unregisterComponentHolder(holder.getComponentMetadata().getName());
+      }
+    }
+  }
+
   /**
    * Returns <true> if this instance is active, that is if components may be activated for this component. As soon as
    * the {@link #dispose()} is called which means this instance is being shutdown. After the call to
@@ -319,6 +563,10 @@ public class BundleComponentActivator implements Logger {
     return m_configuration;
   }
 
+  public IdleInstanceEvictor getInstanceEvictor() {
+    return m_instanceEvictor;
+  }
+
   /**
    * Implements the <code>ComponentContext.enableComponent(String)</code> method by first finding the component(s) for
    * the <code>name</code> and then starting a thread to actually enable all components found.
@@ -329,32 +577,32 @@ public class BundleComponentActivator implements Logger {
    *          The name of the component to enable or <code>null</code> to enable all components.
    */
   public void enableComponent(final String name) {
-    final ComponentHolder[] holder = getSelectedComponents(name);
-    if (holder == null) {
-      return;
-    }
+    enableComponentAsync(name);
+  }
 
-    // FELIX-2368; schedule for asynchronous enablement. According to
-    // 112.5.1 the enabled state should be changed immediately but
-    // the component(s) should be activated asynchronously. Since
-    // we do not really handle the enabled state separately we
-    // schedule enablement and activation for asynchronous execution.
-    schedule(new Runnable() {
-      public void run() {
-        for (int i = 0; i < holder.length; i++) {
-          try {
-            log(LogService.LOG_DEBUG, "Enabling Component", holder[i].getComponentMetadata(), null);
-            holder[i].enableComponents();
-          } catch (Throwable t) {
-            log(LogService.LOG_ERROR, "Cannot enable component", holder[i].getComponentMetadata(), t);
-          }
-        }
-      }
+  /**
+   * Enables the component(s) for the <code>name</code> like {@link #enableComponent(String)} and returns a
+   * <code>Future</code> to wait for the asynchronous enablement to complete.
+   * 
+   * @param name
+   *          The name of the component to enable or <code>null</code> to enable all components.
+   * @return The <code>Future</code> whose result is a <code>Map</code> of the affected {@link Component} instances to
+   *         their state (<code>Integer</code>) after enablement. The map is empty if no component matches the name.
+   *         The future is cancelled if this instance is not active any more.
+   */
+  public Future enableComponentAsync(final String name) {
+    return scheduleStateChange(getSelectedComponents(name), true, "enableComponent(" + name + ")");
+  }
 
-      public String toString() {
-        return "enableComponent(" + name + ")";
-      }
-    });
+  /**
+   * Enables the components for all the given <code>names</code> in a single asynchronous task.
+   * 
+   * @param names
+   *          The names of the components to enable
+   * @return The aggregate <code>Future</code> for all components as described for {@link #enableComponentAsync(String)}
+   */
+  public Future enableComponentsAsync(final String[] names) {
+    return scheduleStateChange(getSelectedComponents(names), true, "enableComponents(" + Arrays.asList(names) + ")");
   }
 
   /**
@@ -367,32 +615,91 @@ public class BundleComponentActivator implements Logger {
    *          The name of the component to disable or <code>null</code> to disable all components.
    */
   public void disableComponent(final String name) {
-    final ComponentHolder[] holder = getSelectedComponents(name);
-    if (holder == null) {
-      return;
-    }
+    disableComponentAsync(name);
+  }
 
-    // FELIX-2368; schedule for asynchronous enablement. According to
-    // 112.5.1 the enabled state should be changed immediately but
-    // the component(s) should be deactivated asynchronously. Since
-    // we do not really handle the enabled state separately we
-    // schedule disablement and deactivation for asynchronous execution.
-    schedule(new Runnable() {
-      public void run() {
-        for (int i = 0; i < holder.length; i++) {
+  /**
+   * Disables the component(s) for the <code>name</code> like {@link #disableComponent(String)} and returns a
+   * <code>Future</code> to wait for the asynchronous disablement to complete.
+   * 
+   * @param name
+   *          The name of the component to disable or <code>null</code> to disable all components.
+   * @return The <code>Future</code> whose result is a <code>Map</code> of the affected {@link Component} instances to
+   *         their state (<code>Integer</code>) after disablement. The map is empty if no component matches the name.
+   *         The future is cancelled if this instance is not active any more.
+   */
+  public Future disableComponentAsync(final String name) {
+    return scheduleStateChange(getSelectedComponents(name), false, "disableComponent(" + name + ")");
+  }
+
+  /**
+   * Disables the components for all the given <code>names</code> in a single asynchronous task.
+   * 
+   * @param names
+   *          The names of the components to disable
+   * @return The aggregate <code>Future</code> for all components as described for
+   *         {@link #disableComponentAsync(String)}
+   */
+  public Future disableComponentsAsync(final String[] names) {
+    return scheduleStateChange(getSelectedComponents(names), false, "disableComponents(" + Arrays.asList(names) + ")");
+  }
+
+  /**
+   * Schedules enabling or disabling the components of the given holders and returns the <code>Future</code> for the
+   * scheduled task.
+   */
+  private Future scheduleStateChange(final ComponentHolder[] holder, final boolean enable, final String description) {
+    final Callable callable = new Callable() {
+      public Object call() {
+        final Map states = new LinkedHashMap();
+        for (int i = 0; holder != null && i < holder.length; i++) {
           try {
-            log(LogService.LOG_DEBUG, "Disabling Component", holder[i].getComponentMetadata(), null);
-            holder[i].disableComponents();
+            if (enable) {
+              log(LogService.LOG_DEBUG, "Enabling Component", holder[i].getComponentMetadata(), null);
+              holder[i].enableComponents();
+            } else {
+              log(LogService.LOG_DEBUG, "Disabling Component", holder[i].getComponentMetadata(), null);
+              holder[i].disableComponents();
+            }
           } catch (Throwable t) {
-            log(LogService.LOG_ERROR, "Cannot disable component", holder[i].getComponentMetadata(), t);
+            log(LogService.LOG_ERROR, enable ? "Cannot enable component" : "Cannot disable component",
+                holder[i].getComponentMetadata(), t);
+          }
+
+          final Component[] components = holder[i].getComponents();
+          for (int j = 0; components != null && j < components.length; j++) {
+            if (components[j] != null) {
+              states.put(components[j], new Integer(components[j].getState()));
+            }
           }
         }
+        return states;
       }
+    };
 
+    final FutureTask task = new FutureTask(callable) {
       public String toString() {
-        return "disableComponent(" + name + ")";
+        return description;
       }
-    });
+    };
+
+    // nothing to do if no component is selected
+    if (holder == null) {
+      task.run();
+      return task;
+    }
+
+    // FELIX-2368; schedule for asynchronous enablement. According to
+    // 112.5.1 the enabled state should be changed immediately but
+    // the component(s) should be activated asynchronously. Since
+    // we do not really handle the enabled state separately we
+    // schedule enablement and activation for asynchronous execution.
+    // the future must complete even if the task is dropped because this
+    // instance is being disposed off concurrently
+    if (!schedule(task)) {
+      task.cancel(false);
+    }
+    return task;
   }
 
   /**
@@ -429,12 +736,33 @@ public class BundleComponentActivator implements Logger {
     return null;
   }
 
+  /**
+   * Returns the component holders for all the given names ignoring unknown names or <code>null</code> if none of the
+   * names is known.
+   */
+  private ComponentHolder[] getSelectedComponents(String[] names) {
+    final List selected = new ArrayList();
+    for (int i = 0; names != null && i < names.length; i++) {
+      final ComponentHolder[] holder = getSelectedComponents(names[i]);
+      for (int j = 0; holder != null && j < holder.length; j++) {
+        if (!selected.contains(holder[j])) {
+          selected.add(holder[j]);
+        }
+      }
+    }
+    return selected.isEmpty() ? null : (ComponentHolder[]) selected.toArray(new ComponentHolder[selected.size()]);
+  }
+
   // ---------- Component ID support
 
   public long registerComponentId(AbstractComponentManager componentManager) {
     return m_componentRegistry.registerComponentId(componentManager);
   }
 
+  public long[] registerComponentIds(AbstractComponentManager[] componentManagers) {
+    return m_componentRegistry.registerComponentIds(componentManagers);
+  }
+
   public void unregisterComponentId(AbstractComponentManager componentManager) {
     m_componentRegistry.unregisterComponentId(componentManager.getId());
   }
@@ -443,16 +771,22 @@ public class BundleComponentActivator implements Logger {
 
   /**
    * Schedules the given <code>task</code> for asynchrounous execution or synchronously runs the task if the thread is
-   * not running. If this instance is {@link #isActive() not active}, the task is not executed.
+   * not running. If this instance is {@link #isActive() not active} or the thread is terminated, the task is not
+   * executed.
    * 
    * @param task
    *          The component task to execute
+   * @return <code>true</code> if the task has been scheduled or run, <code>false</code> if it has been dropped
    */
-  public void schedule(Runnable task) {
+  public boolean schedule(Runnable task) {
     if (isActive()) {
       ComponentActorThread cat = m_componentActor;
       if (cat != null) {
-        cat.schedule(task);
+        if (cat.schedule(task)) {
+          return true;
+        }
+        log(LogService.LOG_INFO, "Component Actor Thread terminated; not scheduling {0}", new Object[] { task }, null,
+            null);
       } else {
         log(LogService.LOG_INFO, "Component Actor Thread not running, calling synchronously", null, null);
         try {
@@ -462,11 +796,57 @@ public class BundleComponentActivator implements Logger {
         } catch (Throwable t) {
           log(LogService.LOG_INFO, "Unexpected problem executing task", null, t);
         }
+        return true;
       }
     } else {
       log(LogService.LOG_INFO, "BundleComponentActivator is not active; not scheduling {0}", new Object[] { task },
           null, null);
     }
+    return false;
+  }
+
+  /**
+   * Schedules the given task to be run by the component actor thread after the given delay. If this instance is not
+   * active or the component actor thread is not running or terminated, the task is dropped and a message is logged.
+   * 
+   * @param task
+   *          The task to run
+   * @param delay
+   *          The delay in milliseconds after which the task is run
+   * @return <code>true</code> if the task has been scheduled
+   */
+  public boolean schedule(Runnable task, long delay) {
+    ComponentActorThread cat = m_componentActor;
+    if (isActive() && cat != null && cat.schedule(task, delay)) {
+      return true;
+    }
+
+    log(LogService.LOG_INFO, "BundleComponentActivator is not active; not scheduling {0}", new Object[] { task },
+        null, null);
+    return false;
+  }
+
+  /**
+   * Runs the given independent tasks in parallel and returns once all tasks have completed. If this instance is not
+   * active or the component actor thread is not running, the tasks are run sequentially in the calling thread.
+   * 
+   * @param tasks
+   *          The tasks to run
+   */
+  public void runParallel(Runnable[] tasks) {
+    ComponentActorThread cat = m_componentActor;
+    if (isActive() && cat != null && tasks.length > 1) {
+      cat.runParallel(tasks);
+      return;
+    }
+
+    for (int i = 0; i < tasks.length; i++) {
+      try {
+        tasks[i].run();
+      } catch (Throwable t) {
+        log(LogService.LOG_ERROR, "Unexpected problem executing task {0}", new Object[] { tasks[i] }, null, t);
+      }
+    }
   }
 
   /**
@@ -516,11 +896,10 @@ public class BundleComponentActivator implements Logger {
         message = "[" + metadata.getName() + "] " + message;
       }
 
-      Object logger = m_logService.getService();
-      if (logger == null) {
-        Activator.log(level, getBundleContext().getBundle(), message, ex);
-      } else {
-        ((LogService) logger).log(level, message, ex);
+      final LogServiceHolder.BundleLogger logger = m_logger;
+      if (logger == null || !logger.log(level, message, ex)) {
+        final BundleContext context = m_context;
+        Activator.log(level, (context != null) ? context.getBundle() : null, message, ex);
       }
     }
   }
@@ -20,6 +20,14 @@ package org.apache.felix.scr.impl;
 
 
 import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import org.osgi.service.log.LogService;
 
@@ -48,6 +56,18 @@ class ComponentActorThread implements Runnable
     // the queue of Runnable instances  to be run
     private LinkedList tasks;
 
+    // timer to queue delayed tasks, created on demand
+    private Timer timer;
+
+    // set by terminate() to refuse further tasks, guarded by tasks
+    private boolean terminated;
+
+    // threads to run independent tasks in parallel, created on demand
+    private ExecutorService workers;
+
+    // the thread running this instance
+    private volatile Thread thread;
+
 
     ComponentActorThread()
     {
@@ -63,6 +83,7 @@ class ComponentActorThread implements Runnable
     public void run()
     {
         Activator.log( LogService.LOG_DEBUG, null, "Starting ComponentActorThread", null );
+        thread = Thread.currentThread();
 
         for ( ;; )
         {
@@ -88,6 +109,7 @@ class ComponentActorThread implements Runnable
             if ( task == TERMINATION_TASK )
             {
                 Activator.log( LogService.LOG_DEBUG, null, "Shutting down ComponentActorThread", null );
+                cancelQueuedTasks();
                 return;
             }
 
@@ -105,19 +127,173 @@ class ComponentActorThread implements Runnable
     }
 
 
-    // cause this thread to terminate by adding this thread to the end
-    // of the queue
+    // cancels the tasks still queued when terminating such that callers
+    // waiting for a Future do not wait forever; other tasks are dropped
+    private void cancelQueuedTasks()
+    {
+        final Object[] remaining;
+        synchronized ( tasks )
+        {
+            remaining = tasks.toArray();
+            tasks.clear();
+        }
+
+        for ( int i = 0; i < remaining.length; i++ )
+        {
+            if ( remaining[i] instanceof Future )
+            {
+                ( ( Future ) remaining[i] ).cancel( false );
+            }
+            Activator.log( LogService.LOG_DEBUG, null, "Dropping task [" + remaining[i] + "] on termination", null );
+        }
+    }
+
+
+    // cause this thread to terminate by adding the termination task to the
+    // end of the queue; tasks scheduled afterwards are refused
     void terminate()
     {
-        schedule( TERMINATION_TASK );
+        synchronized ( tasks )
+        {
+            if ( terminated )
+            {
+                return;
+            }
+            terminated = true;
+
+            if ( timer != null )
+            {
+                timer.cancel();
+                timer = null;
+            }
+
+            if ( workers != null )
+            {
+                workers.shutdown();
+                workers = null;
+            }
+
+            tasks.add( TERMINATION_TASK );
+            tasks.notifyAll();
+        }
+    }
+
+
+    // run the given tasks in parallel and wait for all of them to complete.
+    // the calling thread takes part in running the tasks, such that nested
+    // calls cannot exhaust the worker threads. problems are logged. if the
+    // calling thread is interrupted it still waits for all tasks and the
+    // interrupt status is restored before returning.
+    void runParallel( final Runnable[] parallelTasks )
+    {
+        final FutureTask[] futures = new FutureTask[parallelTasks.length];
+        for ( int i = 0; i < parallelTasks.length; i++ )
+        {
+            futures[i] = new FutureTask( parallelTasks[i], null );
+        }
+
+        final ExecutorService executor = getWorkers();
+        if ( executor != null )
+        {
+            // the calling thread runs the first task itself
+            for ( int i = 1; i < futures.length; i++ )
+            {
+                try
+                {
+                    executor.execute( futures[i] );
+                }
+                catch ( RuntimeException re )
+                {
+                    // rejected after termination, run by the calling thread
+                }
+            }
+        }
+
+        // run all tasks not picked up by a worker yet, then wait for the others
+        for ( int i = 0; i < futures.length; i++ )
+        {
+            futures[i].run();
+        }
+        boolean interrupted = false;
+        for ( int i = 0; i < futures.length; i++ )
+        {
+            while ( true )
+            {
+                try
+                {
+                    futures[i].get();
+                    break;
+                }
+                catch ( ExecutionException ee )
+                {
+                    Activator.log( LogService.LOG_ERROR, null, "Unexpected problem executing task " + parallelTasks[i],
+                        ee.getCause() );
+                    break;
+                }
+                catch ( InterruptedException ie )
+                {
+                    // keep waiting, the task may still be running
+                    interrupted = true;
+                }
+            }
+        }
+
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private ExecutorService getWorkers()
+    {
+        synchronized ( tasks )
+        {
+            if ( workers == null )
+            {
+                final int threads = Runtime.getRuntime().availableProcessors();
+                if ( threads <= 1 )
+                {
+                    return null;
+                }
+
+                workers = Executors.newFixedThreadPool( threads, new ThreadFactory()
+                {
+                    private int count;
+
+
+                    public Thread newThread( Runnable r )
+                    {
+                        final Thread thread = new Thread( r, "SCR Component Worker #" + ( ++count ) );
+                        thread.setDaemon( true );
+                        return thread;
+                    }
+                } );
+            }
+            return workers;
+        }
     }
 
 
-    // queue the given runnable to be run as soon as possible
-    void schedule( Runnable task )
+    // returns true if called by the thread running the queued tasks
+    boolean isCurrentThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+
+    // queue the given runnable to be run as soon as possible, returns false
+    // if the task is refused because this thread is terminated
+    boolean schedule( Runnable task )
     {
         synchronized ( tasks )
         {
+            if ( terminated )
+            {
+                Activator.log( LogService.LOG_DEBUG, null, "Terminated, not adding task [" + task + "]", null );
+                return false;
+            }
+
             // append to the task queue
             tasks.add( task );
 
@@ -126,6 +302,38 @@ class ComponentActorThread implements Runnable
 
             // notify the waiting thread
             tasks.notifyAll();
+            return true;
+        }
+    }
+
+
+    // queue the given runnable to be run after the given delay in milliseconds,
+    // returns false if the task is refused because this thread is terminated
+    boolean schedule( final Runnable task, final long delay )
+    {
+        synchronized ( tasks )
+        {
+            if ( terminated )
+            {
+                Activator.log( LogService.LOG_DEBUG, null, "Terminated, not adding task [" + task + "]", null );
+                return false;
+            }
+
+            if ( timer == null )
+            {
+                timer = new Timer( "SCR Component Actor Timer", true );
+            }
+
+            Activator.log( LogService.LOG_DEBUG, null, "Adding task [" + task + "] in " + delay + "ms", null );
+
+            timer.schedule( new TimerTask()
+            {
+                public void run()
+                {
+                    schedule( task );
+                }
+            }, delay );
+            return true;
         }
     }
 }
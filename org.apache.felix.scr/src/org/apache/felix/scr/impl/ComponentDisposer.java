@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.scr.impl.config.ComponentHolder;
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>ComponentDisposer</code> disposes of many components at once
+ * such that consumers of services are always disposed of before the
+ * components providing the services. This prevents consumers from being
+ * rebound to alternative services or reactivated while their providers go
+ * away one after the other.
+ * <p>
+ * A component is considered to consume the services of another component
+ * if one of its references names an interface provided by the other
+ * component. Target filters are not taken into account. The components are
+ * disposed of in rounds: Each round disposes of all components whose
+ * consumers have all been disposed of in parallel. Components depending on
+ * each other in cycles are disposed of starting with the components having
+ * the least consumers left.
+ */
+final class ComponentDisposer
+{
+
+    private final ComponentHolder[] m_holders;
+
+    // the number of consumers not disposed yet per component
+    private final int[] m_consumers;
+
+    // the indices of the providers (Integer) of each component
+    private final List[] m_providers;
+
+
+    private ComponentDisposer( final ComponentHolder[] holders )
+    {
+        m_holders = holders;
+        m_consumers = new int[holders.length];
+        m_providers = new List[holders.length];
+
+        // index the components by the service interfaces they provide
+        final Map providersByInterface = new HashMap();
+        for ( int i = 0; i < holders.length; i++ )
+        {
+            final ComponentMetadata metadata = holders[i].getComponentMetadata();
+            if ( metadata.getServiceMetadata() != null )
+            {
+                final String[] provides = metadata.getServiceMetadata().getProvides();
+                for ( int j = 0; j < provides.length; j++ )
+                {
+                    List providers = ( List ) providersByInterface.get( provides[j] );
+                    if ( providers == null )
+                    {
+                        providers = new ArrayList();
+                        providersByInterface.put( provides[j], providers );
+                    }
+                    providers.add( new Integer( i ) );
+                }
+            }
+        }
+
+        // link the consumers to the providers
+        for ( int i = 0; i < holders.length; i++ )
+        {
+            m_providers[i] = new ArrayList();
+            final List references = holders[i].getComponentMetadata().getDependencies();
+            for ( Iterator ri = references.iterator(); ri.hasNext(); )
+            {
+                final ReferenceMetadata reference = ( ReferenceMetadata ) ri.next();
+                final List providers = ( List ) providersByInterface.get( reference.getInterface() );
+                if ( providers != null )
+                {
+                    for ( Iterator pi = providers.iterator(); pi.hasNext(); )
+                    {
+                        final Integer provider = ( Integer ) pi.next();
+                        if ( provider.intValue() != i && !m_providers[i].contains( provider ) )
+                        {
+                            m_providers[i].add( provider );
+                            m_consumers[provider.intValue()]++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Disposes of the components of the given holders, consumers before
+     * their providers. Independent components are disposed of in parallel
+     * by the given component actor or sequentially if the component actor
+     * is <code>null</code>.
+     *
+     * @param componentActor The component actor providing threads to
+     *      dispose of components in parallel, may be <code>null</code>
+     * @param holders The component holders whose components are disposed of
+     * @param reason The reason for disposing of the components
+     */
+    static void dispose( final ComponentActorThread componentActor, final ComponentHolder[] holders,
+        final int reason )
+    {
+        if ( holders.length == 1 )
+        {
+            dispose( holders[0], reason );
+        }
+        else if ( holders.length > 1 )
+        {
+            new ComponentDisposer( holders ).dispose( componentActor, reason );
+        }
+    }
+
+
+    private void dispose( final ComponentActorThread componentActor, final int reason )
+    {
+        final boolean[] disposed = new boolean[m_holders.length];
+        int remaining = m_holders.length;
+        while ( remaining > 0 )
+        {
+            // the components without consumers left
+            final List round = new ArrayList();
+            int leastConsumers = Integer.MAX_VALUE;
+            for ( int i = 0; i < m_holders.length; i++ )
+            {
+                if ( !disposed[i] )
+                {
+                    if ( m_consumers[i] == 0 )
+                    {
+                        round.add( new Integer( i ) );
+                    }
+                    leastConsumers = Math.min( leastConsumers, m_consumers[i] );
+                }
+            }
+
+            // break cycles at the components with the least consumers left
+            if ( round.isEmpty() )
+            {
+                for ( int i = 0; i < m_holders.length; i++ )
+                {
+                    if ( !disposed[i] && m_consumers[i] == leastConsumers )
+                    {
+                        round.add( new Integer( i ) );
+                    }
+                }
+                Activator.log( LogService.LOG_DEBUG, null, "Disposing " + round.size()
+                    + " components with cyclic service dependencies", null );
+            }
+
+            final Runnable[] tasks = new Runnable[round.size()];
+            for ( int r = 0; r < tasks.length; r++ )
+            {
+                final int index = ( ( Integer ) round.get( r ) ).intValue();
+                final ComponentHolder holder = m_holders[index];
+                tasks[r] = new Runnable()
+                {
+                    public void run()
+                    {
+                        dispose( holder, reason );
+                    }
+
+
+                    public String toString()
+                    {
+                        return "Dispose " + holder.getComponentMetadata().getName();
+                    }
+                };
+
+                disposed[index] = true;
+                remaining--;
+            }
+
+            if ( componentActor != null && tasks.length > 1 )
+            {
+                componentActor.runParallel( tasks );
+            }
+            else
+            {
+                for ( int r = 0; r < tasks.length; r++ )
+                {
+                    tasks[r].run();
+                }
+            }
+
+            // the providers of the disposed components lost these consumers
+            for ( Iterator ri = round.iterator(); ri.hasNext(); )
+            {
+                final int index = ( ( Integer ) ri.next() ).intValue();
+                for ( Iterator pi = m_providers[index].iterator(); pi.hasNext(); )
+                {
+                    m_consumers[( ( Integer ) pi.next() ).intValue()]--;
+                }
+            }
+        }
+    }
+
+
+    private static void dispose( final ComponentHolder holder, final int reason )
+    {
+        final BundleComponentActivator activator = holder.getActivator();
+        if ( activator != null )
+        {
+            activator.disposeComponentHolder( holder, reason );
+        }
+    }
+}
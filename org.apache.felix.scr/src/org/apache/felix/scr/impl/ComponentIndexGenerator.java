@@ -0,0 +1,496 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.jar.Manifest;
+
+import org.apache.felix.scr.impl.helper.ActivateMethod;
+import org.apache.felix.scr.impl.helper.BindMethod;
+import org.apache.felix.scr.impl.helper.DeactivateMethod;
+import org.apache.felix.scr.impl.helper.Logger;
+import org.apache.felix.scr.impl.helper.ModifiedMethod;
+import org.apache.felix.scr.impl.helper.UnbindMethod;
+import org.apache.felix.scr.impl.helper.UpdatedMethod;
+import org.apache.felix.scr.impl.manager.ImmediateComponentManager;
+import org.apache.felix.scr.impl.metadata.ComponentIndex;
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
+import org.apache.felix.scr.impl.metadata.XmlHandler;
+import org.apache.felix.scr.impl.parser.KXml2SAXParser;
+import org.osgi.framework.Bundle;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>ComponentIndexGenerator</code> is a build time tool creating the
+ * {@link ComponentIndex component index} of a bundle from the component
+ * descriptors listed in the <code>Service-Component</code> header and the
+ * compiled component classes.
+ * <p>
+ * The tool is called with the directory containing the unpacked bundle
+ * contents (including the <code>META-INF/MANIFEST.MF</code> file) as the first
+ * argument. Further arguments name directories or JAR files containing classes
+ * required to load the component classes, for example the OSGi API and the
+ * bundle dependencies. The index is written to the
+ * {@link ComponentIndex#INDEX_ENTRY} file of the bundle directory.
+ * <p>
+ * All component descriptors are validated while generating the index. The
+ * tool terminates with a non-zero exit code if a descriptor cannot be read or
+ * is invalid.
+ */
+public class ComponentIndexGenerator
+{
+
+    private final File m_bundleDir;
+
+    private final ClassLoader m_classLoader;
+
+    private final Logger m_logger;
+
+
+    ComponentIndexGenerator( final File bundleDir, final ClassLoader classLoader )
+    {
+        m_bundleDir = bundleDir;
+        m_classLoader = classLoader;
+        m_logger = new Logger()
+        {
+            public boolean isLogEnabled( int level )
+            {
+                return level <= LogService.LOG_WARNING;
+            }
+
+
+            public void log( int level, String pattern, Object[] arguments, ComponentMetadata metadata, Throwable ex )
+            {
+                if ( isLogEnabled( level ) )
+                {
+                    log( level, MessageFormat.format( pattern, arguments ), metadata, ex );
+                }
+            }
+
+
+            public void log( int level, String message, ComponentMetadata metadata, Throwable ex )
+            {
+                if ( isLogEnabled( level ) )
+                {
+                    System.err.println( ( ( metadata == null ) ? "" : "[" + metadata.getName() + "] " ) + message );
+                    if ( ex != null )
+                    {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        };
+    }
+
+
+    public static void main( String[] args )
+    {
+        if ( args.length < 1 )
+        {
+            System.err.println( "Usage: " + ComponentIndexGenerator.class.getName()
+                + " <bundle directory> [ <classpath entry> ... ]" );
+            System.exit( 2 );
+        }
+
+        try
+        {
+            final File bundleDir = new File( args[0] );
+            final URL[] classPath = new URL[args.length];
+            for ( int i = 0; i < args.length; i++ )
+            {
+                classPath[i] = new File( args[i] ).toURI().toURL();
+            }
+
+            // the parent class loader provides the OSGi and SCR classes, such
+            // that the method parameter classes are the same as used here
+            final ClassLoader loader = new URLClassLoader( classPath, ComponentIndexGenerator.class
+                .getClassLoader() );
+
+            final int count = new ComponentIndexGenerator( bundleDir, loader ).generate();
+            System.out.println( "Wrote " + count + " components to " + new File( bundleDir, ComponentIndex.INDEX_ENTRY ) );
+        }
+        catch ( Exception e )
+        {
+            System.err.println( "Cannot generate component index: " + e );
+            System.exit( 1 );
+        }
+    }
+
+
+    /**
+     * Generates and writes the component index for the bundle.
+     *
+     * @return The number of components written to the index or zero if the
+     *      bundle has no <code>Service-Component</code> header.
+     * @throws Exception If a descriptor cannot be read or is invalid or if
+     *      the index cannot be written.
+     */
+    int generate() throws Exception
+    {
+        final String header = readServiceComponentHeader();
+        if ( header == null )
+        {
+            return 0;
+        }
+
+        final Bundle bundle = createBundle( header );
+        final ComponentIndex index = new ComponentIndex( header );
+        int count = 0;
+
+        // 112.4.1: The value of the the header is a comma separated list of XML entries within the Bundle
+        StringTokenizer st = new StringTokenizer( header, ", " );
+        while ( st.hasMoreTokens() )
+        {
+            final String descriptorLocation = st.nextToken();
+            final File[] descriptors = findDescriptors( descriptorLocation );
+            if ( descriptors.length == 0 )
+            {
+                throw new IOException( "Component descriptor entry '" + descriptorLocation + "' not found" );
+            }
+
+            for ( int i = 0; i < descriptors.length; i++ )
+            {
+                addDescriptor( index, descriptors[i] );
+                final List components = parseDescriptor( bundle, descriptors[i] );
+                for ( Iterator ci = components.iterator(); ci.hasNext(); )
+                {
+                    final ComponentMetadata metadata = ( ComponentMetadata ) ci.next();
+
+                    // serialize the raw declaration before validation
+                    final Map signatures = index.addComponent( metadata );
+                    metadata.validate( m_logger );
+                    resolveSignatures( metadata, signatures );
+                    count++;
+                }
+            }
+        }
+
+        final File indexFile = new File( m_bundleDir, ComponentIndex.INDEX_ENTRY );
+        indexFile.getParentFile().mkdirs();
+        final OutputStream out = new FileOutputStream( indexFile );
+        try
+        {
+            index.write( out );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return count;
+    }
+
+
+    //---------- descriptors
+
+    private String readServiceComponentHeader() throws IOException
+    {
+        final InputStream in = new FileInputStream( new File( m_bundleDir, "META-INF/MANIFEST.MF" ) );
+        try
+        {
+            return new Manifest( in ).getMainAttributes().getValue( "Service-Component" );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Finds the descriptor files for the descriptor location like the
+     * {@link BundleComponentActivator#findDescriptors(Bundle, String)} method
+     * does in the framework: the last path segment may contain wildcards
+     * and the parent directory is not searched recursively.
+     */
+    private File[] findDescriptors( final String descriptorLocation )
+    {
+        if ( descriptorLocation.indexOf( "*" ) == -1 )
+        {
+            final File descriptor = new File( m_bundleDir, descriptorLocation );
+            return descriptor.isFile() ? new File[]
+                { descriptor } : new File[0];
+        }
+
+        final int lios = descriptorLocation.lastIndexOf( "/" );
+        final File dir = ( lios > 0 ) ? new File( m_bundleDir, descriptorLocation.substring( 0, lios ) ) : m_bundleDir;
+        final String filePattern = descriptorLocation.substring( lios + 1 );
+
+        final File[] files = dir.listFiles();
+        if ( files == null )
+        {
+            return new File[0];
+        }
+
+        final List result = new ArrayList();
+        for ( int i = 0; i < files.length; i++ )
+        {
+            if ( files[i].isFile() && matches( filePattern, files[i].getName() ) )
+            {
+                result.add( files[i] );
+            }
+        }
+        return ( File[] ) result.toArray( new File[result.size()] );
+    }
+
+
+    private static boolean matches( final String pattern, final String name )
+    {
+        final StringBuffer regex = new StringBuffer();
+        final StringTokenizer tokener = new StringTokenizer( pattern, "*", true );
+        while ( tokener.hasMoreTokens() )
+        {
+            final String token = tokener.nextToken();
+            if ( token.equals( "*" ) )
+            {
+                regex.append( ".*" );
+            }
+            else
+            {
+                regex.append( "\\Q" ).append( token ).append( "\\E" );
+            }
+        }
+        return name.matches( regex.toString() );
+    }
+
+
+    /**
+     * Records the checksum of the descriptor in the index with the entry path
+     * relative to the bundle directory.
+     */
+    private void addDescriptor( final ComponentIndex index, final File descriptor ) throws IOException
+    {
+        final String root = m_bundleDir.getCanonicalPath();
+        final String path = descriptor.getCanonicalPath().substring( root.length() ).replace( File.separatorChar,
+            '/' );
+        final InputStream stream = new FileInputStream( descriptor );
+        try
+        {
+            index.addDescriptor( path, stream );
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+
+    private List parseDescriptor( final Bundle bundle, final File descriptor ) throws Exception
+    {
+        final InputStream stream = new FileInputStream( descriptor );
+        try
+        {
+            BufferedReader in = new BufferedReader( new InputStreamReader( stream ) );
+            XmlHandler handler = new XmlHandler( bundle, m_logger );
+            KXml2SAXParser parser = new KXml2SAXParser( in );
+            parser.parseXML( handler );
+            return handler.getComponentMetadataList();
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+
+    /**
+     * Returns a minimal <code>Bundle</code> backed by the bundle directory
+     * for use by the {@link XmlHandler} to resolve <code>properties</code>
+     * entries and to log the bundle location. The bundle is reported as
+     * being installed; methods not supported at build time return
+     * <code>null</code>, <code>false</code> or zero instead of failing.
+     */
+    private Bundle createBundle( final String header )
+    {
+        final Dictionary headers = new Hashtable();
+        headers.put( "Service-Component", header );
+
+        return ( Bundle ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class[]
+            { Bundle.class }, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                final String name = method.getName();
+                if ( ( name.equals( "getEntry" ) || name.equals( "getResource" ) ) && args != null
+                    && args.length == 1 )
+                {
+                    final File entry = new File( m_bundleDir, String.valueOf( args[0] ) );
+                    return entry.isFile() ? entry.toURI().toURL() : null;
+                }
+                else if ( name.equals( "getLocation" ) || name.equals( "toString" ) )
+                {
+                    return m_bundleDir.toURI().toString();
+                }
+                else if ( name.equals( "hashCode" ) )
+                {
+                    return new Integer( System.identityHashCode( proxy ) );
+                }
+                else if ( name.equals( "equals" ) )
+                {
+                    return Boolean.valueOf( proxy == args[0] );
+                }
+                else if ( name.equals( "getHeaders" ) )
+                {
+                    return headers;
+                }
+                else if ( name.equals( "getState" ) )
+                {
+                    return new Integer( Bundle.INSTALLED );
+                }
+                else if ( name.equals( "getBundleId" ) )
+                {
+                    return new Long( -1 );
+                }
+
+                final Class returnType = method.getReturnType();
+                if ( returnType == Boolean.TYPE )
+                {
+                    return Boolean.FALSE;
+                }
+                else if ( returnType == Integer.TYPE )
+                {
+                    return new Integer( 0 );
+                }
+                else if ( returnType == Long.TYPE )
+                {
+                    return new Long( 0 );
+                }
+                return null;
+            }
+        } );
+    }
+
+
+    //---------- method signatures
+
+    /**
+     * Resolves the component methods declared by the (validated) component
+     * metadata against the implementation class and records the signatures
+     * of the methods found. Methods which cannot be resolved are not recorded
+     * and will be searched for at runtime.
+     */
+    private void resolveSignatures( final ComponentMetadata metadata, final Map signatures )
+    {
+        final Class componentClass;
+        try
+        {
+            componentClass = m_classLoader.loadClass( metadata.getImplementationClassName() );
+        }
+        catch ( Throwable t )
+        {
+            m_logger.log( LogService.LOG_WARNING, "Cannot load implementation class, not resolving methods",
+                metadata, t );
+            return;
+        }
+
+        // the methods only require the namespace of the component from the
+        // component manager; a minimal declaration prevents setting up
+        // the dependency managers
+        final ComponentMetadata stub = new ComponentMetadata( metadata.getNamespaceCode() );
+        stub.setName( metadata.getName() );
+        stub.setImplementationClassName( metadata.getImplementationClassName() );
+        final ImmediateComponentManager manager = new ImmediateComponentManager( null, null, stub )
+        {
+            // there is no bundle component activator to log through at build time
+            public boolean isLogEnabled( int level )
+            {
+                return m_logger.isLogEnabled( level );
+            }
+
+
+            public void log( int level, String message, Throwable ex )
+            {
+                m_logger.log( level, message, getComponentMetadata(), ex );
+            }
+
+
+            public void log( int level, String message, Object[] arguments, Throwable ex )
+            {
+                m_logger.log( level, message, arguments, getComponentMetadata(), ex );
+            }
+        };
+
+        addSignature( signatures, "activate", new ActivateMethod( manager, metadata.getActivate(), metadata
+            .isActivateDeclared(), componentClass ).getResolvedMethod() );
+        addSignature( signatures, "deactivate", new DeactivateMethod( manager, metadata.getDeactivate(), metadata
+            .isDeactivateDeclared(), componentClass ).getResolvedMethod() );
+        addSignature( signatures, "modified", new ModifiedMethod( manager, metadata.getModified(), componentClass )
+            .getResolvedMethod() );
+
+        for ( Iterator ri = metadata.getDependencies().iterator(); ri.hasNext(); )
+        {
+            final ReferenceMetadata ref = ( ReferenceMetadata ) ri.next();
+            final String prefix = ref.getName() + "/";
+            try
+            {
+                addSignature( signatures, prefix + "bind", new BindMethod( manager, ref.getBind(), componentClass,
+                    ref.getName(), ref.getInterface() ).getResolvedMethod() );
+                addSignature( signatures, prefix + "update", new UpdatedMethod( manager, ref.getUpdated(),
+                    componentClass, ref.getName(), ref.getInterface() ).getResolvedMethod() );
+                addSignature( signatures, prefix + "unbind", new UnbindMethod( manager, ref.getUnbind(),
+                    componentClass, ref.getName(), ref.getInterface() ).getResolvedMethod() );
+            }
+            catch ( Throwable t )
+            {
+                // the service interface may not be visible at build time
+                m_logger.log( LogService.LOG_WARNING, "Cannot resolve methods of reference " + ref.getName(),
+                    metadata, t );
+            }
+        }
+    }
+
+
+    private static void addSignature( final Map signatures, final String key, final Method method )
+    {
+        if ( method != null )
+        {
+            final Class[] parameterTypes = method.getParameterTypes();
+            final String[] signature = new String[parameterTypes.length + 1];
+            signature[0] = method.getDeclaringClass().getName();
+            for ( int i = 0; i < parameterTypes.length; i++ )
+            {
+                signature[i + 1] = parameterTypes[i].getName();
+            }
+            signatures.put( key, signature );
+        }
+    }
+}
@@ -220,6 +220,37 @@ public class ComponentRegistry implements ScrService
     }
 
 
+    /**
+     * Assigns unique IDs to all components, internally registers the
+     * components under these IDs and returns the assigned component IDs.
+     * The IDs are assigned as a contiguous range while holding the registry
+     * lock only once.
+     *
+     * @param componentManagers The {@link AbstractComponentManager}s for
+     *      which to assign component IDs and which are to be internally
+     *      registered
+     *
+     * @return the assigned component IDs in the order of the component
+     *      managers
+     */
+    final long[] registerComponentIds( final AbstractComponentManager[] componentManagers )
+    {
+        final long[] componentIds = new long[componentManagers.length];
+        synchronized ( m_componentsById )
+        {
+            for ( int i = 0; i < componentManagers.length; i++ )
+            {
+                m_componentCounter++;
+                componentIds[i] = m_componentCounter;
+
+                m_componentsById.put( new Long( componentIds[i] ), componentManagers[i] );
+            }
+        }
+
+        return componentIds;
+    }
+
+
     /**
      * Unregisters the component with the given component ID from the internal
      * registry. After unregistration, the component ID should be considered
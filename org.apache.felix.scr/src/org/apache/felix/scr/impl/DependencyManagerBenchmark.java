@@ -0,0 +1,603 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.impl.config.ScrConfiguration;
+import org.apache.felix.scr.impl.manager.IdleInstanceEvictor;
+import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
+import org.apache.felix.scr.impl.metadata.XmlHandler;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentConstants;
+import org.osgi.service.component.ComponentContext;
+
+
+/**
+ * The <code>DependencyManagerBenchmark</code> is a standalone tool measuring
+ * the contention on the bound services of a single dependency manager.
+ * <p>
+ * The tool registers a component with a dynamic optional multiple reference
+ * through a {@link BundleComponentActivator} running on a stubbed bundle
+ * context. A number of threads (16 by default) then concurrently fire service
+ * events at the dependency manager, registering, modifying and unregistering
+ * stubbed service references, while locating the bound services through the
+ * component context. The tool is called with the optional number of threads
+ * and the optional duration in seconds as arguments and prints the number of
+ * operations per second.
+ * <p>
+ * When the component is disposed off at the end of the run, all service
+ * references still registered must have been released. The tool terminates
+ * with a non-zero exit code if the framework use count of any of these
+ * services is not zero.
+ */
+public class DependencyManagerBenchmark
+{
+
+    // name of the component reference
+    private static final String REFERENCE_NAME = "services";
+
+    // interface of the referenced services
+    private static final String SERVICE_INTERFACE = Runnable.class.getName();
+
+    // number of services registered before the component is enabled
+    private static final int INITIAL_SERVICES = 64;
+
+    // number of services each thread keeps registered at most
+    private static final int THREAD_SERVICES = 4;
+
+    // the component context of the activated consumer component
+    private static volatile ComponentContext s_componentContext;
+
+    // registered service references mapped to the service objects
+    private final ConcurrentMap m_services = new ConcurrentHashMap();
+
+    // service references mapped to the framework use counts
+    private final ConcurrentMap m_useCounts = new ConcurrentHashMap();
+
+    private final AtomicLong m_serviceId = new AtomicLong();
+
+    private final Bundle m_bundle;
+
+    private final BundleContext m_context;
+
+    // the service listener of the dependency manager
+    private volatile ServiceListener m_listener;
+
+
+    DependencyManagerBenchmark()
+    {
+        m_bundle = createBundle();
+        m_context = createBundleContext();
+    }
+
+
+    public static void main( String[] args )
+    {
+        int threads = 16;
+        int seconds = 10;
+        try
+        {
+            if ( args.length > 0 )
+            {
+                threads = Integer.parseInt( args[0] );
+            }
+            if ( args.length > 1 )
+            {
+                seconds = Integer.parseInt( args[1] );
+            }
+        }
+        catch ( NumberFormatException nfe )
+        {
+            System.err.println( "Usage: " + DependencyManagerBenchmark.class.getName()
+                + " [ <threads> [ <seconds> ] ]" );
+            System.exit( 2 );
+        }
+
+        try
+        {
+            final int leaked = new DependencyManagerBenchmark().run( threads, seconds );
+            if ( leaked > 0 )
+            {
+                System.err.println( leaked + " service use counts have not been released" );
+                System.exit( 1 );
+            }
+        }
+        catch ( Exception e )
+        {
+            System.err.println( "Cannot run benchmark: " + e );
+            System.exit( 1 );
+        }
+    }
+
+
+    /**
+     * Runs the benchmark and disposes off the component afterwards.
+     *
+     * @return The sum of the use counts of the services still registered
+     *      after the component has been disposed off.
+     * @throws Exception If the component cannot be activated or the run
+     *      is interrupted.
+     */
+    int run( final int threadCount, final int seconds ) throws Exception
+    {
+        final ComponentActorThread componentActor = new ComponentActorThread();
+        final Thread actorThread = new Thread( componentActor, "SCR Component Actor" );
+        actorThread.setDaemon( true );
+        actorThread.start();
+
+        final ComponentRegistry registry = new ComponentRegistry( m_context );
+        final ScrConfiguration configuration = new ScrConfiguration( m_context );
+        final BundleComponentActivator activator = new BundleComponentActivator( registry, componentActor,
+            m_context, configuration, new IdleInstanceEvictor( configuration ), new LogServiceHolder( m_context ) );
+
+        try
+        {
+            final ServiceReference[] initial = new ServiceReference[INITIAL_SERVICES];
+            for ( int i = 0; i < initial.length; i++ )
+            {
+                initial[i] = registerService();
+            }
+
+            activator.registerComponent( createMetadata() );
+            final long timeout = System.currentTimeMillis() + 10000L;
+            while ( s_componentContext == null || m_listener == null )
+            {
+                if ( System.currentTimeMillis() > timeout )
+                {
+                    throw new IllegalStateException( "Component has not been activated" );
+                }
+                Thread.sleep( 10L );
+            }
+
+            final long deadline = System.currentTimeMillis() + seconds * 1000L;
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final AtomicLong operations = new AtomicLong();
+            final Thread[] threads = new Thread[threadCount];
+            for ( int i = 0; i < threads.length; i++ )
+            {
+                threads[i] = new Thread( "Benchmark " + i )
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            start.await();
+                            operations.addAndGet( runOperations( initial, deadline ) );
+                        }
+                        catch ( InterruptedException ie )
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            final long started = System.currentTimeMillis();
+            start.countDown();
+            for ( int i = 0; i < threads.length; i++ )
+            {
+                threads[i].join();
+            }
+            final long elapsed = Math.max( 1L, System.currentTimeMillis() - started );
+
+            System.out.println( threadCount + " threads: " + operations.get() + " operations in " + elapsed
+                + "ms (" + ( operations.get() * 1000L / elapsed ) + " ops/s)" );
+        }
+        finally
+        {
+            activator.dispose( ComponentConstants.DEACTIVATION_REASON_DISPOSED );
+            registry.dispose();
+            componentActor.terminate();
+        }
+
+        // all services still registered must have been released
+        int leaked = 0;
+        for ( Iterator ri = m_services.keySet().iterator(); ri.hasNext(); )
+        {
+            final AtomicInteger useCount = ( AtomicInteger ) m_useCounts.get( ri.next() );
+            leaked += ( useCount == null ) ? 0 : useCount.get();
+        }
+        return leaked;
+    }
+
+
+    /**
+     * Runs random operations on the dependency manager until the deadline
+     * has passed. Services registered by this method are unregistered again
+     * before returning.
+     *
+     * @return The number of operations run
+     */
+    private long runOperations( final ServiceReference[] initial, final long deadline )
+    {
+        final Random random = new Random();
+        final LinkedList registered = new LinkedList();
+        long count = 0;
+        while ( ( count & 0xff ) != 0 || System.currentTimeMillis() < deadline )
+        {
+            switch ( random.nextInt( 8 ) )
+            {
+                case 0:
+                    if ( registered.size() < THREAD_SERVICES )
+                    {
+                        final ServiceReference ref = registerService();
+                        registered.add( ref );
+                        fireServiceEvent( ServiceEvent.REGISTERED, ref );
+                    }
+                    else
+                    {
+                        unregisterService( ( ServiceReference ) registered.removeFirst() );
+                    }
+                    break;
+
+                case 1:
+                    fireServiceEvent( ServiceEvent.MODIFIED, initial[random.nextInt( initial.length )] );
+                    break;
+
+                case 7:
+                    s_componentContext.locateServices( REFERENCE_NAME );
+                    break;
+
+                default:
+                    s_componentContext.locateService( REFERENCE_NAME, initial[random.nextInt( initial.length )] );
+                    break;
+            }
+            count++;
+        }
+
+        while ( !registered.isEmpty() )
+        {
+            unregisterService( ( ServiceReference ) registered.removeFirst() );
+        }
+        return count;
+    }
+
+
+    private ComponentMetadata createMetadata()
+    {
+        final ReferenceMetadata reference = new ReferenceMetadata();
+        reference.setName( REFERENCE_NAME );
+        reference.setInterface( SERVICE_INTERFACE );
+        reference.setCardinality( "0..n" );
+        reference.setPolicy( "dynamic" );
+        reference.setBind( "bind" );
+        reference.setUnbind( "unbind" );
+
+        final ComponentMetadata metadata = new ComponentMetadata( XmlHandler.DS_VERSION_1_1 );
+        metadata.setName( DependencyManagerBenchmark.class.getName() );
+        metadata.setImplementationClassName( Consumer.class.getName() );
+        metadata.setImmediate( true );
+        metadata.addDependency( reference );
+        return metadata;
+    }
+
+
+    //---------- stubbed service registry
+
+    private ServiceReference registerService()
+    {
+        final Hashtable properties = new Hashtable();
+        properties.put( Constants.OBJECTCLASS, new String[]
+            { SERVICE_INTERFACE } );
+        properties.put( Constants.SERVICE_ID, new Long( m_serviceId.incrementAndGet() ) );
+        properties.put( Constants.SERVICE_RANKING, new Integer( 0 ) );
+
+        final ServiceReference ref = createServiceReference( properties );
+        m_useCounts.put( ref, new AtomicInteger() );
+        m_services.put( ref, new Runnable()
+        {
+            public void run()
+            {
+            }
+        } );
+        return ref;
+    }
+
+
+    private void unregisterService( final ServiceReference ref )
+    {
+        // like the framework, the service is still available while unregistering
+        fireServiceEvent( ServiceEvent.UNREGISTERING, ref );
+        m_services.remove( ref );
+        m_useCounts.remove( ref );
+    }
+
+
+    private void fireServiceEvent( final int type, final ServiceReference ref )
+    {
+        m_listener.serviceChanged( new ServiceEvent( type, ref ) );
+    }
+
+
+    private ServiceReference[] getServiceReferences( final String clazz, final String filter ) throws Exception
+    {
+        if ( !SERVICE_INTERFACE.equals( clazz ) )
+        {
+            return null;
+        }
+
+        final List refs = new LinkedList();
+        for ( Iterator ri = m_services.keySet().iterator(); ri.hasNext(); )
+        {
+            final ServiceReference ref = ( ServiceReference ) ri.next();
+            if ( filter == null || FrameworkUtil.createFilter( filter ).match( ref ) )
+            {
+                refs.add( ref );
+            }
+        }
+        return refs.isEmpty() ? null : ( ServiceReference[] ) refs.toArray( new ServiceReference[refs.size()] );
+    }
+
+
+    private Object getService( final ServiceReference ref )
+    {
+        final AtomicInteger useCount = ( AtomicInteger ) m_useCounts.get( ref );
+        final Object service = m_services.get( ref );
+        if ( useCount == null || service == null )
+        {
+            return null;
+        }
+
+        useCount.incrementAndGet();
+        return service;
+    }
+
+
+    private boolean ungetService( final ServiceReference ref )
+    {
+        final AtomicInteger useCount = ( AtomicInteger ) m_useCounts.get( ref );
+        if ( useCount == null )
+        {
+            return false;
+        }
+
+        for ( ;; )
+        {
+            final int current = useCount.get();
+            if ( current == 0 )
+            {
+                return false;
+            }
+            if ( useCount.compareAndSet( current, current - 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+
+    //---------- stubbed framework objects
+
+    private Bundle createBundle()
+    {
+        final Hashtable headers = new Hashtable();
+        headers.put( Constants.BUNDLE_SYMBOLICNAME, DependencyManagerBenchmark.class.getName() );
+
+        return ( Bundle ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class[]
+            { Bundle.class }, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                final String name = method.getName();
+                if ( name.equals( "getBundleContext" ) )
+                {
+                    return m_context;
+                }
+                else if ( name.equals( "loadClass" ) )
+                {
+                    return Class.forName( String.valueOf( args[0] ), true, getClass().getClassLoader() );
+                }
+                else if ( name.equals( "getHeaders" ) )
+                {
+                    return headers;
+                }
+                else if ( name.equals( "getSymbolicName" ) || name.equals( "getLocation" ) )
+                {
+                    return DependencyManagerBenchmark.class.getName();
+                }
+                else if ( name.equals( "getState" ) )
+                {
+                    return new Integer( Bundle.ACTIVE );
+                }
+                else if ( name.equals( "getBundleId" ) )
+                {
+                    return new Long( 1 );
+                }
+                else if ( name.equals( "hasPermission" ) )
+                {
+                    return Boolean.TRUE;
+                }
+
+                return getDefaultValue( proxy, method, args );
+            }
+        } );
+    }
+
+
+    private BundleContext createBundleContext()
+    {
+        return ( BundleContext ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class[]
+            { BundleContext.class }, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                final String name = method.getName();
+                if ( name.equals( "getBundle" ) )
+                {
+                    return m_bundle;
+                }
+                else if ( name.equals( "addServiceListener" ) )
+                {
+                    // only the dependency manager listens for the referenced services
+                    if ( args.length == 2 && String.valueOf( args[1] ).indexOf( SERVICE_INTERFACE ) >= 0 )
+                    {
+                        m_listener = ( ServiceListener ) args[0];
+                    }
+                    return null;
+                }
+                else if ( name.equals( "getServiceReferences" ) || name.equals( "getAllServiceReferences" ) )
+                {
+                    return getServiceReferences( ( String ) args[0], ( String ) args[1] );
+                }
+                else if ( name.equals( "getService" ) )
+                {
+                    return getService( ( ServiceReference ) args[0] );
+                }
+                else if ( name.equals( "ungetService" ) )
+                {
+                    return Boolean.valueOf( ungetService( ( ServiceReference ) args[0] ) );
+                }
+                else if ( name.equals( "createFilter" ) )
+                {
+                    return FrameworkUtil.createFilter( ( String ) args[0] );
+                }
+
+                return getDefaultValue( proxy, method, args );
+            }
+        } );
+    }
+
+
+    private ServiceReference createServiceReference( final Hashtable properties )
+    {
+        return ( ServiceReference ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class[]
+            { ServiceReference.class }, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+            {
+                final String name = method.getName();
+                if ( name.equals( "getProperty" ) )
+                {
+                    return properties.get( args[0] );
+                }
+                else if ( name.equals( "getPropertyKeys" ) )
+                {
+                    return properties.keySet().toArray( new String[properties.size()] );
+                }
+                else if ( name.equals( "getBundle" ) )
+                {
+                    // unregistered services have no bundle
+                    return m_services.containsKey( proxy ) ? m_bundle : null;
+                }
+                else if ( name.equals( "isAssignableTo" ) )
+                {
+                    return Boolean.TRUE;
+                }
+                else if ( name.equals( "compareTo" ) )
+                {
+                    // all services have the same ranking, the lower service id ranks higher
+                    final Long id = ( Long ) properties.get( Constants.SERVICE_ID );
+                    final Long otherId = ( Long ) ( ( ServiceReference ) args[0] ).getProperty( Constants.SERVICE_ID );
+                    return new Integer( otherId.compareTo( id ) );
+                }
+
+                return getDefaultValue( proxy, method, args );
+            }
+        } );
+    }
+
+
+    private static Object getDefaultValue( Object proxy, Method method, Object[] args )
+    {
+        final String name = method.getName();
+        if ( name.equals( "hashCode" ) )
+        {
+            return new Integer( System.identityHashCode( proxy ) );
+        }
+        else if ( name.equals( "equals" ) )
+        {
+            return Boolean.valueOf( proxy == args[0] );
+        }
+        else if ( name.equals( "toString" ) )
+        {
+            return method.getDeclaringClass().getName() + "@" + Integer.toHexString( System.identityHashCode( proxy ) );
+        }
+
+        final Class returnType = method.getReturnType();
+        if ( returnType == Boolean.TYPE )
+        {
+            return Boolean.FALSE;
+        }
+        else if ( returnType == Integer.TYPE )
+        {
+            return new Integer( 0 );
+        }
+        else if ( returnType == Long.TYPE )
+        {
+            return new Long( 0 );
+        }
+        return null;
+    }
+
+
+    /**
+     * The component implementation binding the referenced services.
+     */
+    public static class Consumer
+    {
+
+        private final AtomicInteger m_bound = new AtomicInteger();
+
+
+        protected void activate( ComponentContext context )
+        {
+            s_componentContext = context;
+        }
+
+
+        protected void deactivate( ComponentContext context )
+        {
+            s_componentContext = null;
+        }
+
+
+        protected void bind( Runnable service )
+        {
+            m_bound.incrementAndGet();
+        }
+
+
+        protected void unbind( Runnable service )
+        {
+            m_bound.decrementAndGet();
+        }
+    }
+}
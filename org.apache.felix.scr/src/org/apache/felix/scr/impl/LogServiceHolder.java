@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>LogServiceHolder</code> tracks the LogService for the whole SCR
+ * implementation with a single service listener. This replaces a
+ * <code>ServiceTracker</code> per bundle with components, each of which
+ * would register its own service listener.
+ * <p>
+ * Bundles log through {@link BundleLogger} views obtained from
+ * {@link #getLogger(BundleContext)}. A view gets the LogService through the
+ * context of its bundle such that log entries are attributed to that bundle.
+ * The service is only acquired on the first message logged and again when
+ * the LogService in use changes.
+ */
+final class LogServiceHolder implements ServiceListener
+{
+
+    // the LogService with the highest ranking, null if none is registered
+    private volatile ServiceReference m_reference;
+
+    private final BundleContext m_context;
+
+
+    LogServiceHolder( final BundleContext context )
+    {
+        m_context = context;
+    }
+
+
+    /**
+     * Starts tracking the LogService.
+     */
+    void open()
+    {
+        try
+        {
+            m_context.addServiceListener( this, "(" + Constants.OBJECTCLASS + "=" + Activator.LOGSERVICE_CLASS + ")" );
+        }
+        catch ( InvalidSyntaxException ise )
+        {
+            // not expected, the filter is constant
+        }
+        m_reference = m_context.getServiceReference( Activator.LOGSERVICE_CLASS );
+    }
+
+
+    /**
+     * Stops tracking the LogService. Views cease to log through the
+     * LogService afterwards.
+     */
+    void close()
+    {
+        try
+        {
+            m_context.removeServiceListener( this );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // bundle context has already been invalidated
+        }
+        m_reference = null;
+    }
+
+
+    /**
+     * Returns a new view logging through the LogService on behalf of the
+     * bundle of the given context. The view must be closed when the bundle
+     * does not need it any longer.
+     */
+    BundleLogger getLogger( final BundleContext context )
+    {
+        return new BundleLogger( context );
+    }
+
+
+    public void serviceChanged( final ServiceEvent event )
+    {
+        final ServiceReference reference = event.getServiceReference();
+        switch ( event.getType() )
+        {
+            case ServiceEvent.REGISTERED:
+            case ServiceEvent.MODIFIED:
+                final ServiceReference current = m_reference;
+                if ( current == null || reference.compareTo( current ) > 0 )
+                {
+                    m_reference = reference;
+                }
+                else if ( reference.equals( current ) )
+                {
+                    // the ranking may have been lowered
+                    m_reference = selectReference( null );
+                }
+                break;
+
+            case ServiceEvent.UNREGISTERING:
+                if ( reference.equals( m_reference ) )
+                {
+                    m_reference = selectReference( reference );
+                }
+                break;
+        }
+    }
+
+
+    /**
+     * Returns the LogService with the highest ranking except for the given
+     * one which is being unregistered.
+     */
+    private ServiceReference selectReference( final ServiceReference unregistering )
+    {
+        final ServiceReference[] references;
+        try
+        {
+            references = m_context.getServiceReferences( Activator.LOGSERVICE_CLASS, null );
+        }
+        catch ( InvalidSyntaxException ise )
+        {
+            // not expected, there is no filter
+            return null;
+        }
+        catch ( IllegalStateException ise )
+        {
+            // bundle context has already been invalidated
+            return null;
+        }
+
+        ServiceReference selected = null;
+        if ( references != null )
+        {
+            for ( int i = 0; i < references.length; i++ )
+            {
+                if ( !references[i].equals( unregistering )
+                    && ( selected == null || references[i].compareTo( selected ) > 0 ) )
+                {
+                    selected = references[i];
+                }
+            }
+        }
+        return selected;
+    }
+
+
+    /**
+     * The <code>BundleLogger</code> is the view of a single bundle onto the
+     * LogService tracked by the {@link LogServiceHolder}.
+     */
+    final class BundleLogger
+    {
+
+        private final BundleContext m_bundleContext;
+
+        // the LogService acquired by this view and its reference, guarded by this
+        private ServiceReference m_loggerReference;
+        private LogService m_logger;
+
+        private boolean m_closed;
+
+
+        private BundleLogger( final BundleContext bundleContext )
+        {
+            m_bundleContext = bundleContext;
+        }
+
+
+        /**
+         * Logs the message through the LogService on behalf of the bundle.
+         * Returns <code>false</code> if no LogService is available, in which
+         * case the caller has to log the message otherwise.
+         */
+        boolean log( final int level, final String message, final Throwable ex )
+        {
+            final LogService logger = getLogService();
+            if ( logger == null )
+            {
+                return false;
+            }
+
+            logger.log( level, message, ex );
+            return true;
+        }
+
+
+        /**
+         * Releases the LogService used by this view. The view does not log
+         * through the LogService afterwards.
+         */
+        synchronized void close()
+        {
+            m_closed = true;
+            release();
+        }
+
+
+        private synchronized LogService getLogService()
+        {
+            final ServiceReference reference = m_reference;
+            if ( m_closed || reference == null )
+            {
+                release();
+                return null;
+            }
+
+            if ( !reference.equals( m_loggerReference ) )
+            {
+                release();
+                try
+                {
+                    m_logger = ( LogService ) m_bundleContext.getService( reference );
+                    m_loggerReference = ( m_logger != null ) ? reference : null;
+                }
+                catch ( IllegalStateException ise )
+                {
+                    // bundle context has already been invalidated
+                    m_logger = null;
+                }
+            }
+            return m_logger;
+        }
+
+
+        private void release()
+        {
+            if ( m_loggerReference != null )
+            {
+                try
+                {
+                    m_bundleContext.ungetService( m_loggerReference );
+                }
+                catch ( IllegalStateException ise )
+                {
+                    // bundle context has already been invalidated
+                }
+                m_loggerReference = null;
+                m_logger = null;
+            }
+        }
+    }
+}
@@ -31,6 +31,8 @@ import org.apache.felix.scr.Component;
 import org.apache.felix.scr.Reference;
 import org.apache.felix.scr.ScrService;
 import org.apache.felix.scr.impl.config.ScrConfiguration;
+import org.apache.felix.scr.impl.helper.FilterCache;
+import org.apache.felix.scr.impl.manager.AbstractComponentManager;
 import org.apache.felix.shell.Command;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -45,6 +47,7 @@ public class ScrCommand implements Command
     private static final String ENABLE_CMD = "enable";
     private static final String DISABLE_CMD = "disable";
     private static final String CONFIG_CMD = "config";
+    private static final String RELOAD_CMD = "reload";
 
     private final BundleContext bundleContext;
     private final ScrService scrService;
@@ -121,6 +124,10 @@ public class ScrCommand implements Command
             {
                 config( out );
             }
+            else if ( command.equals( RELOAD_CMD ) )
+            {
+                reload( st, out, err );
+            }
             else
             {
                 err.println( "Unknown command: " + command );
@@ -256,6 +263,24 @@ public class ScrCommand implements Command
             }
             out.print( "Service Type: " );
             out.println( component.isServiceFactory() ? "service factory" : "service" );
+
+            if ( component instanceof AbstractComponentManager
+                && ( component.isServiceFactory() || !component.isImmediate() ) )
+            {
+                final AbstractComponentManager acm = ( AbstractComponentManager ) component;
+                out.print( "Evicted Instances: " );
+                out.println( acm.getEvictedInstanceCount() + " (" + acm.getEvictionCount() + " evictions)" );
+            }
+        }
+
+        if ( component instanceof AbstractComponentManager )
+        {
+            final int deferred = ( ( AbstractComponentManager ) component ).getDeferredDependencyManagerCount();
+            if ( deferred > 0 )
+            {
+                out.print( "Deferred Dependency Managers: " );
+                out.println( deferred );
+            }
         }
 
         Reference[] refs = component.getReferences();
@@ -348,13 +373,51 @@ public class ScrCommand implements Command
     }
 
 
+    private void reload( StringTokenizer st, PrintStream out, PrintStream err )
+    {
+        if ( !st.hasMoreTokens() )
+        {
+            err.println( "Missing bundle ID" );
+            return;
+        }
+
+        final String bundleIdArg = st.nextToken();
+        final Bundle bundle;
+        try
+        {
+            bundle = bundleContext.getBundle( Long.parseLong( bundleIdArg ) );
+        }
+        catch ( NumberFormatException nfe )
+        {
+            err.println( "Bundle ID must be a number: " + bundleIdArg );
+            return;
+        }
+
+        final Activator activator = Activator.getInstance();
+        if ( bundle == null )
+        {
+            err.println( "Missing bundle with ID " + bundleIdArg );
+        }
+        else if ( activator != null && activator.reloadComponents( bundle ) )
+        {
+            out.println( "Components of bundle " + bundleIdArg + " reloaded" );
+        }
+        else
+        {
+            out.println( "Bundle " + bundleIdArg + " has no components loaded" );
+        }
+    }
+
+
     private void config( PrintStream out )
     {
         out.print( "Log Level: " );
         out.println( scrConfiguration.getLogLevel() );
         out.print( "Component Factory with Factory Configuration: " );
         out.println( scrConfiguration.isFactoryEnabled() ? "Supported" : "Unsupported" );
-        out.print( "Update bound Service Properties: " );
+        out.print( "Target Filter Cache: " );
+        out.println( FilterCache.getSize() + " filters (" + FilterCache.getHitCount() + " hits, "
+            + FilterCache.getMissCount() + " misses)" );
     }
 
 
@@ -407,6 +470,16 @@ public class ScrCommand implements Command
             out.println( "This command lists the current SCR configuration." );
             out.println( "" );
         }
+        else if ( command.equals( RELOAD_CMD ) )
+        {
+            out.println( "" );
+            out.println( "scr " + RELOAD_CMD + " <bundleId>" );
+            out.println( "" );
+            out.println( "This command reads the component descriptors of the bundle\n"
+                + "whose bundle ID is given as command argument again and\n"
+                + "updates its components from the changed declarations." );
+            out.println( "" );
+        }
         else
         {
             out.println( "scr " + HELP_CMD + " [" + LIST_CMD + "]" );
@@ -415,6 +488,7 @@ public class ScrCommand implements Command
             out.println( "scr " + ENABLE_CMD + " <componentId>" );
             out.println( "scr " + DISABLE_CMD + " <componentId>" );
             out.println( "scr " + CONFIG_CMD );
+            out.println( "scr " + RELOAD_CMD + " <bundleId>" );
         }
     }
 
@@ -469,6 +543,8 @@ public class ScrCommand implements Command
                 return "disposing";
             case Component.STATE_DISPOSED:
                 return "disposed";
+            case Component.STATE_FAILED_BACKOFF:
+                return "failed-backoff";
             default:
                 return String.valueOf( state );
         }
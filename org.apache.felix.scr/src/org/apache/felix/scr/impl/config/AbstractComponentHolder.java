@@ -19,7 +19,9 @@
 package org.apache.felix.scr.impl.config;
 
 
+import org.apache.felix.scr.Component;
 import org.apache.felix.scr.impl.BundleComponentActivator;
+import org.apache.felix.scr.impl.manager.AbstractComponentManager;
 import org.apache.felix.scr.impl.manager.DelayedComponentManager;
 import org.apache.felix.scr.impl.manager.ImmediateComponentManager;
 import org.apache.felix.scr.impl.manager.ServiceFactoryComponentManager;
@@ -31,7 +33,7 @@ abstract class AbstractComponentHolder implements ComponentHolder
 
     private final BundleComponentActivator m_activator;
 
-    private final ComponentMetadata m_componentMetadata;
+    private volatile ComponentMetadata m_componentMetadata;
 
 
     public AbstractComponentHolder( final BundleComponentActivator activator, final ComponentMetadata metadata )
@@ -75,6 +77,24 @@ abstract class AbstractComponentHolder implements ComponentHolder
     }
 
 
+    public boolean updateComponentMetadata( final ComponentMetadata metadata, final int changes )
+    {
+        // components created from now on use the new metadata
+        m_componentMetadata = metadata;
+
+        final Component[] components = getComponents();
+        for ( int i = 0; i < components.length; i++ )
+        {
+            if ( components[i] != null )
+            {
+                ( ( AbstractComponentManager ) components[i] ).updateMetadata( metadata, changes );
+            }
+        }
+
+        return true;
+    }
+
+
     public final BundleComponentActivator getActivator()
     {
         return m_activator;
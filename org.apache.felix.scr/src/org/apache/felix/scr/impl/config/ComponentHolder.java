@@ -70,6 +70,7 @@ public interface ComponentHolder
      */
     void configurationUpdated( String pid, Dictionary props );
 
+
     /**
      * Returns all <code>Component</code> instances held by this holder.
      */
@@ -94,6 +95,19 @@ public interface ComponentHolder
     void disposeComponents( int reason );
 
 
+    /**
+     * Applies a new declaration of the held component, which differs from the
+     * current declaration only in the ways described by the
+     * <code>changes</code> flags (see
+     * {@link ComponentMetadata#getChanges(ComponentMetadata)}).
+     *
+     * @return <code>true</code> if the changes have been applied or
+     *      <code>false</code> if this holder cannot apply the changes
+     *      incrementally, in which case the components have to be recreated.
+     */
+    boolean updateComponentMetadata( ComponentMetadata metadata, int changes );
+
+
     /**
      * Informs the holder that the component has been disposed as a result of
      * calling the dispose method.
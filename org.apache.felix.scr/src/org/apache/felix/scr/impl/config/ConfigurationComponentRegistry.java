@@ -20,8 +20,14 @@ package org.apache.felix.scr.impl.config;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.felix.scr.impl.Activator;
 import org.apache.felix.scr.impl.BundleComponentActivator;
@@ -54,6 +60,10 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
     // the bundle context
     private BundleContext m_bundleContext;
 
+    // the configuration updates waiting for the coalescing delay to pass
+    // indexed by PID. The values are the tasks to apply the updates.
+    private final Map m_pendingUpdates = new HashMap();
+
 
     public ConfigurationComponentRegistry( final BundleContext context )
     {
@@ -83,6 +93,11 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
     {
         m_bundleContext.removeServiceListener( this );
 
+        synchronized ( m_pendingUpdates )
+        {
+            m_pendingUpdates.clear();
+        }
+
         if ( m_registration != null )
         {
             m_registration.unregister();
@@ -130,12 +145,14 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
                     final Configuration[] factory = findFactoryConfigurations( ca, name );
                     if ( factory != null )
                     {
+                        // apply all factory configurations at once
+                        final Map configurations = new LinkedHashMap();
                         for ( int i = 0; i < factory.length; i++ )
                         {
                             final String pid = factory[i].getPid();
-                            final Dictionary props = getConfiguration( ca, pid, bundleLocation );
-                            holder.configurationUpdated( pid, props );
+                            configurations.put( pid, getConfiguration( ca, pid, bundleLocation ) );
                         }
+                        configurationsUpdated( holder, configurations );
                     }
                     else
                     {
@@ -166,6 +183,11 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
      * implementation is mainly interested in the Configuration Admin service
      * being registered <i>after</i> the Declarative Services setup to be able
      * to forward existing configuration.
+     * <p>
+     * All configurations are listed once and grouped by the component holder
+     * they apply to. The groups are then applied to the component holders in
+     * parallel on the component actor thread, such that each component is
+     * reconfigured once and the framework event thread is not blocked.
      *
      * @param event The service change event
      */
@@ -193,14 +215,106 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
 
             if ( configs != null )
             {
-                for ( int i = 0; i < configs.length; i++ )
+                configurationsAvailable( configs );
+            }
+        }
+    }
+
+
+    /**
+     * Groups the given configurations by the component holders they apply
+     * to and schedules applying each group to its holder. The groups of the
+     * holders of a bundle are applied in parallel by a single task scheduled
+     * through the activator of that bundle. Thus a bundle being stopped only
+     * drops the configurations of its own components.
+     */
+    private void configurationsAvailable( final Configuration[] configs )
+    {
+        final Map groups = new LinkedHashMap();
+        for ( int i = 0; i < configs.length; i++ )
+        {
+            final String pid = configs[i].getPid();
+            final String factoryPid = configs[i].getFactoryPid();
+            final ComponentHolder cm = getComponentHolder( ( factoryPid == null ) ? pid : factoryPid );
+            if ( cm != null && !cm.getComponentMetadata().isConfigurationIgnored() )
+            {
+                List group = ( List ) groups.get( cm );
+                if ( group == null )
                 {
-                    ConfigurationEvent cfgEvent = new ConfigurationEvent( caRef, ConfigurationEvent.CM_UPDATED,
-                        configs[i].getFactoryPid(), configs[i].getPid() );
-                    configurationEvent( cfgEvent );
+                    group = new ArrayList();
+                    groups.put( cm, group );
                 }
+                group.add( configs[i] );
             }
         }
+
+        // the update tasks indexed by the activator to schedule them
+        final Map activatorTasks = new LinkedHashMap();
+        for ( Iterator gi = groups.entrySet().iterator(); gi.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) gi.next();
+            final ComponentHolder cm = ( ComponentHolder ) entry.getKey();
+            final BundleComponentActivator activator = cm.getActivator();
+            if ( activator == null )
+            {
+                continue;
+            }
+
+            final List group = ( List ) entry.getValue();
+            final Configuration[] holderConfigs = ( Configuration[] ) group.toArray( new Configuration[group.size()] );
+            List tasks = ( List ) activatorTasks.get( activator );
+            if ( tasks == null )
+            {
+                tasks = new ArrayList();
+                activatorTasks.put( activator, tasks );
+            }
+            tasks.add( new Runnable()
+            {
+                public void run()
+                {
+                    updateConfigurations( cm, holderConfigs );
+                }
+
+
+                public String toString()
+                {
+                    return "UPDATE of " + holderConfigs.length + " Configurations for "
+                        + cm.getComponentMetadata().getName();
+                }
+            } );
+        }
+
+        if ( activatorTasks.isEmpty() )
+        {
+            return;
+        }
+
+        Activator.log( LogService.LOG_DEBUG, null, "serviceChanged: Applying " + configs.length
+            + " Configurations to " + groups.size() + " components of " + activatorTasks.size() + " bundles", null );
+
+        for ( Iterator ai = activatorTasks.entrySet().iterator(); ai.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) ai.next();
+            final BundleComponentActivator activator = ( BundleComponentActivator ) entry.getKey();
+            final List taskList = ( List ) entry.getValue();
+            final Runnable[] tasks = ( Runnable[] ) taskList.toArray( new Runnable[taskList.size()] );
+
+            // not scheduled if the bundle is being stopped, in which case
+            // its components are disposed off anyway
+            activator.schedule( new Runnable()
+            {
+                public void run()
+                {
+                    activator.runParallel( tasks );
+                }
+
+
+                public String toString()
+                {
+                    return "UPDATE of Configurations for " + tasks.length + " components";
+                }
+            } );
+        }
     }
 
 
@@ -214,9 +328,8 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
      * called for existing configurations upon startup of the Configuration
      * Admin service. To bridge this gap, the
      * {@link #serviceChanged(ServiceEvent)} method called when the
-     * Configuration Admin service is registered calls this method for all
-     * existing configurations to be able to foward existing configurations
-     * to components.
+     * Configuration Admin service is registered forwards all existing
+     * configurations to the components in bulk.
      *
      * @param event The configuration change event
      */
@@ -244,57 +357,278 @@ public class ConfigurationComponentRegistry extends ComponentRegistry implements
             switch ( event.getType() )
             {
                 case ConfigurationEvent.CM_DELETED:
+                    cancelConfigurationUpdate( pid );
                     cm.configurationDeleted( pid );
                     break;
 
                 case ConfigurationEvent.CM_UPDATED:
-                    final BundleComponentActivator activator = cm.getActivator();
-                    if ( activator == null )
+                    scheduleConfigurationUpdate( cm, ( factoryPid == null ) ? pid : factoryPid, pid );
+                    break;
+
+                default:
+                    Activator.log( LogService.LOG_WARNING, null, "Unknown ConfigurationEvent type " + event.getType(),
+                        null );
+            }
+        }
+    }
+
+
+    /**
+     * Applies the configuration update for the given PID to the component
+     * holder unless coalescing of configuration updates is enabled. In this
+     * case applying the update is delayed by the coalescing delay and any
+     * further updates of the same PID during that time are collected into
+     * this pending update, which reads the latest configuration when it is
+     * finally applied.
+     *
+     * @param cm The component holder to update
+     * @param holderName The name of the component holder, that is the PID
+     *      or factory PID of the configuration
+     * @param pid The PID of the configuration
+     */
+    private void scheduleConfigurationUpdate( final ComponentHolder cm, final String holderName, final String pid )
+    {
+        final BundleComponentActivator activator = cm.getActivator();
+        if ( activator == null )
+        {
+            return;
+        }
+
+        final long delay = activator.getConfiguration().getConfigurationCoalesce();
+        if ( delay <= 0 )
+        {
+            updateConfiguration( cm, pid );
+            return;
+        }
+
+        final Runnable task;
+        synchronized ( m_pendingUpdates )
+        {
+            if ( m_pendingUpdates.containsKey( pid ) )
+            {
+                Activator.log( LogService.LOG_DEBUG, null, "configurationEvent: Coalescing UPDATE of Configuration PID="
+                    + pid, null );
+                return;
+            }
+
+            task = new Runnable()
+            {
+                public void run()
+                {
+                    synchronized ( m_pendingUpdates )
                     {
-                        break;
+                        // the update has been cancelled in the meantime
+                        if ( m_pendingUpdates.get( pid ) != this )
+                        {
+                            return;
+                        }
+                        m_pendingUpdates.remove( pid );
                     }
 
-                    final BundleContext bundleContext = activator.getBundleContext();
-                    if ( bundleContext == null )
+                    // the holder may have been replaced in the meantime
+                    final ComponentHolder holder = getComponentHolder( holderName );
+                    if ( holder != null )
                     {
-                        break;
+                        updateConfiguration( holder, pid );
                     }
+                }
+
+
+                public String toString()
+                {
+                    return "Coalesced UPDATE of Configuration PID=" + pid;
+                }
+            };
+            m_pendingUpdates.put( pid, task );
+        }
+
+        if ( !activator.schedule( task, delay ) )
+        {
+            // not scheduled, apply immediately
+            cancelConfigurationUpdate( pid );
+            updateConfiguration( cm, pid );
+        }
+    }
+
+
+    /**
+     * Drops a pending coalesced configuration update for the given PID.
+     */
+    private void cancelConfigurationUpdate( final String pid )
+    {
+        synchronized ( m_pendingUpdates )
+        {
+            m_pendingUpdates.remove( pid );
+        }
+    }
 
-                    final ServiceReference caRef = bundleContext.getServiceReference( CONFIGURATION_ADMIN );
-                    if ( caRef != null )
+
+    /**
+     * Reads the configuration with the given PID and provides it to the
+     * component holder.
+     */
+    private void updateConfiguration( final ComponentHolder cm, final String pid )
+    {
+        final BundleComponentActivator activator = cm.getActivator();
+        if ( activator == null )
+        {
+            return;
+        }
+
+        final BundleContext bundleContext = activator.getBundleContext();
+        if ( bundleContext == null )
+        {
+            return;
+        }
+
+        final ServiceReference caRef = bundleContext.getServiceReference( CONFIGURATION_ADMIN );
+        if ( caRef != null )
+        {
+            try
+            {
+                final ConfigurationAdmin ca = ( ConfigurationAdmin ) bundleContext.getService( caRef );
+                if ( ca != null )
+                {
+                    try
                     {
-                        try
+                        final Dictionary dict = getConfiguration( ca, pid, bundleContext.getBundle()
+                            .getLocation() );
+                        if ( dict != null )
                         {
-                            final ConfigurationAdmin ca = ( ConfigurationAdmin ) bundleContext.getService( caRef );
-                            if ( ca != null )
+                            cm.configurationUpdated( pid, dict );
+                        }
+                    }
+                    finally
+                    {
+                        bundleContext.ungetService( caRef );
+                    }
+                }
+            }
+            catch ( IllegalStateException ise )
+            {
+                // If the bundle has been stopped conurrently
+            }
+        }
+    }
+
+
+    /**
+     * Configures the components of the holder with the configurations of the
+     * given PIDs. A {@link ConfiguredComponentHolder} applies them in
+     * parallel, other holders get them one after the other through
+     * {@link ComponentHolder#configurationUpdated(String, Dictionary)}.
+     */
+    private static void configurationsUpdated( final ComponentHolder holder, final Map configurations )
+    {
+        if ( holder instanceof ConfiguredComponentHolder )
+        {
+            ( ( ConfiguredComponentHolder ) holder ).configurationsUpdated( configurations );
+            return;
+        }
+
+        for ( Iterator ci = configurations.entrySet().iterator(); ci.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) ci.next();
+            holder.configurationUpdated( ( String ) entry.getKey(), ( Dictionary ) entry.getValue() );
+        }
+    }
+
+
+    /**
+     * Reads the given configurations and provides them to the component
+     * holder at once. The Configuration Admin service is only acquired once
+     * for all configurations.
+     */
+    private void updateConfigurations( final ComponentHolder cm, final Configuration[] configs )
+    {
+        final BundleComponentActivator activator = cm.getActivator();
+        if ( activator == null )
+        {
+            return;
+        }
+
+        final BundleContext bundleContext = activator.getBundleContext();
+        if ( bundleContext == null )
+        {
+            return;
+        }
+
+        final ServiceReference caRef = bundleContext.getServiceReference( CONFIGURATION_ADMIN );
+        if ( caRef != null )
+        {
+            try
+            {
+                final ConfigurationAdmin ca = ( ConfigurationAdmin ) bundleContext.getService( caRef );
+                if ( ca != null )
+                {
+                    try
+                    {
+                        final String bundleLocation = bundleContext.getBundle().getLocation();
+                        final Map configurations = new LinkedHashMap();
+                        for ( int i = 0; i < configs.length; i++ )
+                        {
+                            final String pid = configs[i].getPid();
+
+                            // this update supersedes any pending update
+                            cancelConfigurationUpdate( pid );
+
+                            final Dictionary dict = getConfiguration( ca, configs[i], bundleLocation );
+                            if ( dict != null )
                             {
-                                try
-                                {
-                                    final Dictionary dict = getConfiguration( ca, pid, bundleContext.getBundle()
-                                        .getLocation() );
-                                    if ( dict != null )
-                                    {
-                                        cm.configurationUpdated( pid, dict );
-                                    }
-                                }
-                                finally
-                                {
-                                    bundleContext.ungetService( caRef );
-                                }
+                                configurations.put( pid, dict );
                             }
                         }
-                        catch ( IllegalStateException ise )
+
+                        if ( !configurations.isEmpty() )
                         {
-                            // If the bundle has been stopped conurrently
+                            configurationsUpdated( cm, configurations );
                         }
                     }
-                    break;
+                    finally
+                    {
+                        bundleContext.ungetService( caRef );
+                    }
+                }
+            }
+            catch ( IllegalStateException ise )
+            {
+                // If the bundle has been stopped conurrently
+            }
+        }
+    }
 
-                default:
-                    Activator.log( LogService.LOG_WARNING, null, "Unknown ConfigurationEvent type " + event.getType(),
-                        null );
+
+    /**
+     * Returns the properties of the given configuration if it may be used by
+     * the bundle with the given location. A configuration not bound to any
+     * location yet is read through the Configuration Admin service which
+     * binds it to the bundle.
+     */
+    private Dictionary getConfiguration( final ConfigurationAdmin ca, final Configuration cfg,
+        final String bundleLocation )
+    {
+        try
+        {
+            final String cfgLocation = cfg.getBundleLocation();
+            if ( cfgLocation == null )
+            {
+                return getConfiguration( ca, cfg.getPid(), bundleLocation );
+            }
+            if ( bundleLocation.equals( cfgLocation ) || Activator.hasCtWorkaround() )
+            {
+                return cfg.getProperties();
             }
+
+            // configuration belongs to another bundle, cannot be used here
+            Activator.log( LogService.LOG_ERROR, null, "Cannot use configuration pid=" + cfg.getPid()
+                + " for bundle " + bundleLocation + " because it belongs to bundle " + cfgLocation, null );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // configuration has been deleted in the meantime
         }
+
+        return null;
     }
 
 
@@ -19,10 +19,12 @@
 package org.apache.felix.scr.impl.config;
 
 
+import java.util.ArrayList;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.felix.scr.Component;
 import org.apache.felix.scr.impl.BundleComponentActivator;
@@ -63,6 +65,19 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
      */
     private final Map m_components;
 
+    /**
+     * The reverse index of the {@link #m_components} map: The indices are
+     * the {@link ImmediateComponentManager component instances} and the
+     * values are the PIDs of the configurations. This allows removing
+     * disposed components without searching the map.
+     */
+    private final Map m_componentPids;
+
+    /**
+     * Guards replacing the {@link #m_singleComponent}.
+     */
+    private final Object m_singleComponentLock = new Object();
+
     /**
      * The special component used if there is no configuration or a singleton
      * configuration. This field is only <code>null</code> once all components
@@ -79,7 +94,7 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
      * by this field is also contained in the map</li>
      * <ul>
      */
-    private ImmediateComponentManager m_singleComponent;
+    private volatile ImmediateComponentManager m_singleComponent;
 
     /**
      * Whether components have already been enabled by calling the
@@ -88,14 +103,15 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
      * {@link #configurationUpdated(String, Dictionary)} method are also
      * enabled. Otherwise they are not enabled immediately.
      */
-    private boolean m_enabled;
+    private volatile boolean m_enabled;
 
 
     ConfiguredComponentHolder( final BundleComponentActivator activator, final ComponentMetadata metadata )
     {
         super( activator, metadata );
 
-        this.m_components = new HashMap();
+        this.m_components = new ConcurrentHashMap();
+        this.m_componentPids = new ConcurrentHashMap();
         this.m_singleComponent = createComponentManager();
         this.m_enabled = false;
     }
@@ -143,23 +159,26 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
                 if ( m_singleComponent == icm )
                 {
 
-                    // if the single component is the last remaining, deconfi
-                    if ( m_components.isEmpty() )
+                    synchronized ( m_singleComponentLock )
                     {
+                        final ImmediateComponentManager other = getAnyComponentManager();
+                        if ( other == null )
+                        {
 
-                        // if the single component is the last remaining
-                        // deconfigure it
-                        icm.reconfigure( null );
-                        icm = null;
+                            // if the single component is the last remaining
+                            // deconfigure it
+                            icm.reconfigure( null );
+                            icm = null;
 
-                    }
-                    else
-                    {
+                        }
+                        else
+                        {
 
-                        // replace the single component field with another
-                        // entry from the map
-                        m_singleComponent = ( ImmediateComponentManager ) m_components.values().iterator().next();
+                            // replace the single component field with another
+                            // entry from the map
+                            m_singleComponent = other;
 
+                        }
                     }
                 }
 
@@ -212,30 +231,69 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
             else
             {
                 // factory configuration created
-                final ImmediateComponentManager newIcm;
-                if ( !m_singleComponent.hasConfiguration() )
-                {
-                    // configure the single instance if this is not configured
-                    newIcm = m_singleComponent;
-                }
-                else
+                configureNewComponent( createComponentManager( pid ), props );
+            }
+        }
+    }
+
+
+    /**
+     * Configures components with many configurations at once. The singleton
+     * configuration, if contained, is applied first. Then component instances
+     * for new factory configurations are created and all factory
+     * configurations are applied in parallel, each component instance being
+     * reconfigured (and enabled if new) exactly once.
+     */
+    public void configurationsUpdated( final Map configurations )
+    {
+        // FELIX-2231: nothing to do any more, all components have been disposed off
+        if ( m_singleComponent == null )
+        {
+            return;
+        }
+
+        final List tasks = new ArrayList();
+        for ( Iterator ci = configurations.entrySet().iterator(); ci.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) ci.next();
+            final String pid = ( String ) entry.getKey();
+            final Dictionary props = ( Dictionary ) entry.getValue();
+
+            if ( pid.equals( getComponentName() ) )
+            {
+                // singleton configuration has pid equal to component name
+                m_singleComponent.reconfigure( props );
+                continue;
+            }
+
+            final ImmediateComponentManager existing = getComponentManager( pid );
+            final boolean created = existing == null;
+            final ImmediateComponentManager icm = created ? createComponentManager( pid ) : existing;
+            tasks.add( new Runnable()
+            {
+                public void run()
                 {
-                    // otherwise create a new instance to provide the config to
-                    newIcm = createComponentManager();
+                    if ( created )
+                    {
+                        configureNewComponent( icm, props );
+                    }
+                    else
+                    {
+                        icm.reconfigure( props );
+                    }
                 }
 
-                // configure the component
-                newIcm.reconfigure( props );
 
-                // enable the component if it is initially enabled
-                if ( m_enabled && getComponentMetadata().isEnabled() )
+                public String toString()
                 {
-                    newIcm.enable();
+                    return "Configure " + getComponentName() + " with Configuration PID=" + pid;
                 }
+            } );
+        }
 
-                // store the component in the map
-                putComponentManager( pid, newIcm );
-            }
+        if ( !tasks.isEmpty() )
+        {
+            getActivator().runParallel( ( Runnable[] ) tasks.toArray( new Runnable[tasks.size()] ) );
         }
     }
 
@@ -311,36 +369,31 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
     public void disposed( ImmediateComponentManager component )
     {
         // ensure the component is removed from the components map
-        synchronized ( m_components )
+        final Object pid = m_componentPids.remove( component );
+        if ( pid != null )
         {
-            if ( !m_components.isEmpty() )
-            {
-                for ( Iterator vi = m_components.values().iterator(); vi.hasNext(); )
-                {
-                    if ( component == vi.next() )
-                    {
-                        vi.remove();
-                        break;
-                    }
-                }
-            }
+            m_components.remove( pid );
         }
 
         // if the component is the single component, we have to replace it
         // by another entry in the map
         if ( component == m_singleComponent )
         {
-            synchronized ( m_components )
+            synchronized ( m_singleComponentLock )
             {
-                if ( m_components.isEmpty() )
-                {
-                    // now what ??
-                    // is it correct to create a new manager ???
-                    m_singleComponent = createComponentManager();
-                }
-                else
+                if ( component == m_singleComponent )
                 {
-                    m_singleComponent = ( ImmediateComponentManager ) m_components.values().iterator().next();
+                    final ImmediateComponentManager other = getAnyComponentManager();
+                    if ( other == null )
+                    {
+                        // now what ??
+                        // is it correct to create a new manager ???
+                        m_singleComponent = createComponentManager();
+                    }
+                    else
+                    {
+                        m_singleComponent = other;
+                    }
                 }
             }
         }
@@ -349,30 +402,84 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
 
     //---------- internal
 
-    private ImmediateComponentManager getComponentManager( String pid )
+    /**
+     * Returns the component to be configured by a new factory configuration
+     * with the given PID and registers it with that PID. This is the single
+     * component unless it is already configured, in which case a new
+     * component is created.
+     */
+    private ImmediateComponentManager createComponentManager( final String pid )
     {
-        synchronized ( m_components )
+        final ImmediateComponentManager icm;
+        synchronized ( m_singleComponentLock )
         {
-            return ( ImmediateComponentManager ) m_components.get( pid );
+            if ( !m_singleComponent.hasConfiguration() && !m_componentPids.containsKey( m_singleComponent ) )
+            {
+                // configure the single instance if this is not configured
+                icm = m_singleComponent;
+            }
+            else
+            {
+                // otherwise create a new instance to provide the config to
+                icm = createComponentManager();
+            }
+
+            // store the component in the map
+            putComponentManager( pid, icm );
         }
+        return icm;
     }
 
 
-    private ImmediateComponentManager removeComponentManager( String pid )
+    /**
+     * Configures a component created for a new factory configuration and
+     * enables it if the components of this holder are enabled.
+     */
+    private void configureNewComponent( final ImmediateComponentManager icm, final Dictionary props )
     {
-        synchronized ( m_components )
+        // configure the component
+        icm.reconfigure( props );
+
+        // enable the component if it is initially enabled
+        if ( m_enabled && getComponentMetadata().isEnabled() )
         {
-            return ( ImmediateComponentManager ) m_components.remove( pid );
+            icm.enable();
         }
     }
 
 
-    private void putComponentManager( String pid, ImmediateComponentManager componentManager )
+    private ImmediateComponentManager getComponentManager( String pid )
     {
-        synchronized ( m_components )
+        return ( ImmediateComponentManager ) m_components.get( pid );
+    }
+
+
+    /**
+     * Returns any component from the map or <code>null</code> if the map is
+     * empty.
+     */
+    private ImmediateComponentManager getAnyComponentManager()
+    {
+        final Iterator ci = m_components.values().iterator();
+        return ci.hasNext() ? ( ImmediateComponentManager ) ci.next() : null;
+    }
+
+
+    private ImmediateComponentManager removeComponentManager( String pid )
+    {
+        final ImmediateComponentManager icm = ( ImmediateComponentManager ) m_components.remove( pid );
+        if ( icm != null )
         {
-            m_components.put( pid, componentManager );
+            m_componentPids.remove( icm );
         }
+        return icm;
+    }
+
+
+    private void putComponentManager( String pid, ImmediateComponentManager componentManager )
+    {
+        m_components.put( pid, componentManager );
+        m_componentPids.put( componentManager, pid );
     }
 
 
@@ -383,23 +490,21 @@ public class ConfiguredComponentHolder extends AbstractComponentHolder
      */
     private ImmediateComponentManager[] getComponentManagers( final boolean clear )
     {
-        synchronized ( m_components )
+        // fast exit if there is no component in the map
+        if ( m_components.isEmpty() )
         {
-            // fast exit if there is no component in the map
-            if ( m_components.isEmpty() )
-            {
-                return null;
-            }
-
-            final ImmediateComponentManager[] cm = new ImmediateComponentManager[m_components.size()];
-            m_components.values().toArray( cm );
+            return null;
+        }
 
-            if ( clear )
-            {
-                m_components.clear();
-            }
+        final ImmediateComponentManager[] cm = ( ImmediateComponentManager[] ) m_components.values().toArray(
+            new ImmediateComponentManager[0] );
 
-            return cm;
+        if ( clear )
+        {
+            m_components.clear();
+            m_componentPids.clear();
         }
+
+        return ( cm.length > 0 ) ? cm : null;
     }
 }
@@ -36,14 +36,50 @@ public class MetaTypeProviderImpl
 
     private final boolean factoryEnabled;
 
+    private final int factoryPoolSize;
+
+    private final boolean preload;
+
+    private final long backoff;
+
+    private final long backoffMax;
+
+    private final long configurationCoalesce;
+
+    private final long idleTimeout;
+
+    private final int idleHeapThreshold;
+
+    private final boolean fastShutdown;
+
+    private final boolean asyncLoading;
+
     private final ManagedService delegatee;
 
     public MetaTypeProviderImpl(final int logLevel,
                                 final boolean factoryEnabled,
+                                final int factoryPoolSize,
+                                final boolean preload,
+                                final long backoff,
+                                final long backoffMax,
+                                final long configurationCoalesce,
+                                final long idleTimeout,
+                                final int idleHeapThreshold,
+                                final boolean fastShutdown,
+                                final boolean asyncLoading,
                                 final ManagedService delegatee)
     {
         this.logLevel = logLevel;
         this.factoryEnabled = factoryEnabled;
+        this.factoryPoolSize = factoryPoolSize;
+        this.preload = preload;
+        this.backoff = backoff;
+        this.backoffMax = backoffMax;
+        this.configurationCoalesce = configurationCoalesce;
+        this.idleTimeout = idleTimeout;
+        this.idleHeapThreshold = idleHeapThreshold;
+        this.fastShutdown = fastShutdown;
+        this.asyncLoading = asyncLoading;
         this.delegatee = delegatee;
     }
 
@@ -91,6 +127,65 @@ public class MetaTypeProviderImpl
                 "Services implementations. The default value is false to disable this feature.",
                 this.factoryEnabled ) );
 
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_FACTORY_POOL, "Factory Instance Pool",
+                "Number of component instances each Component Factory prepares ahead of newInstance calls by " +
+                "loading the implementation class and resolving the component methods. Prepared instances are " +
+                "only configured, activated and registered when handed out. The pool is refilled in the " +
+                "background. The default value is 0 to prepare component instances only when requested.",
+                AttributeDefinition.INTEGER, new String[] {String.valueOf(this.factoryPoolSize)}, 0, null, null ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_PRELOAD, "Preload Components",
+                "Whether or not to load the implementation class and to look up the constructor and component " +
+                "methods of components waiting for their dependencies in the background. This reduces the time " +
+                "needed to activate the component once its dependencies are satisfied. The default value is false " +
+                "to load the classes only when activating the components.",
+                this.preload ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_BACKOFF, "Activation Back-Off",
+                "Initial delay in milliseconds before activation of a component is retried after creating the " +
+                "component instance failed. The delay doubles with each consecutive failure and service events " +
+                "do not activate the component while it is backed off. The default value is 0 to disable back-off " +
+                "and retry activation on the next service event as required by the specification.",
+                AttributeDefinition.LONG, new String[] {String.valueOf(this.backoff)}, 0, null, null ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_BACKOFF_MAX, "Maximum Activation Back-Off",
+                "Maximum delay in milliseconds before activation of a failing component is retried. The default " +
+                "value is 300000 (5 minutes).",
+                AttributeDefinition.LONG, new String[] {String.valueOf(this.backoffMax)}, 0, null, null ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_CONFIGURATION_COALESCE,
+                "Configuration Update Coalescing",
+                "Time in milliseconds during which repeated updates of the same configuration are collected such " +
+                "that only the latest configuration is applied to the components. The default value is 0 to apply " +
+                "each configuration update immediately.",
+                AttributeDefinition.LONG, new String[] {String.valueOf(this.configurationCoalesce)}, 0, null, null ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_IDLE_TIMEOUT, "Idle Instance Timeout",
+                "Time in milliseconds after which the instances of delayed and service factory components no " +
+                "bundle is using are evicted if no bundle has acquired or released the service since. Evicted " +
+                "instances are recreated when the service is requested again. The default value is 0 to never " +
+                "evict idle instances.",
+                AttributeDefinition.LONG, new String[] {String.valueOf(this.idleTimeout)}, 0, null, null ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_IDLE_HEAP_THRESHOLD, "Idle Instance Heap Threshold",
+                "Heap usage in percent of the maximum heap size above which all instances of delayed and service " +
+                "factory components no bundle is using are evicted. Evicted instances are recreated when the service is requested " +
+                "again. The default value is 0 to not evict instances depending on heap usage.",
+                AttributeDefinition.INTEGER, new String[] {String.valueOf(this.idleHeapThreshold)}, 0, null, null ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_FAST_SHUTDOWN, "Fast Shutdown",
+                "Whether or not stopping the Declarative Services implementation is handled like the framework " +
+                "shutting down. Components are then disposed of without binding replacement services and without " +
+                "reactivating components. Unbind methods are still called. This mode is always used while the " +
+                "system bundle is stopping. The default value is false.",
+                this.fastShutdown ) );
+
+            adList.add( new AttributeDefinitionImpl( ScrConfiguration.PROP_ASYNC_LOADING, "Asynchronous Loading",
+                "Whether or not to load the components of bundles being started in the background instead of by " +
+                "the thread starting the bundle. This speeds up starting bundles with components but their " +
+                "components may not be available yet when Bundle.start() returns. The default value is false.",
+                this.asyncLoading ) );
+
             ocd = new ObjectClassDefinition()
             {
 
@@ -23,6 +23,7 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 
 import org.apache.felix.scr.impl.Activator;
+import org.apache.felix.scr.impl.manager.IdleInstanceEvictor;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.service.cm.ConfigurationException;
@@ -45,8 +46,29 @@ public class ScrConfiguration
 
     static final String PROP_FACTORY_ENABLED = "ds.factory.enabled";
 
+    static final String PROP_FACTORY_POOL = "ds.factory.pool";
+
     static final String PROP_LOGLEVEL = "ds.loglevel";
 
+    static final String PROP_PRELOAD = "ds.preload";
+
+    static final String PROP_BACKOFF = "ds.activation.backoff";
+
+    static final String PROP_BACKOFF_MAX = "ds.activation.backoff.max";
+
+    static final String PROP_CONFIGURATION_COALESCE = "ds.configuration.coalesce";
+
+    static final String PROP_IDLE_TIMEOUT = "ds.idle.timeout";
+
+    static final String PROP_IDLE_HEAP_THRESHOLD = "ds.idle.heap.threshold";
+
+    static final String PROP_FAST_SHUTDOWN = "ds.shutdown.fast";
+
+    static final String PROP_ASYNC_LOADING = "ds.loading.async";
+
+    // default maximum activation back-off: 5 minutes
+    static final long DEFAULT_BACKOFF_MAX = 5 * 60 * 1000L;
+
     // framework property to enable the CT workarounds (see FELIX-2526)
     private static final String PROP_CT_WORKAROUND = "ds.ctworkaround";
 
@@ -68,8 +90,29 @@ public class ScrConfiguration
 
     private boolean factoryEnabled;
 
+    private int factoryPoolSize;
+
+    private boolean preload;
+
+    private long backoff;
+
+    private long backoffMax;
+
+    private long configurationCoalesce;
+
+    private long idleTimeout;
+
+    private int idleHeapThreshold;
+
+    private boolean fastShutdown;
+
+    private boolean asyncLoading;
+
     private boolean ctWorkaround;
 
+    // notified of configuration updates to apply a changed heap threshold
+    private volatile IdleInstanceEvictor instanceEvictor;
+
     static final String PID = "org.apache.felix.scr.ScrService";
 
     public ScrConfiguration( BundleContext bundleContext )
@@ -117,11 +160,51 @@ public class ScrConfiguration
         {
             logLevel = getDefaultLogLevel();
             factoryEnabled = getDefaultFactoryEnabled();
+            factoryPoolSize = getDefaultFactoryPoolSize();
+            preload = getDefaultPreload();
+            backoff = getDefaultBackoff();
+            backoffMax = getDefaultBackoffMax();
+            configurationCoalesce = getDefaultConfigurationCoalesce();
+            idleTimeout = getDefaultIdleTimeout();
+            idleHeapThreshold = getDefaultIdleHeapThreshold();
+            fastShutdown = getDefaultFastShutdown();
+            asyncLoading = getDefaultAsyncLoading();
         }
         else
         {
             logLevel = getLogLevel( config.get( PROP_LOGLEVEL ) );
             factoryEnabled = VALUE_TRUE.equals( String.valueOf( config.get( PROP_FACTORY_ENABLED ) ) );
+            factoryPoolSize = ( int ) getLong( config.get( PROP_FACTORY_POOL ), 0 );
+            preload = VALUE_TRUE.equals( String.valueOf( config.get( PROP_PRELOAD ) ) );
+            backoff = getLong( config.get( PROP_BACKOFF ), 0 );
+            backoffMax = getLong( config.get( PROP_BACKOFF_MAX ), DEFAULT_BACKOFF_MAX );
+            configurationCoalesce = getLong( config.get( PROP_CONFIGURATION_COALESCE ), 0 );
+            idleTimeout = getLong( config.get( PROP_IDLE_TIMEOUT ), 0 );
+            idleHeapThreshold = ( int ) getLong( config.get( PROP_IDLE_HEAP_THRESHOLD ), 0 );
+            fastShutdown = VALUE_TRUE.equals( String.valueOf( config.get( PROP_FAST_SHUTDOWN ) ) );
+            asyncLoading = VALUE_TRUE.equals( String.valueOf( config.get( PROP_ASYNC_LOADING ) ) );
+        }
+
+        final IdleInstanceEvictor evictor = instanceEvictor;
+        if ( evictor != null )
+        {
+            evictor.configurationUpdated();
+        }
+    }
+
+
+    /**
+     * Sets the evictor of idle instances to be notified when the
+     * configuration is updated. Setting <code>null</code> stops notifying
+     * the evictor.
+     */
+    public void setInstanceEvictor( IdleInstanceEvictor evictor )
+    {
+        instanceEvictor = evictor;
+        if ( evictor != null )
+        {
+            // pick up updates between creating and setting the evictor
+            evictor.configurationUpdated();
         }
     }
 
@@ -137,6 +220,115 @@ public class ScrConfiguration
     }
 
 
+    /**
+     * Returns the number of prepared component managers each component
+     * factory keeps ready for <code>newInstance</code> calls. Prepared
+     * managers have the implementation class loaded and the component and
+     * binding methods resolved but are neither configured, enabled nor
+     * activated. If this is zero or negative, component managers are only
+     * created when requested.
+     */
+    public int getFactoryPoolSize()
+    {
+        return factoryPoolSize;
+    }
+
+
+    /**
+     * Returns <code>true</code> if the implementation classes, constructors
+     * and component methods of components waiting for their dependencies
+     * should be loaded ahead of activation.
+     */
+    public boolean isPreloadEnabled()
+    {
+        return preload;
+    }
+
+
+    /**
+     * Returns the initial delay in milliseconds before activation of a
+     * component is retried after creating the component failed. Each further
+     * consecutive failure doubles the delay up to the
+     * {@link #getActivationBackoffMax() maximum delay}. If this is zero or
+     * negative, failed components are not backed off and activation is
+     * retried on the next service event as required by the specification.
+     */
+    public long getActivationBackoff()
+    {
+        return backoff;
+    }
+
+
+    /**
+     * Returns the maximum delay in milliseconds before activation of a
+     * component is retried after creating the component failed.
+     */
+    public long getActivationBackoffMax()
+    {
+        return backoffMax;
+    }
+
+
+    /**
+     * Returns the time in milliseconds during which configuration updates
+     * for the same PID are coalesced such that only the latest configuration
+     * is applied to the components. If this is zero or negative, each
+     * configuration update is applied immediately.
+     */
+    public long getConfigurationCoalesce()
+    {
+        return configurationCoalesce;
+    }
+
+
+    /**
+     * Returns the time in milliseconds after which the instances of delayed
+     * and service factory components no bundle is using are evicted if no
+     * bundle has acquired or released the service in the meantime. If this
+     * is zero or negative, instances are not evicted for being idle.
+     */
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+
+    /**
+     * Returns the heap usage in percent of the maximum heap size above which
+     * the unused instances of all delayed and service factory components are
+     * evicted. If this is zero or negative, instances are not evicted
+     * depending on heap usage.
+     */
+    public int getIdleHeapThreshold()
+    {
+        return idleHeapThreshold;
+    }
+
+
+    /**
+     * Returns <code>true</code> if stopping the Declarative Services
+     * implementation is treated as the framework shutting down even if the
+     * system bundle is not stopping. In this case components are disposed
+     * of without binding replacement services or reactivating components.
+     * Unbind methods are still called.
+     */
+    public boolean isFastShutdown()
+    {
+        return fastShutdown;
+    }
+
+
+    /**
+     * Returns <code>true</code> if the components of bundles being started
+     * are loaded in the background instead of by the thread starting the
+     * bundle.
+     */
+    public boolean isAsyncLoading()
+    {
+        return asyncLoading;
+    }
+
+
     public static boolean hasCtWorkaround( final BundleContext bundleContext )
     {
         boolean ctWorkaround = VALUE_TRUE.equals( bundleContext.getProperty( PROP_CT_WORKAROUND ) );
@@ -165,6 +357,82 @@ public class ScrConfiguration
     }
 
 
+    private int getDefaultFactoryPoolSize()
+    {
+        return ( int ) getLong( bundleContext.getProperty( PROP_FACTORY_POOL ), 0 );
+    }
+
+
+    private boolean getDefaultPreload()
+    {
+        return VALUE_TRUE.equals( bundleContext.getProperty( PROP_PRELOAD ) );
+    }
+
+
+    private long getDefaultBackoff()
+    {
+        return getLong( bundleContext.getProperty( PROP_BACKOFF ), 0 );
+    }
+
+
+    private long getDefaultBackoffMax()
+    {
+        return getLong( bundleContext.getProperty( PROP_BACKOFF_MAX ), DEFAULT_BACKOFF_MAX );
+    }
+
+
+    private long getDefaultConfigurationCoalesce()
+    {
+        return getLong( bundleContext.getProperty( PROP_CONFIGURATION_COALESCE ), 0 );
+    }
+
+
+    private boolean getDefaultAsyncLoading()
+    {
+        return VALUE_TRUE.equals( bundleContext.getProperty( PROP_ASYNC_LOADING ) );
+    }
+
+
+    private boolean getDefaultFastShutdown()
+    {
+        return VALUE_TRUE.equals( bundleContext.getProperty( PROP_FAST_SHUTDOWN ) );
+    }
+
+
+    private long getDefaultIdleTimeout()
+    {
+        return getLong( bundleContext.getProperty( PROP_IDLE_TIMEOUT ), 0 );
+    }
+
+
+    private int getDefaultIdleHeapThreshold()
+    {
+        return ( int ) getLong( bundleContext.getProperty( PROP_IDLE_HEAP_THRESHOLD ), 0 );
+    }
+
+
+    private long getLong( final Object value, final long defaultValue )
+    {
+        if ( value instanceof Number )
+        {
+            return ( ( Number ) value ).longValue();
+        }
+        else if ( value != null )
+        {
+            try
+            {
+                return Long.parseLong( value.toString().trim() );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // fall back to default
+            }
+        }
+
+        return defaultValue;
+    }
+
+
     private int getDefaultLogLevel()
     {
         return getLogLevel( bundleContext.getProperty( PROP_LOGLEVEL ) );
@@ -230,7 +498,10 @@ public class ScrConfiguration
         try
         {
             return new MetaTypeProviderImpl( getDefaultLogLevel(), getDefaultFactoryEnabled(),
-                ( ManagedService ) managedService );
+                getDefaultFactoryPoolSize(), getDefaultPreload(),
+                getDefaultBackoff(), getDefaultBackoffMax(), getDefaultConfigurationCoalesce(),
+                getDefaultIdleTimeout(), getDefaultIdleHeapThreshold(), getDefaultFastShutdown(),
+                getDefaultAsyncLoading(), ( ManagedService ) managedService );
         }
         catch ( Throwable t )
         {
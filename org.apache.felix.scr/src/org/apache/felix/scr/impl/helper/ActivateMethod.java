@@ -122,7 +122,7 @@ public class ActivateMethod extends BaseMethod
             }
             else if ( parameterTypes[i] == MAP_CLASS )
             {
-                // note: getProperties() returns a ReadOnlyDictionary which is a Map
+                // note: getProperties() returns a LayeredDictionary or ReadOnlyDictionary which are Maps
                 param[i] = ap.getComponentContext().getProperties();
             }
             else if ( parameterTypes[i] == INTEGER_CLASS || parameterTypes[i] == Integer.TYPE )
@@ -45,16 +45,22 @@ abstract class BaseMethod
     protected static final Class MAP_CLASS = Map.class;
     protected static final Class INTEGER_CLASS = Integer.class;
 
+    // primitive types which may be recorded in pre-resolved signatures
+    private static final Class[] PRIMITIVE_TYPES =
+        { Boolean.TYPE, Byte.TYPE, Character.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE };
+
     private final AbstractComponentManager m_componentManager;
 
     private final String m_methodName;
     private final Class m_componentClass;
 
-    private Method m_method;
+    // written before m_state and read after it, such that the method is
+    // visible to threads seeing the Resolved state
+    private volatile Method m_method;
 
     private final boolean m_methodRequired;
 
-    private State m_state;
+    private volatile State m_state;
 
 
     protected BaseMethod( final AbstractComponentManager componentManager, final String methodName,
@@ -216,6 +222,91 @@ abstract class BaseMethod
         final boolean acceptPackage ) throws SuitableMethodNotAccessibleException, InvocationTargetException;
 
 
+    /**
+     * Returns the method described by the signature pre-resolved for this
+     * method in the component metadata (see
+     * {@link org.apache.felix.scr.impl.metadata.ComponentIndex}). The method
+     * is only returned if it is declared by a class in the hierarchy of the
+     * component class and if it is acceptable as per the same rules applied
+     * by the {@link #findMethod()} method.
+     *
+     * @return The method or <code>null</code> if there is no pre-resolved
+     *      signature or if the signature does not denote an acceptable
+     *      method. In this case the method must be searched for by calling
+     *      the {@link #findMethod()} method.
+     */
+    private Method findSignatureMethod()
+    {
+        final String[] signature = getComponentManager().getComponentMetadata().getMethodSignature(
+            getSignatureKey() );
+        if ( signature == null || signature.length == 0 )
+        {
+            return null;
+        }
+
+        boolean acceptPrivate = isDS11();
+        boolean acceptPackage = isDS11();
+
+        final Class targetClass = getComponentClass();
+        final ClassLoader targetClasslLoader = targetClass.getClassLoader();
+        final String targetPackage = getPackageName( targetClass );
+
+        try
+        {
+            for ( Class theClass = targetClass; theClass != null; theClass = theClass.getSuperclass() )
+            {
+                if ( theClass != targetClass )
+                {
+                    acceptPackage &= targetClasslLoader == theClass.getClassLoader()
+                        && targetPackage.equals( getPackageName( theClass ) );
+                    acceptPrivate = false;
+                }
+
+                if ( theClass.getName().equals( signature[0] ) )
+                {
+                    final Class[] parameterTypes = new Class[signature.length - 1];
+                    for ( int i = 0; i < parameterTypes.length; i++ )
+                    {
+                        parameterTypes[i] = loadParameterClass( theClass, signature[i + 1] );
+                    }
+
+                    final Method method = theClass.getDeclaredMethod( getMethodName(), parameterTypes );
+                    return accept( method, acceptPrivate, acceptPackage ) ? method : null;
+                }
+            }
+        }
+        catch ( Throwable t )
+        {
+            // signature does not match the class (any more), search the method
+            getComponentManager().log( LogService.LOG_DEBUG, "Pre-resolved {0} method {1} not usable: {2}",
+                new Object[]
+                    { getMethodNamePrefix(), getMethodName(), t }, null );
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Loads the parameter class of the given name as returned by
+     * <code>Class.getName()</code>. Primitive types cannot be loaded by name
+     * and are thus looked up in {@link #PRIMITIVE_TYPES}. Array classes are
+     * loaded by their binary name like any other class.
+     */
+    private static Class loadParameterClass( final Class declaringClass, final String className )
+        throws ClassNotFoundException
+    {
+        for ( int i = 0; i < PRIMITIVE_TYPES.length; i++ )
+        {
+            if ( PRIMITIVE_TYPES[i].getName().equals( className ) )
+            {
+                return PRIMITIVE_TYPES[i];
+            }
+        }
+        return Class.forName( className, false, declaringClass.getClassLoader() );
+    }
+
+
     private boolean invokeMethod( final Object componentInstance, final Object rawParameter )
         throws InvocationTargetException
     {
@@ -278,6 +369,19 @@ abstract class BaseMethod
     }
 
 
+    /**
+     * Returns the key of the pre-resolved signature of this method in the
+     * component metadata. This default implementation returns the
+     * {@link #getMethodNamePrefix() method name prefix}.
+     *
+     * @see org.apache.felix.scr.impl.metadata.ComponentMetadata#getMethodSignature(String)
+     */
+    protected String getSignatureKey()
+    {
+        return getMethodNamePrefix();
+    }
+
+
     //---------- Helpers
 
     /**
@@ -486,6 +590,55 @@ abstract class BaseMethod
         return m_state.methodExists( this );
     }
 
+
+    /**
+     * Returns the method resolved for this instance or <code>null</code> if
+     * the method does not exist or is not applicable. Calling this method
+     * resolves the method if not done yet.
+     */
+    public Method getResolvedMethod()
+    {
+        m_state.methodExists( this );
+        return m_method;
+    }
+
+
+    /**
+     * Takes over the method resolved by the given method of the same kind
+     * for the same component class instead of resolving it again. This is
+     * used when creating many instances of the same component at once. If
+     * the template has not been resolved yet or is declared for a different
+     * class or method name, this method has no effect.
+     */
+    public void copyResolution( final BaseMethod template )
+    {
+        if ( template == null || template == this || template.getClass() != getClass()
+            || template.getComponentClass() != getComponentClass() )
+        {
+            return;
+        }
+
+        final Method method;
+        final State state;
+        synchronized ( template )
+        {
+            method = template.m_method;
+            state = template.m_state;
+        }
+
+        if ( state == NotResolved.INSTANCE || m_methodName == null || !m_methodName.equals( template.m_methodName ) )
+        {
+            return;
+        }
+
+        synchronized ( this )
+        {
+            m_method = method;
+            m_state = state;
+        }
+    }
+
+
     private static interface State
     {
 
@@ -521,14 +674,26 @@ abstract class BaseMethod
 
         private void resolve( final BaseMethod baseMethod )
         {
-            baseMethod.getComponentManager().log( LogService.LOG_DEBUG, "getting {0}: {1}", new Object[]
-                { baseMethod.getMethodNamePrefix(), baseMethod.getMethodName() }, null );
+            // the method may be resolved concurrently by preloading and
+            // activating the component, only resolve it once
+            synchronized ( baseMethod )
+            {
+                if ( baseMethod.getState() != INSTANCE )
+                {
+                    return;
+                }
+
+                baseMethod.getComponentManager().log( LogService.LOG_DEBUG, "getting {0}: {1}", new Object[]
+                    { baseMethod.getMethodNamePrefix(), baseMethod.getMethodName() }, null );
 
-                // resolve the method
-                Method method;
+                // resolve the method, preferring a pre-resolved signature
+                Method method = baseMethod.findSignatureMethod();
                 try
                 {
-                    method = baseMethod.findMethod();
+                    if ( method == null )
+                    {
+                        method = baseMethod.findMethod();
+                    }
                 }
                 catch ( InvocationTargetException ex )
                 {
@@ -539,6 +704,7 @@ abstract class BaseMethod
 
                 baseMethod.setMethod( method );
             }
+        }
 
 
         public boolean invoke( final BaseMethod baseMethod, final Object componentInstance, final Object rawParameter )
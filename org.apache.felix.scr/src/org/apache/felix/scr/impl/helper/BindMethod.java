@@ -218,7 +218,7 @@ public class BindMethod extends BaseMethod
      *      if the class loader of the <code>targetClass</code> cannot see that
      *      class.
      */
-    private Class getParameterClass( final Class targetClass )
+    protected Class getParameterClass( final Class targetClass )
     {
         if ( getComponentManager().isLogEnabled( LogService.LOG_DEBUG ) )
         {
@@ -579,6 +579,16 @@ public class BindMethod extends BaseMethod
         return "bind";
     }
 
+
+    /**
+     * Returns the method name prefix qualified with the name of the
+     * reference since a component may declare multiple references.
+     */
+    protected String getSignatureKey()
+    {
+        return m_referenceName + "/" + getMethodNamePrefix();
+    }
+
     //---------- Service abstraction ------------------------------------
 
     public static interface Service
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.felix.scr.impl.manager.AbstractComponentManager;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * Component method to be invoked to bind multiple services at once. This is
+ * an extension of the Declarative Services 1.1-felix namespace for dynamic
+ * references of multiple cardinality: If the bind method is overloaded to
+ * take an array of <code>ServiceReference</code> objects or an array of the
+ * service interface type, this method is called once with all services to
+ * be bound instead of calling the bind method for each service.
+ * <p>
+ * The raw parameter to {@link #invoke(Object, Object, boolean)} is an array
+ * of {@link BindMethod.Service} objects.
+ */
+public class BulkBindMethod extends BindMethod
+{
+
+    private static final Class SERVICE_REFERENCE_ARRAY_CLASS = ServiceReference[].class;
+
+
+    public BulkBindMethod( final AbstractComponentManager componentManager, final String methodName,
+        final Class componentClass, final String referenceName, final String referenceClassName )
+    {
+        super( componentManager, methodName, componentClass, referenceName, referenceClassName );
+    }
+
+
+    /**
+     * Finds the bulk bind method in the given <code>targetClass</code>. The
+     * method is searched for using the following priority
+     * <ol>
+     * <li>Array of <code>ServiceReference</code> parameter</li>
+     * <li>Array of service interface type parameter</li>
+     * </ol>
+     * Bulk bind methods are only supported with the DS 1.1-felix namespace.
+     */
+    protected Method doFindMethod( Class targetClass, boolean acceptPrivate, boolean acceptPackage )
+        throws SuitableMethodNotAccessibleException, InvocationTargetException
+    {
+        if ( !getComponentManager().getComponentMetadata().isDS11Felix() )
+        {
+            return null;
+        }
+
+        // Case 1 - ServiceReference array parameter
+        Method method = getMethod( targetClass, getMethodName(), new Class[]
+            { SERVICE_REFERENCE_ARRAY_CLASS }, acceptPrivate, acceptPackage );
+        if ( method != null )
+        {
+            return method;
+        }
+
+        // Case 2 - Service interface array parameter
+        final Class parameterClass = getParameterClass( targetClass );
+        if ( parameterClass != null )
+        {
+            return getMethod( targetClass, getMethodName(), new Class[]
+                { Array.newInstance( parameterClass, 0 ).getClass() }, acceptPrivate, acceptPackage );
+        }
+
+        return null;
+    }
+
+
+    protected Object[] getParameters( Method method, Object rawParameter )
+    {
+        final Service[] services = ( Service[] ) rawParameter;
+        final Class paramType = method.getParameterTypes()[0];
+        if ( paramType == SERVICE_REFERENCE_ARRAY_CLASS )
+        {
+            final ServiceReference[] refs = new ServiceReference[services.length];
+            for ( int i = 0; i < services.length; i++ )
+            {
+                refs[i] = services[i].getReference();
+            }
+            return new Object[]
+                { refs };
+        }
+
+        // services which have already gone are left out
+        final List instances = new ArrayList( services.length );
+        for ( int i = 0; i < services.length; i++ )
+        {
+            final Object instance = services[i].getInstance();
+            if ( instance != null )
+            {
+                instances.add( instance );
+            }
+            else
+            {
+                getComponentManager().log( LogService.LOG_DEBUG,
+                    "Dependency Manager: Service {0} has already gone, will not bind", new Object[]
+                        { services[i].getReference() }, null );
+            }
+        }
+
+        final Object[] param = ( Object[] ) Array.newInstance( paramType.getComponentType(), instances.size() );
+        return new Object[]
+            { instances.toArray( param ) };
+    }
+
+
+    /**
+     * Returns the key of the pre-resolved signature of the bind method
+     * qualified to distinguish the bulk bind method from the bind method
+     * taking a single service.
+     */
+    protected String getSignatureKey()
+    {
+        return super.getSignatureKey() + "[]";
+    }
+}
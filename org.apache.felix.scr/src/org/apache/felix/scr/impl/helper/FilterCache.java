@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+
+/**
+ * The <code>FilterCache</code> keeps the compiled <code>Filter</code> objects
+ * of target filters shared by all components. Components created from the
+ * same declaration or configured with the same target property thus share
+ * a single <code>Filter</code> instead of each compiling its own copy.
+ * <p>
+ * The cache holds at most {@link #MAX_SIZE} filters, evicting the least
+ * recently used filter when full. <code>Filter</code> objects are immutable
+ * and may be used concurrently.
+ */
+public final class FilterCache
+{
+
+    /**
+     * The maximum number of filters kept in the cache.
+     */
+    public static final int MAX_SIZE = 512;
+
+    // the compiled filters indexed by filter string in access order
+    private static final Map m_filters = new LinkedHashMap( 64, 0.75f, true )
+    {
+        protected boolean removeEldestEntry( final Map.Entry eldest )
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private static final AtomicLong m_hits = new AtomicLong();
+    private static final AtomicLong m_misses = new AtomicLong();
+
+
+    private FilterCache()
+    {
+    }
+
+
+    /**
+     * Returns the compiled <code>Filter</code> for the given filter string,
+     * compiling and caching it if not cached yet.
+     *
+     * @throws InvalidSyntaxException if the filter string is not a valid
+     *      filter
+     */
+    public static Filter getFilter( final String filterString ) throws InvalidSyntaxException
+    {
+        synchronized ( m_filters )
+        {
+            final Filter filter = ( Filter ) m_filters.get( filterString );
+            if ( filter != null )
+            {
+                m_hits.incrementAndGet();
+                return filter;
+            }
+        }
+
+        // compile outside of the lock, concurrent compilation of the same
+        // filter string at worst creates an additional copy
+        m_misses.incrementAndGet();
+        final Filter filter = FrameworkUtil.createFilter( filterString );
+        synchronized ( m_filters )
+        {
+            m_filters.put( filterString, filter );
+        }
+        return filter;
+    }
+
+
+    /**
+     * Returns the number of filters currently cached.
+     */
+    public static int getSize()
+    {
+        synchronized ( m_filters )
+        {
+            return m_filters.size();
+        }
+    }
+
+
+    /**
+     * Returns the number of filters found in the cache.
+     */
+    public static long getHitCount()
+    {
+        return m_hits.get();
+    }
+
+
+    /**
+     * Returns the number of filters not found in the cache and compiled.
+     */
+    public static long getMissCount()
+    {
+        return m_misses.get();
+    }
+
+
+    /**
+     * Removes all filters from the cache and resets the hit and miss
+     * counters.
+     */
+    public static void clear()
+    {
+        synchronized ( m_filters )
+        {
+            m_filters.clear();
+        }
+        m_hits.set( 0 );
+        m_misses.set( 0 );
+    }
+}
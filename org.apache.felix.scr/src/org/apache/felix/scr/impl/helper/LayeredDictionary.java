@@ -0,0 +1,411 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * The <code>LayeredDictionary</code> is an immutable <code>Dictionary</code>
+ * and <code>Map</code> built from a sequence of property layers, where
+ * properties of later layers override properties of the same name in earlier
+ * layers. For component properties the layers are the component declaration,
+ * the reference target properties, the configuration, the factory instance
+ * properties and finally the <code>component.name</code> and
+ * <code>component.id</code> properties (112.6, Component Properties).
+ * <p>
+ * The layers are merged once when the instance is created. Since the
+ * instance cannot be modified afterwards, it may be shared between threads
+ * and read without synchronization. For the same reason a hash of the
+ * property values, which unlike the <code>Map</code> hash code takes the
+ * contents of array values into account, is only calculated once and allows
+ * for quickly detecting unchanged properties with {@link #matches(Dictionary)}
+ * and {@link #getChangedKeys(Dictionary)}. Modification methods (like
+ * {@link #put(Object, Object)}, {@link #remove(Object)}, etc.) have no
+ * effect.
+ */
+public final class LayeredDictionary extends Dictionary implements Map
+{
+
+    private final Map m_properties;
+
+    // the public properties, lazily created by getPublicProperties()
+    private volatile LayeredDictionary m_publicProperties;
+
+    // the hash of the property values, lazily calculated, 0 if not yet
+    private volatile int m_contentHash;
+
+
+    /**
+     * Creates a dictionary of the properties of the given layers. Layers may
+     * be <code>null</code>, in which case they are ignored.
+     */
+    public LayeredDictionary( final Dictionary[] layers )
+    {
+        final Map properties = new HashMap();
+        for ( int i = 0; i < layers.length; i++ )
+        {
+            final Dictionary layer = layers[i];
+            if ( layer != null && !layer.isEmpty() )
+            {
+                for ( Enumeration ke = layer.keys(); ke.hasMoreElements(); )
+                {
+                    final Object key = ke.nextElement();
+                    properties.put( key, layer.get( key ) );
+                }
+            }
+        }
+        m_properties = properties;
+    }
+
+
+    private LayeredDictionary( final Map properties )
+    {
+        m_properties = properties;
+    }
+
+
+    /**
+     * Returns the public properties of this dictionary, that is all
+     * properties whose name does not start with a dot (.). These are the
+     * properties to be used as service properties. The returned dictionary
+     * is created once and then shared.
+     */
+    public LayeredDictionary getPublicProperties()
+    {
+        LayeredDictionary publicProperties = m_publicProperties;
+        if ( publicProperties == null )
+        {
+            final Map properties = new HashMap();
+            for ( Iterator ei = m_properties.entrySet().iterator(); ei.hasNext(); )
+            {
+                final Map.Entry entry = ( Map.Entry ) ei.next();
+                final String key = ( String ) entry.getKey();
+                if ( key.length() == 0 || key.charAt( 0 ) != '.' )
+                {
+                    properties.put( key, entry.getValue() );
+                }
+            }
+
+            publicProperties = ( properties.size() == m_properties.size() ) ? this : new LayeredDictionary(
+                properties );
+            m_publicProperties = publicProperties;
+        }
+        return publicProperties;
+    }
+
+
+    /**
+     * Returns <code>true</code> if the given dictionary contains the same
+     * properties as this dictionary, comparing array values by their
+     * contents. If the other dictionary is a <code>LayeredDictionary</code>
+     * with a different content hash this method returns <code>false</code>
+     * without comparing the properties.
+     */
+    public boolean matches( final Dictionary other )
+    {
+        if ( other == this )
+        {
+            return true;
+        }
+        if ( other == null || other.size() != size() )
+        {
+            return false;
+        }
+        if ( other instanceof LayeredDictionary
+            && ( ( LayeredDictionary ) other ).getContentHash() != getContentHash() )
+        {
+            return false;
+        }
+
+        return equalProperties( this, other );
+    }
+
+
+    /**
+     * Returns <code>true</code> if both dictionaries contain the same
+     * properties, comparing array values by their contents.
+     */
+    public static boolean equalProperties( final Dictionary properties1, final Dictionary properties2 )
+    {
+        if ( properties1 == properties2 )
+        {
+            return true;
+        }
+        if ( properties1 == null || properties2 == null || properties1.size() != properties2.size() )
+        {
+            return false;
+        }
+
+        for ( Enumeration ke = properties1.keys(); ke.hasMoreElements(); )
+        {
+            final Object key = ke.nextElement();
+            if ( !valuesEqual( properties1.get( key ), properties2.get( key ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns the names of the properties which have been added, removed or
+     * changed in this dictionary compared to the given (previous) properties.
+     * If the properties {@link #matches(Dictionary) match}, an empty set is
+     * returned.
+     */
+    public Set getChangedKeys( final Dictionary previous )
+    {
+        if ( previous == null )
+        {
+            return Collections.unmodifiableSet( m_properties.keySet() );
+        }
+        if ( matches( previous ) )
+        {
+            return Collections.EMPTY_SET;
+        }
+
+        final Set changed = new HashSet();
+        for ( Iterator ei = m_properties.entrySet().iterator(); ei.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) ei.next();
+            if ( !valuesEqual( entry.getValue(), previous.get( entry.getKey() ) ) )
+            {
+                changed.add( entry.getKey() );
+            }
+        }
+        for ( Enumeration ke = previous.keys(); ke.hasMoreElements(); )
+        {
+            final Object key = ke.nextElement();
+            if ( !m_properties.containsKey( key ) )
+            {
+                changed.add( key );
+            }
+        }
+        return changed;
+    }
+
+
+    private int getContentHash()
+    {
+        int hash = m_contentHash;
+        if ( hash == 0 )
+        {
+            for ( Iterator ei = m_properties.entrySet().iterator(); ei.hasNext(); )
+            {
+                final Map.Entry entry = ( Map.Entry ) ei.next();
+                hash += entry.getKey().hashCode() ^ valueHash( entry.getValue() );
+            }
+            if ( hash == 0 )
+            {
+                hash = 1;
+            }
+            m_contentHash = hash;
+        }
+        return hash;
+    }
+
+
+    private static int valueHash( final Object value )
+    {
+        if ( value == null )
+        {
+            return 0;
+        }
+        if ( value.getClass().isArray() )
+        {
+            int hash = 1;
+            final int length = Array.getLength( value );
+            for ( int i = 0; i < length; i++ )
+            {
+                hash = 31 * hash + valueHash( Array.get( value, i ) );
+            }
+            return hash;
+        }
+        return value.hashCode();
+    }
+
+
+    private static boolean valuesEqual( final Object value1, final Object value2 )
+    {
+        if ( value1 == value2 )
+        {
+            return true;
+        }
+        if ( value1 == null || value2 == null )
+        {
+            return false;
+        }
+        if ( value1 instanceof Object[] && value2 instanceof Object[] )
+        {
+            return Arrays.deepEquals( ( Object[] ) value1, ( Object[] ) value2 );
+        }
+        if ( value1.getClass().isArray() && value1.getClass() == value2.getClass() )
+        {
+            final int length = Array.getLength( value1 );
+            if ( length != Array.getLength( value2 ) )
+            {
+                return false;
+            }
+            for ( int i = 0; i < length; i++ )
+            {
+                if ( !valuesEqual( Array.get( value1, i ), Array.get( value2, i ) ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return value1.equals( value2 );
+    }
+
+
+    //---------- Dictionary API
+
+    public Enumeration elements()
+    {
+        return Collections.enumeration( m_properties.values() );
+    }
+
+
+    public Object get( final Object key )
+    {
+        return m_properties.get( key );
+    }
+
+
+    public boolean isEmpty()
+    {
+        return m_properties.isEmpty();
+    }
+
+
+    public Enumeration keys()
+    {
+        return Collections.enumeration( m_properties.keySet() );
+    }
+
+
+    /**
+     * This method has no effect and always returns <code>null</code> as this
+     * instance is read-only and cannot modify and properties.
+     */
+    public Object put( final Object key, final Object value )
+    {
+        return null;
+    }
+
+
+    /**
+     * This method has no effect and always returns <code>null</code> as this
+     * instance is read-only and cannot modify and properties.
+     */
+    public Object remove( final Object key )
+    {
+        return null;
+    }
+
+
+    public int size()
+    {
+        return m_properties.size();
+    }
+
+
+    public String toString()
+    {
+        return m_properties.toString();
+    }
+
+
+    public boolean equals( final Object obj )
+    {
+        if ( obj == this )
+        {
+            return true;
+        }
+        if ( obj instanceof LayeredDictionary )
+        {
+            return m_properties.equals( ( ( LayeredDictionary ) obj ).m_properties );
+        }
+        return m_properties.equals( obj );
+    }
+
+
+    public int hashCode()
+    {
+        return m_properties.hashCode();
+    }
+
+
+    //---------- Map API
+
+    public void clear()
+    {
+        // nop, this map is read only
+    }
+
+
+    public boolean containsKey( Object key )
+    {
+        return m_properties.containsKey( key );
+    }
+
+
+    public boolean containsValue( Object value )
+    {
+        return m_properties.containsValue( value );
+    }
+
+
+    public Set entrySet()
+    {
+        return Collections.unmodifiableSet( m_properties.entrySet() );
+    }
+
+
+    public Set keySet()
+    {
+        return Collections.unmodifiableSet( m_properties.keySet() );
+    }
+
+
+    public void putAll( Map m )
+    {
+        // nop, this map is read only
+    }
+
+
+    public Collection values()
+    {
+        return Collections.unmodifiableCollection( m_properties.values() );
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.felix.scr.impl.manager.AbstractComponentManager;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>SnapshotInjector</code> hands the services bound to a reference
+ * of multiple cardinality to the component as an array. This is an extension
+ * of the Declarative Services 1.1-felix namespace: The <code>snapshot</code>
+ * attribute of the reference names a method taking a single array parameter
+ * or a field of an array type. Whenever the bound services change, a new
+ * array of the services ordered by descending service ranking is created and
+ * passed to the method or assigned to the field.
+ * <p>
+ * Each array is a snapshot which is never modified after being handed to the
+ * component. Components can thus iterate the current array without locking,
+ * declaring the field <code>volatile</code> to see the latest snapshot.
+ */
+public class SnapshotInjector
+{
+
+    private final AbstractComponentManager m_componentManager;
+
+    private final String m_memberName;
+
+    private final Class m_componentClass;
+
+    // the resolved method or field, guarded by this
+    private AccessibleObject m_member;
+
+    private boolean m_resolved;
+
+
+    public SnapshotInjector( final AbstractComponentManager componentManager, final String memberName,
+        final Class componentClass )
+    {
+        m_componentManager = componentManager;
+        m_memberName = memberName;
+        m_componentClass = componentClass;
+    }
+
+
+    /**
+     * Passes an array of the given services to the method or assigns it to
+     * the field of the component instance. Services not assignable to the
+     * component type of the array are left out.
+     *
+     * @param componentInstance The component instance
+     * @param services The services ordered by descending service ranking
+     */
+    public void inject( final Object componentInstance, final Object[] services )
+    {
+        final AccessibleObject member = getMember();
+        if ( member == null )
+        {
+            return;
+        }
+
+        final Class arrayType = ( member instanceof Method ) ? ( ( Method ) member ).getParameterTypes()[0]
+            : ( ( Field ) member ).getType();
+        final Object snapshot = createSnapshot( arrayType.getComponentType(), services );
+
+        try
+        {
+            if ( member instanceof Method )
+            {
+                ( ( Method ) member ).invoke( componentInstance, new Object[]
+                    { snapshot } );
+            }
+            else
+            {
+                ( ( Field ) member ).set( componentInstance, snapshot );
+            }
+        }
+        catch ( InvocationTargetException ite )
+        {
+            m_componentManager.log( LogService.LOG_ERROR, "The snapshot method {0} has thrown an exception",
+                new Object[]
+                    { m_memberName }, ite.getCause() );
+        }
+        catch ( Exception e )
+        {
+            m_componentManager.log( LogService.LOG_ERROR, "Cannot inject services into {0}", new Object[]
+                { m_memberName }, e );
+        }
+    }
+
+
+    private Object createSnapshot( final Class componentType, final Object[] services )
+    {
+        int count = 0;
+        final Object[] assignable = new Object[services.length];
+        for ( int i = 0; i < services.length; i++ )
+        {
+            if ( componentType.isInstance( services[i] ) )
+            {
+                assignable[count++] = services[i];
+            }
+            else
+            {
+                m_componentManager.log( LogService.LOG_WARNING, "Service {0} is not assignable to {1}, not injecting",
+                    new Object[]
+                        { services[i], componentType.getName() }, null );
+            }
+        }
+
+        final Object[] snapshot = ( Object[] ) Array.newInstance( componentType, count );
+        System.arraycopy( assignable, 0, snapshot, 0, count );
+        return snapshot;
+    }
+
+
+    /**
+     * Returns the method or field to inject the snapshots, resolving it on
+     * first use. Methods taking a single array parameter are preferred over
+     * fields. The class hierarchy of the component class is searched until a
+     * method or field is found.
+     *
+     * @return The method or field or <code>null</code> if none is found
+     */
+    private synchronized AccessibleObject getMember()
+    {
+        if ( !m_resolved )
+        {
+            m_member = findMember();
+            m_resolved = true;
+
+            if ( m_member == null )
+            {
+                m_componentManager.log( LogService.LOG_ERROR, "snapshot method or field [{0}] not found",
+                    new Object[]
+                        { m_memberName }, null );
+            }
+            else
+            {
+                m_member.setAccessible( true );
+                m_componentManager.log( LogService.LOG_DEBUG, "Found snapshot method or field: {0}", new Object[]
+                    { m_member }, null );
+            }
+        }
+        return m_member;
+    }
+
+
+    private AccessibleObject findMember()
+    {
+        for ( Class theClass = m_componentClass; theClass != null; theClass = theClass.getSuperclass() )
+        {
+            final Method[] methods = theClass.getDeclaredMethods();
+            for ( int i = 0; i < methods.length; i++ )
+            {
+                final Class[] parameters = methods[i].getParameterTypes();
+                if ( parameters.length == 1 && isObjectArray( parameters[0] )
+                    && methods[i].getName().equals( m_memberName ) )
+                {
+                    return methods[i];
+                }
+            }
+
+            try
+            {
+                final Field field = theClass.getDeclaredField( m_memberName );
+                if ( isObjectArray( field.getType() ) )
+                {
+                    return field;
+                }
+            }
+            catch ( NoSuchFieldException nsfe )
+            {
+                // check the super class
+            }
+        }
+
+        return null;
+    }
+
+
+    private static boolean isObjectArray( final Class type )
+    {
+        return type.isArray() && !type.getComponentType().isPrimitive();
+    }
+}
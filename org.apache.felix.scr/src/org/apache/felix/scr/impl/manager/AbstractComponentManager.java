@@ -21,14 +21,20 @@ package org.apache.felix.scr.impl.manager;
 import java.security.Permission;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.Component;
 import org.apache.felix.scr.Reference;
+import org.apache.felix.scr.impl.Activator;
 import org.apache.felix.scr.impl.BundleComponentActivator;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
 import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
@@ -57,11 +63,20 @@ public abstract class AbstractComponentManager implements Component
     // good reason to not be synchronized
     private volatile State m_state;
 
-    // The metadata
-    private final ComponentMetadata m_componentMetadata;
+    // The metadata, replaced by updateMetadata for compatible changes
+    private volatile ComponentMetadata m_componentMetadata;
 
-    // The dependency managers that manage every dependency
-    private final List m_dependencyManagers;
+    // The dependency managers that manage every dependency, created when
+    // the component is enabled and released when it is disabled again.
+    // This is null while the dependency managers are not needed.
+    private volatile List m_dependencyManagers;
+
+    // whether the dependency managers have been enabled
+    private volatile boolean m_dependencyManagersEnabled;
+
+    // The dependency managers indexed by reference name, never modified
+    // once set to allow for unsynchronized lookup by getDependencyManager
+    private volatile Map m_dependencyManagersByName;
 
     // A reference to the BundleComponentActivator
     private BundleComponentActivator m_activator;
@@ -69,6 +84,25 @@ public abstract class AbstractComponentManager implements Component
     // The ServiceRegistration
     private volatile ServiceRegistration m_serviceRegistration;
 
+    // whether preloading the component has already been scheduled
+    private volatile boolean m_preloadScheduled;
+
+    // number of consecutive failures to create the component
+    private final AtomicInteger m_activationFailures = new AtomicInteger();
+
+    // time before which a delayed component is not created again after a failure
+    private volatile long m_nextCreationAttempt;
+
+    // identifies the currently pending activation retry
+    private volatile int m_retryGeneration;
+
+    // the time the service has last been acquired by a bundle
+    private volatile long m_lastServiceUse;
+
+    // number of evictions and of the instances evicted thereby
+    private final AtomicInteger m_evictions = new AtomicInteger();
+    private final AtomicInteger m_evictedInstances = new AtomicInteger();
+
 
     /**
      * The constructor receives both the activator and the metadata
@@ -83,7 +117,7 @@ public abstract class AbstractComponentManager implements Component
         m_componentId = -1;
 
         m_state = Disabled.getInstance();
-        m_dependencyManagers = loadDependencyManagers( metadata );
+        m_dependencyManagersByName = Collections.EMPTY_MAP;
 
         // dump component details
         if ( isLogEnabled( LogService.LOG_DEBUG ) )
@@ -118,6 +152,12 @@ public abstract class AbstractComponentManager implements Component
 
     void registerComponentId()
     {
+        // the ID may already have been assigned by registerComponentIds
+        if ( this.m_componentId >= 0 )
+        {
+            return;
+        }
+
         final BundleComponentActivator activator = getActivator();
         if ( activator != null )
         {
@@ -126,6 +166,22 @@ public abstract class AbstractComponentManager implements Component
     }
 
 
+    /**
+     * Registers all given components with the activator in one step ahead of
+     * enabling them. Enabling the components later keeps the IDs assigned
+     * here.
+     */
+    static void registerComponentIds( final BundleComponentActivator activator,
+        final AbstractComponentManager[] componentManagers )
+    {
+        final long[] componentIds = activator.registerComponentIds( componentManagers );
+        for ( int i = 0; i < componentManagers.length; i++ )
+        {
+            componentManagers[i].m_componentId = componentIds[i];
+        }
+    }
+
+
     void unregisterComponentId()
     {
         if ( this.m_componentId >= 0 )
@@ -196,6 +252,56 @@ public abstract class AbstractComponentManager implements Component
         disposeInternal( reason );
     }
 
+    /**
+     * Replaces the component metadata of this component with a new declaration
+     * of the same component. The new declaration may only differ in the
+     * component properties and the target filters of dynamic references as
+     * reported by {@link ComponentMetadata#getChanges(ComponentMetadata)}.
+     * Any other change requires the component to be recreated.
+     *
+     * @param metadata The new component declaration
+     * @param changes The <code>ComponentMetadata.CHANGE_*</code> flags
+     *      describing the difference to the current declaration
+     */
+    public final void updateMetadata( ComponentMetadata metadata, int changes )
+    {
+        // nothing to update on a disposed component
+        if ( getState() == STATE_DISPOSED )
+        {
+            return;
+        }
+
+        m_componentMetadata = metadata;
+
+        // dependency managers are in the order of the declared references
+        // and are created from the new metadata if not existing yet
+        final List dependencyManagers = m_dependencyManagers;
+        if ( dependencyManagers != null )
+        {
+            final List references = metadata.getDependencies();
+            for ( int i = 0; i < references.size(); i++ )
+            {
+                DependencyManager dm = ( DependencyManager ) dependencyManagers.get( i );
+                dm.updateMetadata( ( ReferenceMetadata ) references.get( i ) );
+            }
+        }
+
+        log( LogService.LOG_DEBUG, "Component metadata updated (changes: {0})", new Object[]
+            { new Integer( changes ) }, null );
+
+        metadataUpdated( changes );
+    }
+
+
+    /**
+     * Called by {@link #updateMetadata(ComponentMetadata, int)} after the
+     * new metadata has been set to apply the changes to the component. This
+     * default implementation does nothing.
+     */
+    protected void metadataUpdated( int changes )
+    {
+    }
+
     //---------- Component interface ------------------------------------------
 
     public long getId()
@@ -248,15 +354,44 @@ public abstract class AbstractComponentManager implements Component
 
     public Reference[] getReferences()
     {
-        if ( m_dependencyManagers != null && m_dependencyManagers.size() > 0 )
+        final List dependencyManagers = m_dependencyManagers;
+        if ( dependencyManagers == null )
+        {
+            // describe the references from the metadata without creating
+            // dependency managers for the disabled component
+            final List dependencies = m_componentMetadata.getDependencies();
+            if ( dependencies.size() > 0 )
+            {
+                final Reference[] references = new Reference[dependencies.size()];
+                for ( int i = 0; i < references.length; i++ )
+                {
+                    references[i] = new UnboundReference( ( ReferenceMetadata ) dependencies.get( i ) );
+                }
+                return references;
+            }
+        }
+        else if ( dependencyManagers.size() > 0 )
         {
-            return (Reference[]) m_dependencyManagers.toArray(
-                    new Reference[m_dependencyManagers.size()] );
+            return (Reference[]) dependencyManagers.toArray(
+                    new Reference[dependencyManagers.size()] );
         }
 
         return null;
     }
 
+
+    /**
+     * Returns the number of dependency managers currently not created for
+     * this component because it is disabled or still waiting for required
+     * configuration. This is the number of dependency managers, each with its
+     * bound services map, target filter and binding methods, saved by
+     * creating them only when needed.
+     */
+    public int getDeferredDependencyManagerCount()
+    {
+        return ( m_dependencyManagers == null ) ? m_componentMetadata.getDependencies().size() : 0;
+    }
+
     public boolean isImmediate()
     {
         return m_componentMetadata.isImmediate();
@@ -321,6 +456,290 @@ public abstract class AbstractComponentManager implements Component
         return null;
     }
 
+    //---------- Preloading ---------------------------------------------------
+
+    /**
+     * Schedules the {@link #preload()} method to be called in the background
+     * if preloading is enabled in the SCR configuration and has not been
+     * scheduled yet. The preload task does nothing if the component has left
+     * the <code>Unsatisfied</code> state by the time it is executed.
+     */
+    final void schedulePreload()
+    {
+        final BundleComponentActivator activator = getActivator();
+        if ( m_preloadScheduled || activator == null || !activator.getConfiguration().isPreloadEnabled() )
+        {
+            return;
+        }
+
+        m_preloadScheduled = true;
+        activator.schedule( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if ( getState() == STATE_UNSATISFIED )
+                    {
+                        preload();
+                    }
+                }
+                finally
+                {
+                    // preload again the next time the component is unsatisfied,
+                    // which is cheap if nothing has changed since
+                    m_preloadScheduled = false;
+                }
+            }
+
+
+            public String toString()
+            {
+                return "Preload " + getName();
+            }
+        } );
+    }
+
+
+    /**
+     * Prepares activation of the component while it is waiting for its
+     * dependencies, for example by loading the implementation class and
+     * resolving the component methods. This default implementation does
+     * nothing.
+     */
+    protected void preload()
+    {
+    }
+
+
+    //---------- Activation back-off -----------------------------------------
+
+    /**
+     * Called if creating the component failed. If activation back-off is
+     * configured, the component enters the <code>FailedBackoff</code> state
+     * and activation is retried after a delay doubling with each consecutive
+     * failure. Otherwise the component just returns to the
+     * <code>Unsatisfied</code> state.
+     */
+    final void activationFailed()
+    {
+        final BundleComponentActivator activator = getActivator();
+        final long delay = nextBackoffDelay( activator );
+        if ( delay <= 0 )
+        {
+            changeState( Unsatisfied.getInstance() );
+            return;
+        }
+
+        final int generation = ++m_retryGeneration;
+
+        changeState( FailedBackoff.getInstance() );
+        log( LogService.LOG_WARNING, "Activation failed {0} time(s) in a row, retrying in {1}ms", new Object[]
+            { new Integer( m_activationFailures.get() ), new Long( delay ) }, null );
+
+        final boolean scheduled = activator.schedule( new Runnable()
+        {
+            public void run()
+            {
+                // ignore if the retry has been cancelled or superseded
+                if ( generation == m_retryGeneration )
+                {
+                    retryActivation();
+                }
+            }
+
+
+            public String toString()
+            {
+                return "Retry activation of " + getName();
+            }
+        }, delay );
+
+        if ( !scheduled )
+        {
+            // SCR is shutting down, do not leave the component backed off
+            m_retryGeneration++;
+            changeState( Unsatisfied.getInstance() );
+        }
+    }
+
+
+    /**
+     * Called if creating the instance of a registered delayed component
+     * failed. The component stays registered, but if activation back-off is
+     * configured, requests for the service do not try to create the instance
+     * again until the back-off period has elapsed.
+     *
+     * @see #isCreationBackedOff()
+     */
+    final void creationFailed()
+    {
+        final long delay = nextBackoffDelay( getActivator() );
+        if ( delay > 0 )
+        {
+            m_nextCreationAttempt = System.currentTimeMillis() + delay;
+            log( LogService.LOG_WARNING, "Creating the component failed {0} time(s) in a row, not retrying for {1}ms",
+                new Object[]
+                    { new Integer( m_activationFailures.get() ), new Long( delay ) }, null );
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if creating the instance of a delayed
+     * component failed before and the back-off period has not elapsed yet.
+     */
+    final boolean isCreationBackedOff()
+    {
+        return System.currentTimeMillis() < m_nextCreationAttempt;
+    }
+
+
+    /**
+     * Counts a failure to create the component and returns the period to
+     * back off from trying again, doubling with each consecutive failure.
+     * Returns zero without counting the failure if back-off is not
+     * configured.
+     */
+    private long nextBackoffDelay( final BundleComponentActivator activator )
+    {
+        final long backoff = ( activator == null ) ? 0 : activator.getConfiguration().getActivationBackoff();
+        if ( backoff <= 0 )
+        {
+            return 0;
+        }
+
+        final int failures = m_activationFailures.incrementAndGet();
+        final long maxDelay = activator.getConfiguration().getActivationBackoffMax();
+        return Math.min( backoff << Math.min( failures - 1, 30 ), maxDelay );
+    }
+
+
+    /**
+     * Ends the back-off period of a component in the
+     * <code>FailedBackoff</code> state and tries to activate the component.
+     * The consecutive failure count is kept such that the next failure backs
+     * off for a longer period. This method has no effect if the component is
+     * not backed off.
+     */
+    final void retryActivation()
+    {
+        if ( getState() == STATE_FAILED_BACKOFF )
+        {
+            m_retryGeneration++;
+            changeState( Unsatisfied.getInstance() );
+            activateInternal();
+        }
+    }
+
+
+    /**
+     * Cancels any pending activation retry and resets the consecutive
+     * failure count.
+     */
+    final void resetActivationBackoff()
+    {
+        m_retryGeneration++;
+        m_activationFailures.set( 0 );
+        m_nextCreationAttempt = 0;
+    }
+
+
+    //---------- Idle instance eviction -------------------------------------
+
+    /**
+     * Called when a bundle acquires or releases the service of a delayed or
+     * service factory component to make the component instances candidates
+     * for eviction by the {@link IdleInstanceEvictor}.
+     */
+    final void serviceUsed()
+    {
+        m_lastServiceUse = System.currentTimeMillis();
+
+        final BundleComponentActivator activator = getActivator();
+        if ( activator != null )
+        {
+            activator.getInstanceEvictor().serviceUsed( this );
+        }
+    }
+
+
+    final long getLastServiceUse()
+    {
+        return m_lastServiceUse;
+    }
+
+
+    /**
+     * Returns <code>true</code> if the component keeps instances no bundle
+     * is using any longer for the {@link IdleInstanceEvictor} to dispose of
+     * them later.
+     */
+    final boolean keepIdleInstances()
+    {
+        final BundleComponentActivator activator = getActivator();
+        return activator != null && activator.getInstanceEvictor().isEnabled();
+    }
+
+
+    /**
+     * Disposes of the component instances kept although no bundle is using
+     * them. This default implementation does nothing and returns zero.
+     *
+     * @return The number of instances disposed of
+     */
+    int disposeIdleInstances()
+    {
+        return 0;
+    }
+
+
+    /**
+     * Evicts the component instances no bundle is using any longer. The
+     * instances are created again when the service is acquired the next
+     * time. Instances in use and the service registration are not affected.
+     *
+     * @return The number of instances evicted
+     */
+    final int evictInstances()
+    {
+        if ( getState() != STATE_ACTIVE )
+        {
+            return 0;
+        }
+
+        final int instances = disposeIdleInstances();
+        if ( instances > 0 )
+        {
+            log( LogService.LOG_DEBUG, "Evicted {0} idle instance(s)", new Object[]
+                { new Integer( instances ) }, null );
+            m_evictions.incrementAndGet();
+            m_evictedInstances.addAndGet( instances );
+        }
+        return instances;
+    }
+
+
+    /**
+     * Returns the number of times the instances of this component have been
+     * evicted for being idle.
+     */
+    public int getEvictionCount()
+    {
+        return m_evictions.get();
+    }
+
+
+    /**
+     * Returns the number of instances of this component evicted for being
+     * idle.
+     */
+    public int getEvictedInstanceCount()
+    {
+        return m_evictedInstances.get();
+    }
+
+
     //-------------- atomic transition methods -------------------------------
 
     final void enableInternal()
@@ -446,14 +865,25 @@ public abstract class AbstractComponentManager implements Component
             // get a copy of the component properties as service properties
             final Dictionary serviceProperties = getServiceProperties();
 
-            return getActivator().getBundleContext().registerService(
+            final ServiceRegistration registration = getActivator().getBundleContext().registerService(
                     getComponentMetadata().getServiceMetadata().getProvides(),
                     getService(), serviceProperties );
+            servicePropertiesPublished( serviceProperties );
+            return registration;
         }
 
         return null;
     }
 
+
+    /**
+     * Called after the service has been registered with the given service
+     * properties. This default implementation does nothing.
+     */
+    protected void servicePropertiesPublished( Dictionary serviceProperties )
+    {
+    }
+
     // 5. Register provided services
     protected void registerComponentService()
     {
@@ -491,10 +921,13 @@ public abstract class AbstractComponentManager implements Component
         if ( m_activator != null )
         {
             m_activator.unregisterComponentId( this );
+            m_activator.getInstanceEvictor().forget( this );
             m_activator = null;
         }
 
-        m_dependencyManagers.clear();
+        m_dependencyManagers = null;
+        m_dependencyManagersEnabled = false;
+        m_dependencyManagersByName = Collections.EMPTY_MAP;
     }
 
 
@@ -570,7 +1003,7 @@ public abstract class AbstractComponentManager implements Component
     }
 
 
-    private List loadDependencyManagers( ComponentMetadata metadata )
+    private List createDependencyManagers( ComponentMetadata metadata )
     {
         List depMgrList = new ArrayList(metadata.getDependencies().size());
 
@@ -592,17 +1025,62 @@ public abstract class AbstractComponentManager implements Component
         return depMgrList;
     }
 
+    /**
+     * Returns the dependency managers of this component, creating them from
+     * the current component metadata if they do not exist yet.
+     */
+    final List loadDependencyManagers()
+    {
+        List dependencyManagers = m_dependencyManagers;
+        if ( dependencyManagers == null )
+        {
+            dependencyManagers = createDependencyManagers( m_componentMetadata );
+            m_dependencyManagersByName = indexDependencyManagers( dependencyManagers );
+            m_dependencyManagers = dependencyManagers;
+        }
+        return dependencyManagers;
+    }
+
+
     private void enableDependencyManagers() throws InvalidSyntaxException
     {
-        Iterator it = getDependencyManagers();
+        Iterator it = loadDependencyManagers().iterator();
         while ( it.hasNext() )
         {
             DependencyManager dm = (DependencyManager) it.next();
             dm.enable();
         }
+        m_dependencyManagersEnabled = true;
+    }
+
+
+    /**
+     * Returns <code>true</code> if the component requires configuration but
+     * does not have any. Such components do not need their dependency
+     * managers until configuration is provided.
+     */
+    private boolean isConfigurationMissing()
+    {
+        return !hasConfiguration() && m_componentMetadata.isConfigurationRequired();
     }
 
     protected boolean verifyDependencyManagers( Dictionary properties )
+    {
+        return verifyDependencyManagers( properties, null );
+    }
+
+
+    /**
+     * Verifies the dependency managers like
+     * {@link #verifyDependencyManagers(Dictionary)} but only updates the
+     * target filters of the references whose target property is contained
+     * in the set of changed properties.
+     *
+     * @param changedKeys The names of the properties changed since the
+     *      target filters were last set or <code>null</code> to update the
+     *      target filters of all references.
+     */
+    protected boolean verifyDependencyManagers( Dictionary properties, Set changedKeys )
     {
         // indicates whether all dependencies are satisfied
         boolean satisfied = true;
@@ -613,7 +1091,10 @@ public abstract class AbstractComponentManager implements Component
             DependencyManager dm = ( DependencyManager ) it.next();
 
             // ensure the target filter is correctly set
-            dm.setTargetFilter( properties );
+            if ( dm.isTargetAffected( changedKeys ) )
+            {
+                dm.setTargetFilter( properties );
+            }
 
             if ( !dm.hasGetPermission() )
             {
@@ -636,33 +1117,63 @@ public abstract class AbstractComponentManager implements Component
 
     Iterator getDependencyManagers()
     {
-        return m_dependencyManagers.iterator();
+        final List dependencyManagers = m_dependencyManagers;
+        return ( dependencyManagers == null ) ? Collections.EMPTY_LIST.iterator() : dependencyManagers.iterator();
     }
 
+    /**
+     * Returns the dependency manager for the reference of the given name or
+     * <code>null</code> if no such reference is declared. This method is
+     * called for each <code>ComponentContext.locateService</code> call and
+     * thus does not iterate the dependency managers or take any locks.
+     */
     DependencyManager getDependencyManager(String name)
     {
-        Iterator it = getDependencyManagers();
-        while ( it.hasNext() )
+        return ( DependencyManager ) m_dependencyManagersByName.get( name );
+    }
+
+
+    private static Map indexDependencyManagers( final List dependencyManagers )
+    {
+        if ( dependencyManagers.isEmpty() )
         {
-            DependencyManager dm = (DependencyManager) it.next();
-            if ( name.equals(dm.getName()) )
-            {
-                return dm;
-            }
+            return Collections.EMPTY_MAP;
         }
 
-        // not found
-        return null;
+        final Map index = new HashMap();
+        for ( Iterator di = dependencyManagers.iterator(); di.hasNext(); )
+        {
+            DependencyManager dm = ( DependencyManager ) di.next();
+            index.put( dm.getName(), dm );
+        }
+        return index;
     }
 
+    /**
+     * Disables the dependency managers and releases them. They are created
+     * again when the component is enabled the next time.
+     */
     private void disableDependencyManagers()
     {
-        Iterator it = getDependencyManagers();
+        final List dependencyManagers = m_dependencyManagers;
+        if ( dependencyManagers == null )
+        {
+            return;
+        }
+
+        Iterator it = dependencyManagers.iterator();
         while ( it.hasNext() )
         {
             DependencyManager dm = (DependencyManager) it.next();
             dm.disable();
         }
+
+        m_dependencyManagers = null;
+        m_dependencyManagersEnabled = false;
+        m_dependencyManagersByName = Collections.EMPTY_MAP;
+
+        log( LogService.LOG_DEBUG, "Released {0} dependency managers", new Object[]
+            { new Integer( dependencyManagers.size() ) }, null );
     }
 
     public abstract boolean hasConfiguration();
@@ -773,9 +1284,10 @@ public abstract class AbstractComponentManager implements Component
     //--------- State classes
 
     /**
-     * There are 12 states in all. They are: Disabled, Unsatisfied,
-     * Registered, Factory, Active, Disposed, as well as the transient states
-     * Enabling, Activating, Deactivating, Disabling, and Disposing.
+     * There are 13 states in all. They are: Disabled, Unsatisfied,
+     * FailedBackoff, Registered, Factory, Active, Disposed, as well as the
+     * transient states Enabling, Activating, Deactivating, Disabling, and
+     * Disposing.
      * The Registered, Factory, FactoryInstance and Active states are the
      * "Satisfied" state in concept. The tansient states will be changed to
      * other states automatically when work is done.
@@ -785,7 +1297,9 @@ public abstract class AbstractComponentManager implements Component
      * <li>Disabled -(enable/ENABLING) -> Unsatisifed</li>
      * <li>Disabled -(dispose/DISPOSING)-> Disposed</li>
      * <li>Unsatisfied -(activate/ACTIVATING, SUCCESS) -> Satisfied(Registered, Factory or Active)</li>
-     * <li>Unsatisfied -(activate/ACTIVATING, FAIL) -> Unsatisfied</li>
+     * <li>Unsatisfied -(activate/ACTIVATING, FAIL) -> Unsatisfied or FailedBackoff</li>
+     * <li>FailedBackoff -(back-off elapsed) -> Unsatisfied</li>
+     * <li>FailedBackoff -(disable/DISABLING) -> Disabled</li>
      * <li>Unsatisfied -(disable/DISABLING) -> Disabled</li>
      * <li>Registered -(getService, SUCCESS) -> Active</li>
      * <li>Registered -(getService, FAIL) -> Unsatisfied</li>
@@ -896,7 +1410,16 @@ public abstract class AbstractComponentManager implements Component
             acm.registerComponentId();
             try
             {
-                acm.enableDependencyManagers();
+                if ( acm.isConfigurationMissing() )
+                {
+                    // the component cannot be activated before it is
+                    // configured, which enables the dependency managers
+                    acm.log( LogService.LOG_DEBUG, "Deferring references until configuration is provided", null );
+                }
+                else
+                {
+                    acm.enableDependencyManagers();
+                }
                 acm.changeState( Unsatisfied.getInstance() );
                 acm.log( LogService.LOG_DEBUG, "Component enabled", null );
             }
@@ -958,6 +1481,13 @@ public abstract class AbstractComponentManager implements Component
 
         void activate( AbstractComponentManager acm )
         {
+            // components would only be deactivated again right away
+            if ( Activator.isShuttingDown() )
+            {
+                acm.log( LogService.LOG_DEBUG, "Framework shutting down, not activating component", null );
+                return;
+            }
+
             acm.changeState( Activating.getInstance() );
 
             acm.log( LogService.LOG_DEBUG, "Activating component", null );
@@ -968,15 +1498,35 @@ public abstract class AbstractComponentManager implements Component
             {
                 acm.log( LogService.LOG_INFO, "Missing required configuration, cannot activate", null );
                 acm.changeState( Unsatisfied.getInstance() );
+                acm.schedulePreload();
                 return;
             }
 
+            // the dependency managers are deferred until configuration
+            // is provided to components requiring configuration
+            if ( !acm.m_dependencyManagersEnabled )
+            {
+                try
+                {
+                    acm.enableDependencyManagers();
+                }
+                catch ( InvalidSyntaxException ise )
+                {
+                    // one of the reference target filters is invalid
+                    acm.log( LogService.LOG_ERROR, "Failed enabling references, cannot activate", ise );
+                    acm.disableDependencyManagers();
+                    acm.changeState( Unsatisfied.getInstance() );
+                    return;
+                }
+            }
+
             // Before creating the implementation object, we are going to
             // test if all the mandatory dependencies are satisfied
             if ( !acm.verifyDependencyManagers( acm.getProperties() ) )
             {
                 acm.log( LogService.LOG_INFO, "Not all dependencies satisified, cannot activate", null );
                 acm.changeState( Unsatisfied.getInstance() );
+                acm.schedulePreload();
                 return;
             }
 
@@ -999,11 +1549,12 @@ public abstract class AbstractComponentManager implements Component
                 // component creation failed, not active now
                 acm.log( LogService.LOG_ERROR, "Component instance could not be created, activation failed", null );
 
-                // set state to unsatisfied
-                acm.changeState( Unsatisfied.getInstance() );
+                // set state to unsatisfied or back off from retrying
+                acm.activationFailed();
                 return;
             }
 
+            acm.resetActivationBackoff();
             acm.changeState( acm.getSatisfiedState() );
 
             acm.registerComponentService();
@@ -1029,6 +1580,45 @@ public abstract class AbstractComponentManager implements Component
         }
     }
 
+    /**
+     * The <code>FailedBackoff</code> state is entered from the
+     * <code>Activating</code> state if creating the component failed and
+     * activation back-off is configured. In this state activation requests
+     * are ignored until the back-off period has elapsed and the component is
+     * returned to the {@link Unsatisfied} state to retry activation.
+     */
+    protected static final class FailedBackoff extends State
+    {
+        private static final FailedBackoff m_inst = new FailedBackoff();
+
+
+        private FailedBackoff()
+        {
+            super( "FailedBackoff", STATE_FAILED_BACKOFF );
+        }
+
+
+        static State getInstance()
+        {
+            return m_inst;
+        }
+
+
+        void activate( AbstractComponentManager acm )
+        {
+            acm.log( LogService.LOG_DEBUG, "Activation failed before, waiting for back-off period to elapse", null );
+        }
+
+
+        void disable( AbstractComponentManager acm )
+        {
+            // disabling resets the failure history
+            acm.resetActivationBackoff();
+            acm.changeState( Unsatisfied.getInstance() );
+            acm.disableInternal();
+        }
+    }
+
     protected static final class Activating extends State
     {
         private static final Activating m_inst = new Activating();
@@ -1145,12 +1735,23 @@ public abstract class AbstractComponentManager implements Component
 
         Object getService( DelayedComponentManager dcm )
         {
+            if ( dcm.isCreationBackedOff() )
+            {
+                dcm.log( LogService.LOG_DEBUG,
+                    "Creating the component failed before, waiting for back-off period to elapse", null );
+                return null;
+            }
+
             if ( dcm.createRealComponent() )
             {
+                dcm.resetActivationBackoff();
                 dcm.changeState( Active.getInstance() );
                 return dcm.getInstance();
             }
 
+            // back off from creating the component on each service request
+            dcm.creationFailed();
+
             // log that the delayed component cannot be created (we don't
             // know why at this moment; this should already have been logged)
             dcm.log( LogService.LOG_ERROR, "Failed creating the component instance; see log for reason", null );
@@ -1296,4 +1897,86 @@ public abstract class AbstractComponentManager implements Component
             return m_inst;
         }
     }
+
+    /**
+     * The <code>UnboundReference</code> describes a reference of a component
+     * without dependency managers from the reference metadata. No services
+     * are bound to it.
+     */
+    private static final class UnboundReference implements Reference
+    {
+        private final ReferenceMetadata m_metadata;
+
+
+        UnboundReference( final ReferenceMetadata metadata )
+        {
+            m_metadata = metadata;
+        }
+
+
+        public String getName()
+        {
+            return m_metadata.getName();
+        }
+
+
+        public String getServiceName()
+        {
+            return m_metadata.getInterface();
+        }
+
+
+        public ServiceReference[] getServiceReferences()
+        {
+            return null;
+        }
+
+
+        public boolean isSatisfied()
+        {
+            return m_metadata.isOptional();
+        }
+
+
+        public boolean isOptional()
+        {
+            return m_metadata.isOptional();
+        }
+
+
+        public boolean isMultiple()
+        {
+            return m_metadata.isMultiple();
+        }
+
+
+        public boolean isStatic()
+        {
+            return m_metadata.isStatic();
+        }
+
+
+        public String getTarget()
+        {
+            return m_metadata.getTarget();
+        }
+
+
+        public String getBindMethodName()
+        {
+            return m_metadata.getBind();
+        }
+
+
+        public String getUnbindMethodName()
+        {
+            return m_metadata.getUnbind();
+        }
+
+
+        public String getUpdatedMethodName()
+        {
+            return m_metadata.getUpdated();
+        }
+    }
 }
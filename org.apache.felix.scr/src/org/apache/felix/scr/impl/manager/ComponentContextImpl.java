@@ -22,6 +22,7 @@ package org.apache.felix.scr.impl.manager;
 import java.util.Dictionary;
 
 import org.apache.felix.scr.impl.Activator;
+import org.apache.felix.scr.impl.helper.LayeredDictionary;
 import org.apache.felix.scr.impl.helper.ReadOnlyDictionary;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
@@ -55,7 +56,7 @@ public class ComponentContextImpl implements ComponentContext, ComponentInstance
     {
         // 112.12.3.5 The Dictionary is read-only and cannot be modified
         Dictionary ctxProperties = m_componentManager.getProperties();
-        if ( !Activator.hasCtWorkaround() )
+        if ( !Activator.hasCtWorkaround() && !( ctxProperties instanceof LayeredDictionary ) )
         {
             ctxProperties = new ReadOnlyDictionary( ctxProperties );
         }
@@ -22,8 +22,10 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.Map;
 
+import org.apache.felix.scr.BulkComponentFactory;
 import org.apache.felix.scr.Component;
 import org.apache.felix.scr.impl.BundleComponentActivator;
 import org.apache.felix.scr.impl.config.ComponentHolder;
@@ -44,7 +46,16 @@ import org.osgi.service.log.LogService;
  * <p>
  * In addition the {@link ComponentHolder} interface is implemented to use this
  * class directly as the holder for component instances created by the
- * {@link #newInstance(Dictionary)} method.
+ * {@link #newInstance(Dictionary)} and {@link #newInstances(Dictionary[])}
+ * methods.
+ * <p>
+ * If the <code>ds.factory.pool</code> configuration property is set to a
+ * positive number, that many component managers are prepared ahead of
+ * {@link #newInstance(Dictionary)} calls by loading the implementation class
+ * and resolving the component and binding methods. Prepared managers are
+ * neither configured, enabled nor registered, such that the pool has no
+ * visible effect until a manager is handed out and activated. The pool is
+ * refilled asynchronously.
  * <p>
  * Finally, if the <code>ds.factory.enabled</code> bundle context property is
  * set to <code>true</code>, component instances can be created by factory
@@ -52,7 +63,7 @@ import org.osgi.service.log.LogService;
  * with earlier releases of the Apache Felix Declarative Services implementation.
  * But keep in mind, that this is non-standard behaviour.
  */
-public class ComponentFactoryImpl extends AbstractComponentManager implements ComponentFactory, ComponentHolder
+public class ComponentFactoryImpl extends AbstractComponentManager implements BulkComponentFactory, ComponentHolder
 {
 
     /**
@@ -88,6 +99,26 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
      */
     private final boolean m_isConfigurationFactory;
 
+    /**
+     * The prepared component managers not handed out yet. These managers are
+     * not contained in the {@link #m_componentInstances} map and have no
+     * component ID until they are activated by the
+     * {@link #newInstance(Dictionary)} method.
+     */
+    private final LinkedList m_instancePool;
+
+    /**
+     * The number of instances to keep in the {@link #m_instancePool}. If this
+     * is zero or negative, no instances are pooled.
+     */
+    private final int m_instancePoolSize;
+
+    /**
+     * Whether a task to refill the {@link #m_instancePool} has been scheduled
+     * and not completed yet. Guarded by the instance pool.
+     */
+    private boolean m_instancePoolFillScheduled;
+
 
     public ComponentFactoryImpl( BundleComponentActivator activator, ComponentMetadata metadata )
     {
@@ -95,6 +126,8 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
         m_componentInstances = new IdentityHashMap();
         m_isConfigurationFactory = activator.getConfiguration().isFactoryEnabled();
         m_configuration = new Hashtable();
+        m_instancePool = new LinkedList();
+        m_instancePoolSize = activator.getConfiguration().getFactoryPoolSize();
     }
 
 
@@ -103,29 +136,83 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
      */
     public ComponentInstance newInstance( Dictionary dictionary )
     {
-        final ImmediateComponentManager cm = createComponentManager( true );
+        final ImmediateComponentManager cm = takeComponentManager();
+        final ComponentInstance instance = activateNewInstance( cm, dictionary );
 
-        cm.setFactoryProperties( dictionary );
-        cm.reconfigure( m_configuration );
+        synchronized ( m_componentInstances )
+        {
+            m_componentInstances.put( cm, cm );
+        }
 
-        // enable and activate immediately
-        cm.enableInternal();
-        cm.activateInternal();
+        return instance;
+    }
 
-        final ComponentInstance instance = cm.getComponentInstance();
-        if ( instance == null )
+
+    /**
+     * Creates a component instance for each of the given instance properties
+     * as if calling {@link #newInstance(Dictionary)} for each entry. The
+     * component IDs of all instances are assigned in one step and the
+     * implementation class and the component and binding methods are only
+     * looked up for the first instance and reused for the others.
+     *
+     * @see BulkComponentFactory#newInstances(Dictionary[])
+     */
+    public ComponentInstance[] newInstances( Dictionary[] dictionaries )
+    {
+        final ImmediateComponentManager[] cms = new ImmediateComponentManager[dictionaries.length];
+        if ( cms.length == 0 )
         {
-            // activation failed, clean up component manager
-            cm.dispose();
-            throw new ComponentException( "Failed activating component" );
+            return new ComponentInstance[0];
+        }
+
+        for ( int i = 0; i < cms.length; i++ )
+        {
+            cms[i] = takeComponentManager();
+        }
+        registerComponentIds( getActivator(), cms );
+
+        // resolve everything up front for the first instance to be reused
+        if ( cms.length > 1 )
+        {
+            cms[0].prepare( null );
+            for ( int i = 1; i < cms.length; i++ )
+            {
+                cms[i].prepare( cms[0] );
+            }
+        }
+
+        final ComponentInstance[] instances = new ComponentInstance[cms.length];
+        int activated = 0;
+        try
+        {
+            for ( ; activated < cms.length; activated++ )
+            {
+                instances[activated] = activateNewInstance( cms[activated], dictionaries[activated] );
+            }
+        }
+        finally
+        {
+            if ( activated < cms.length )
+            {
+                // activation of an instance failed, dispose of all instances
+                // including the failed one, which may still be enabled if it
+                // failed before activation; disposing again has no effect
+                for ( int i = 0; i < cms.length; i++ )
+                {
+                    cms[i].dispose();
+                }
+            }
         }
 
         synchronized ( m_componentInstances )
         {
-            m_componentInstances.put( cm, cm );
+            for ( int i = 0; i < cms.length; i++ )
+            {
+                m_componentInstances.put( cms[i], cms[i] );
+            }
         }
 
-        return instance;
+        return instances;
     }
 
 
@@ -144,6 +231,8 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
             cms[i].enable();
         }
 
+        scheduleInstancePoolFill();
+
         return true;
     }
 
@@ -162,6 +251,8 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
         {
             cms[i].disable();
         }
+
+        drainInstancePool();
     }
 
 
@@ -171,7 +262,8 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
 
         Dictionary serviceProperties = getProperties();
         return getActivator().getBundleContext().registerService( new String[]
-            { ComponentFactory.class.getName() }, getService(), serviceProperties );
+            { ComponentFactory.class.getName(), BulkComponentFactory.class.getName() }, getService(),
+            serviceProperties );
     }
 
 
@@ -369,6 +461,8 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
      */
     public void disposeComponents( int reason )
     {
+        drainInstancePool();
+
         ImmediateComponentManager[] cms = getComponentManagers( m_componentInstances );
         for ( int i = 0; i < cms.length; i++ )
         {
@@ -393,12 +487,28 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
     }
 
 
+    /**
+     * Component factories are always recreated for a changed declaration
+     * because the instances created by {@link #newInstance(Dictionary)} have
+     * been handed out to the callers.
+     */
+    public boolean updateComponentMetadata( ComponentMetadata metadata, int changes )
+    {
+        return false;
+    }
+
+
     public void disposed( ImmediateComponentManager component )
     {
         synchronized ( m_componentInstances )
         {
             m_componentInstances.remove( component );
         }
+
+        synchronized ( m_instancePool )
+        {
+            m_instancePool.remove( component );
+        }
     }
 
 
@@ -421,6 +531,178 @@ public class ComponentFactoryImpl extends AbstractComponentManager implements Co
     }
 
 
+    /**
+     * Configures, enables and activates the component manager as a new
+     * component instance with the given instance properties and returns the
+     * component instance. The component manager is not added to the map of
+     * component instances.
+     *
+     * @param cm The component manager to activate
+     * @param dictionary The instance properties, may be <code>null</code>
+     *
+     * @throws ComponentException if activation fails. The component manager
+     *      has been disposed off in this case.
+     */
+    private ComponentInstance activateNewInstance( final ImmediateComponentManager cm, final Dictionary dictionary )
+    {
+        cm.setFactoryProperties( dictionary );
+        cm.reconfigure( m_configuration );
+
+        // enable and activate immediately
+        cm.enableInternal();
+        cm.activateInternal();
+
+        final ComponentInstance instance = cm.getComponentInstance();
+        if ( instance == null )
+        {
+            // activation failed, clean up component manager
+            cm.dispose();
+            throw new ComponentException( "Failed activating component" );
+        }
+
+        return instance;
+    }
+
+
+    /**
+     * Returns a prepared component manager from the instance pool or a new
+     * component manager if the pool is empty. The manager is neither
+     * configured nor enabled.
+     */
+    private ImmediateComponentManager takeComponentManager()
+    {
+        final ImmediateComponentManager cm;
+        synchronized ( m_instancePool )
+        {
+            cm = m_instancePool.isEmpty() ? null : ( ImmediateComponentManager ) m_instancePool.removeFirst();
+        }
+
+        if ( cm == null )
+        {
+            return createComponentManager( true );
+        }
+
+        scheduleInstancePoolFill();
+        return cm;
+    }
+
+
+    /**
+     * Schedules filling the instance pool unless pooling is disabled, the
+     * pool is full or filling is already scheduled.
+     */
+    private void scheduleInstancePoolFill()
+    {
+        if ( m_instancePoolSize <= 0 )
+        {
+            return;
+        }
+
+        synchronized ( m_instancePool )
+        {
+            if ( m_instancePoolFillScheduled || m_instancePool.size() >= m_instancePoolSize )
+            {
+                return;
+            }
+            m_instancePoolFillScheduled = true;
+        }
+
+        final BundleComponentActivator activator = getActivator();
+        if ( activator == null )
+        {
+            synchronized ( m_instancePool )
+            {
+                m_instancePoolFillScheduled = false;
+            }
+            return;
+        }
+
+        activator.schedule( new Runnable()
+        {
+            public void run()
+            {
+                fillInstancePool();
+            }
+
+
+            public String toString()
+            {
+                return "Fill instance pool of " + getName();
+            }
+        } );
+    }
+
+
+    private void fillInstancePool()
+    {
+        try
+        {
+            ImmediateComponentManager template = null;
+            while ( isInstancePoolActive() )
+            {
+                synchronized ( m_instancePool )
+                {
+                    if ( m_instancePool.size() >= m_instancePoolSize )
+                    {
+                        break;
+                    }
+                }
+
+                final ImmediateComponentManager cm = createComponentManager( true );
+                if ( !cm.prepare( template ) )
+                {
+                    log( LogService.LOG_WARNING, "Failed preparing pooled component instance", null );
+                    break;
+                }
+
+                // keep the manager unless the factory has been deactivated
+                // (and the pool drained) in the meantime; a manager not kept
+                // holds no resources and is just dropped
+                synchronized ( m_instancePool )
+                {
+                    if ( !isInstancePoolActive() )
+                    {
+                        break;
+                    }
+                    m_instancePool.add( cm );
+                }
+                template = cm;
+            }
+        }
+        finally
+        {
+            synchronized ( m_instancePool )
+            {
+                m_instancePoolFillScheduled = false;
+            }
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if the component factory is active or being
+     * activated and thus may keep pooled instances.
+     */
+    private boolean isInstancePoolActive()
+    {
+        final int state = getState();
+        return state == STATE_FACTORY || state == STATE_ACTIVATING;
+    }
+
+
+    /**
+     * Removes all prepared component managers from the instance pool. These
+     * managers have never been enabled and thus need not be disposed off.
+     */
+    private void drainInstancePool()
+    {
+        synchronized ( m_instancePool )
+        {
+            m_instancePool.clear();
+        }
+    }
+
+
     private ImmediateComponentManager[] getComponentManagers( Map componentMap )
     {
         if ( componentMap != null )
@@ -85,6 +85,7 @@ public class DelayedComponentManager extends ImmediateComponentManager implement
         synchronized ( m_useCountLock )
         {
             m_useCount++;
+            serviceUsed();
             return state().getService( this );
         }
     }
@@ -107,12 +108,33 @@ public class DelayedComponentManager extends ImmediateComponentManager implement
                 m_useCount--;
 
                 // unget the service instance if no bundle is using it
-                // any longer
+                // any longer unless it is kept until evicted for being idle
                 if ( m_useCount == 0 )
                 {
-                    state().ungetService( this );
+                    if ( getState() == STATE_ACTIVE && keepIdleInstances() )
+                    {
+                        serviceUsed();
+                    }
+                    else
+                    {
+                        state().ungetService( this );
+                    }
                 }
             }
         }
     }
+
+
+    int disposeIdleInstances()
+    {
+        synchronized ( m_useCountLock )
+        {
+            if ( m_useCount == 0 && getState() == STATE_ACTIVE )
+            {
+                state().ungetService( this );
+                return 1;
+            }
+        }
+        return 0;
+    }
 }
@@ -21,16 +21,24 @@ package org.apache.felix.scr.impl.manager;
 
 import java.security.Permission;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.Component;
 import org.apache.felix.scr.Reference;
+import org.apache.felix.scr.impl.Activator;
 import org.apache.felix.scr.impl.BundleComponentActivator;
 import org.apache.felix.scr.impl.helper.BindMethod;
+import org.apache.felix.scr.impl.helper.BulkBindMethod;
+import org.apache.felix.scr.impl.helper.SnapshotInjector;
+import org.apache.felix.scr.impl.helper.FilterCache;
 import org.apache.felix.scr.impl.helper.UnbindMethod;
 import org.apache.felix.scr.impl.helper.UpdatedMethod;
 import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
@@ -60,14 +68,27 @@ public class DependencyManager implements ServiceListener, Reference
     // pseudo service to mark a bound service without actual service instance
     private static final Object BOUND_SERVICE_SENTINEL = new Object();
 
+    // marks a cached lookup result for which no service is available
+    private static final Object NO_SERVICE = new Object();
+
+    // whether the framework sends MODIFIED_ENDMATCH events, null if unknown
+    private static volatile Boolean m_modifiedEndMatchSupported;
+
     // the component to which this dependency belongs
     private final AbstractComponentManager m_componentManager;
 
     // Reference to the metadata
-    private final ReferenceMetadata m_dependencyMetadata;
+    private volatile ReferenceMetadata m_dependencyMetadata;
 
     // The map of bound services indexed by their ServiceReference
-    private final Map m_bound;
+    private final ConcurrentMap m_bound;
+
+    // incremented each time the set of bound services changes
+    private final AtomicInteger m_boundGeneration = new AtomicInteger();
+
+    // the cached references of the bound services, valid while the
+    // generation matches m_boundGeneration
+    private volatile BoundReferences m_boundRefs;
 
     // the number of matching services registered in the system
     private int m_size;
@@ -75,14 +96,39 @@ public class DependencyManager implements ServiceListener, Reference
     // the object on which the bind/undind methods are to be called
     private transient Object m_componentInstance;
 
+    // the binding methods are volatile since they may be set up by the
+    // preload task while the component is being activated; they are set up
+    // under this lock by initBindingMethods
+
     // the bind method
-    private BindMethod m_bind;
+    private volatile BindMethod m_bind;
+
+    // the bind method taking multiple services, null if not applicable
+    private volatile BulkBindMethod m_bulkBind;
+
+    // services added to be bound with the next bulk bind call, guarded by itself
+    private final List m_pendingBinds = new ArrayList();
+
+    // whether a bulk bind call for the pending services is scheduled, guarded by m_pendingBinds
+    private boolean m_pendingBindsScheduled;
+
+    // whether reactivation for a better service of a greedy static reference is scheduled
+    private final AtomicBoolean m_reactivationScheduled = new AtomicBoolean();
 
     // the updated method
-    private UpdatedMethod m_updated;
+    private volatile UpdatedMethod m_updated;
+
+    // injects the bound services into the component, null if not declared
+    private volatile SnapshotInjector m_snapshot;
+
+    // serializes creating and injecting snapshots of the bound services
+    private final Object m_snapshotLock = new Object();
 
     // the unbind method
-    private UnbindMethod m_unbind;
+    private volatile UnbindMethod m_unbind;
+
+    // the component class for which the binding methods have been set up
+    private volatile Class m_bindingMethodsClass;
 
     // the target service filter string
     private String m_target;
@@ -90,6 +136,22 @@ public class DependencyManager implements ServiceListener, Reference
     // the target service filter
     private Filter m_targetFilter;
 
+    // the filter of the registered service listener, null if not registered
+    private volatile String m_listenerFilter;
+
+    // guards the generation counter and filling the service caches
+    private final Object m_serviceCacheLock = new Object();
+
+    // incremented each time the service caches are invalidated
+    private int m_serviceCacheGeneration;
+
+    // the cached result of getService(), NO_SERVICE or null if not cached
+    private volatile Object m_cachedService;
+
+    // the cached result of getServices(), Object[0] for no services or
+    // null if not cached
+    private volatile Object[] m_cachedServices;
+
 
     /**
      * Constructor that receives several parameters.
@@ -100,7 +162,7 @@ public class DependencyManager implements ServiceListener, Reference
     {
         m_componentManager = componentManager;
         m_dependencyMetadata = dependency;
-        m_bound = Collections.synchronizedMap( new HashMap() );
+        m_bound = new ConcurrentHashMap();
 
         // setup the target filter from component descriptor
         setTargetFilter( m_dependencyMetadata.getTarget() );
@@ -119,31 +181,102 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
     /**
-     * Initialize binding methods.
+     * Initialize binding methods for the given component class unless they
+     * have already been set up for this class, for example by the
+     * {@link #preload(Class)} method or for an earlier component instance.
      */
-    private void initBindingMethods()
+    private synchronized void initBindingMethods( final Class componentClass )
     {
+        if ( m_bindingMethodsClass == componentClass )
+        {
+            return;
+        }
+
         m_bind = new BindMethod( m_componentManager,
                                  m_dependencyMetadata.getBind(),
-                                 m_componentInstance.getClass(),
+                                 componentClass,
                                  m_dependencyMetadata.getName(),
                                  m_dependencyMetadata.getInterface()
         );
+        m_bulkBind = isBulkBindApplicable() ? new BulkBindMethod( m_componentManager,
+            m_dependencyMetadata.getBind(),
+            componentClass,
+            m_dependencyMetadata.getName(),
+            m_dependencyMetadata.getInterface()
+        ) : null;
         m_updated = new UpdatedMethod( m_componentManager,
                 m_dependencyMetadata.getUpdated(),
-                m_componentInstance.getClass(),
+                componentClass,
                 m_dependencyMetadata.getName(),
                 m_dependencyMetadata.getInterface()
         );
         m_unbind = new UnbindMethod( m_componentManager,
             m_dependencyMetadata.getUnbind(),
-            m_componentInstance.getClass(),
+            componentClass,
             m_dependencyMetadata.getName(),
             m_dependencyMetadata.getInterface()
         );
+        m_snapshot = ( m_dependencyMetadata.getSnapshot() != null ) ? new SnapshotInjector( m_componentManager,
+            m_dependencyMetadata.getSnapshot(), componentClass ) : null;
+        m_bindingMethodsClass = componentClass;
     }
 
 
+    /**
+     * Sets up and resolves the bind, updated and unbind methods for the
+     * given component class ahead of binding services to a component
+     * instance.
+     */
+    void preload( final Class componentClass )
+    {
+        initBindingMethods( componentClass );
+        m_bind.methodExists();
+        if ( m_bulkBind != null )
+        {
+            m_bulkBind.methodExists();
+        }
+        m_updated.methodExists();
+        m_unbind.methodExists();
+    }
+
+
+    /**
+     * Sets up the bind, updated and unbind methods for the component class
+     * for which the given dependency manager of another instance of the same
+     * component already set up its methods, taking over the methods resolved
+     * there instead of resolving them again.
+     */
+    void copyBindingMethods( final DependencyManager template )
+    {
+        final Class componentClass = template.m_bindingMethodsClass;
+        if ( componentClass == null )
+        {
+            return;
+        }
+
+        initBindingMethods( componentClass );
+        m_bind.copyResolution( template.m_bind );
+        if ( m_bulkBind != null )
+        {
+            m_bulkBind.copyResolution( template.m_bulkBind );
+        }
+        m_updated.copyResolution( template.m_updated );
+        m_unbind.copyResolution( template.m_unbind );
+    }
+
+
+
+    /**
+     * Replaces the reference metadata with a new declaration of the same
+     * reference. The new declaration may only differ in the target filter,
+     * which is applied by the next call to {@link #setTargetFilter(Dictionary)}
+     * or when this dependency manager is disabled.
+     */
+    void updateMetadata( ReferenceMetadata dependency )
+    {
+        m_dependencyMetadata = dependency;
+    }
+
 
     //---------- ServiceListener interface ------------------------------------
 
@@ -153,6 +286,9 @@ public class DependencyManager implements ServiceListener, Reference
      */
     public void serviceChanged( ServiceEvent event )
     {
+        // any change to the matching services may change the lookup results
+        invalidateServiceCache();
+
         final ServiceReference ref = event.getServiceReference();
         final String serviceString = "Service " + m_dependencyMetadata.getInterface() + "/"
             + ref.getProperty( Constants.SERVICE_ID );
@@ -206,10 +342,16 @@ public class DependencyManager implements ServiceListener, Reference
                                 // immediately try to activate the component (FELIX-2368)
                                 m_componentManager.activateInternal();
                             }
+
+                            // if greedy, reactivate for the better service
+                            else if ( m_dependencyMetadata.isGreedy() )
+                            {
+                                serviceAdded( ref );
+                            }
                         }
-                        else if ( isMultiple() )
+                        else if ( isMultiple() || m_dependencyMetadata.isGreedy() )
                         {
-                            // if dynamic and multiple reference, bind, otherwise ignore
+                            // if dynamic and multiple or greedy reference, bind, otherwise ignore
                             serviceAdded( ref );
                         }
                     }
@@ -228,6 +370,20 @@ public class DependencyManager implements ServiceListener, Reference
 
                 break;
 
+            case ServiceEvent.MODIFIED_ENDMATCH:
+                // the service matched the listener filter including the
+                // target filter before and does not match any longer
+                m_componentManager.log( LogService.LOG_DEBUG,
+                    "Dependency Manager: {0} does not match target filter {1} any more", new Object[]
+                        { serviceString, getTarget() }, null );
+
+                // serviceRemoved deactivates the component if not satisfied
+                // any more and ignores the service if it is not bound
+                m_size--;
+                serviceRemoved( ref );
+
+                break;
+
             case ServiceEvent.UNREGISTERING:
                 m_componentManager.log( LogService.LOG_DEBUG, "Dependency Manager: Removing {0}", new Object[]
                     { serviceString }, null );
@@ -287,25 +443,45 @@ public class DependencyManager implements ServiceListener, Reference
         else if ( handleServiceEvent() )
         {
 
+            // a greedy static reference reactivates the component to bind
+            // the better service
+            if ( m_dependencyMetadata.isStatic() && m_dependencyMetadata.isGreedy() && isPreferred( reference ) )
+            {
+                scheduleReactivation();
+            }
+
             // FELIX-1413: if the dependency is static and the component is
             // satisfied (active) added services are not considered until
             // the component is reactivated for other reasons.
-            if ( m_dependencyMetadata.isStatic() )
+            else if ( m_dependencyMetadata.isStatic() )
             {
                 m_componentManager.log( LogService.LOG_DEBUG,
                     "Dependency Manager: Added service {0} is ignored for static reference", new Object[]
                         { m_dependencyMetadata.getName() }, null );
             }
 
-            // otherwise bind if we have a bind method and the service needs
-            // be bound
-            else if ( m_dependencyMetadata.getBind() != null )
+            // otherwise bind if we have a bind method or a snapshot and the
+            // service needs be bound
+            else if ( m_dependencyMetadata.getBind() != null || m_snapshot != null )
             {
+                // bind along with other services added in the meantime
+                if ( isBulkBind() )
+                {
+                    addPendingBind( reference );
+                }
+
                 // multiple bindings or not bound at all yet
-                if ( m_dependencyMetadata.isMultiple() || !isBound() )
+                else if ( m_dependencyMetadata.isMultiple() || !isBound() )
                 {
                     // bind the service, getting it if required
                     invokeBindMethod( reference );
+                    updateSnapshot();
+                }
+
+                // a greedy unary reference replaces the bound service
+                else if ( m_dependencyMetadata.isGreedy() && isPreferred( reference ) )
+                {
+                    rebind( reference );
                 }
             }
         }
@@ -319,6 +495,102 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
 
+    /**
+     * Returns <code>true</code> if the added service is better than the
+     * services currently bound. For multiple references this is the case if
+     * the service is not bound. For unary references the service must not be
+     * bound and must be the matching service with the highest ranking.
+     */
+    private boolean isPreferred( final ServiceReference reference )
+    {
+        if ( getBoundService( reference ) != null )
+        {
+            return false;
+        }
+
+        return m_dependencyMetadata.isMultiple() || reference.equals( getFrameworkServiceReference() );
+    }
+
+
+    /**
+     * Replaces the service bound to a unary dynamic reference by the given
+     * service. The new service is bound before the old service is unbound
+     * such that the component is never without a service. If the new
+     * service cannot be bound, the old service remains bound.
+     */
+    private void rebind( final ServiceReference reference )
+    {
+        final ServiceReference[] boundRefs = getBoundServiceReferences();
+
+        m_componentManager.log( LogService.LOG_DEBUG,
+            "Dependency Manager: Replacing bound service of {0} by better service {1}", new Object[]
+                { m_dependencyMetadata.getName(), reference.getProperty( Constants.SERVICE_ID ) }, null );
+
+        if ( !invokeBindMethod( reference ) )
+        {
+            return;
+        }
+
+        if ( boundRefs != null )
+        {
+            for ( int i = 0; i < boundRefs.length; i++ )
+            {
+                if ( !boundRefs[i].equals( reference ) )
+                {
+                    if ( m_componentInstance != null && m_dependencyMetadata.getUnbind() != null )
+                    {
+                        invokeUnbindMethod( boundRefs[i] );
+                    }
+                    ungetService( boundRefs[i] );
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Schedules reactivation of the component to bind a better service to
+     * a greedy static reference. Services added before the reactivation
+     * takes place are bound by the same reactivation.
+     */
+    private void scheduleReactivation()
+    {
+        if ( !m_reactivationScheduled.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        final BundleComponentActivator activator = m_componentManager.getActivator();
+        if ( activator == null )
+        {
+            m_reactivationScheduled.set( false );
+            return;
+        }
+
+        activator.schedule( new Runnable()
+        {
+            public void run()
+            {
+                m_reactivationScheduled.set( false );
+                if ( handleServiceEvent() )
+                {
+                    m_componentManager.log( LogService.LOG_DEBUG,
+                        "Dependency Manager: Reactivating component to bind better service to {0}", new Object[]
+                            { m_dependencyMetadata.getName() }, null );
+                    m_componentManager.deactivateInternal( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
+                    m_componentManager.activateInternal();
+                }
+            }
+
+
+            public String toString()
+            {
+                return "Reactivate " + m_componentManager.getName() + " for better " + m_dependencyMetadata.getName();
+            }
+        } );
+    }
+
+
     /**
      * Called by the {@link #serviceChanged(ServiceEvent)} method if an existing
      * service is unregistered from the system or if a registered service has
@@ -333,6 +605,17 @@ public class DependencyManager implements ServiceListener, Reference
      */
     private void serviceRemoved( ServiceReference reference )
     {
+        // the service will not be bound any more if it is pending
+        removePendingBind( reference );
+
+        // while the framework shuts down, replacing the service or
+        // reactivating the component is just wasted effort
+        if ( Activator.isShuttingDown() )
+        {
+            serviceRemovedOnShutdown( reference );
+            return;
+        }
+
         // if the dependency is not satisfied anymore, we have to
         // deactivate the component
         if ( !isSatisfied() )
@@ -406,6 +689,7 @@ public class DependencyManager implements ServiceListener, Reference
 
                 // make sure the service is returned
                 ungetService( reference );
+                updateSnapshot();
             }
         }
 
@@ -418,6 +702,27 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
 
+    /**
+     * Handles removal of a service while the framework shuts down: If the
+     * component uses the service or is not satisfied any more, it is
+     * deactivated without looking for a replacement service and without
+     * being reactivated.
+     */
+    private void serviceRemovedOnShutdown( ServiceReference reference )
+    {
+        if ( getBoundService( reference ) != null || !isSatisfied() )
+        {
+            m_componentManager.log( LogService.LOG_DEBUG,
+                "Dependency Manager: Deactivating component on shutdown, service {0}/{1} removed", new Object[]
+                    { m_dependencyMetadata.getName(), m_dependencyMetadata.getInterface() }, null );
+            m_componentManager.deactivateInternal( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
+        }
+
+        // make sure the service is returned
+        ungetService( reference );
+    }
+
+
     private boolean handleServiceEvent()
     {
         return ( m_componentManager.getState() & STATE_MASK ) != 0;
@@ -434,7 +739,9 @@ public class DependencyManager implements ServiceListener, Reference
 
     public ServiceReference[] getServiceReferences()
     {
-        return getBoundServiceReferences();
+        // don't hand out the cached array
+        final ServiceReference[] refs = getBoundServiceReferences();
+        return ( refs == null ) ? null : refs.clone();
     }
 
 
@@ -483,6 +790,8 @@ public class DependencyManager implements ServiceListener, Reference
      */
     void enable() throws InvalidSyntaxException
     {
+        invalidateServiceCache();
+
         if ( hasGetPermission() )
         {
             // get the current number of registered services available
@@ -490,8 +799,9 @@ public class DependencyManager implements ServiceListener, Reference
             m_size = ( refs == null ) ? 0 : refs.length;
 
             // register the service listener
-            String filterString = "(" + Constants.OBJECTCLASS + "=" + m_dependencyMetadata.getInterface() + ")";
+            String filterString = getListenerFilter();
             m_componentManager.getActivator().getBundleContext().addServiceListener( this, filterString );
+            m_listenerFilter = filterString;
 
             m_componentManager.log( LogService.LOG_DEBUG,
                 "Registered for service events, currently {0} service(s) match the filter", new Object[]
@@ -519,6 +829,8 @@ public class DependencyManager implements ServiceListener, Reference
     {
         BundleContext context = m_componentManager.getActivator().getBundleContext();
         context.removeServiceListener( this );
+        m_listenerFilter = null;
+        invalidateServiceCache();
 
         m_size = 0;
 
@@ -658,11 +970,33 @@ public class DependencyManager implements ServiceListener, Reference
      * {@link #getFrameworkServiceReference()} method. If this returns a
      * non-<code>null</code> service instance the service is then considered
      * bound to this instance.
+     * <p>
+     * The result is cached until a service event is received for the
+     * service interface, the target filter changes or a service is ungotten.
+     * Repeated calls of this method therefore neither access the service
+     * registry nor take any locks.
      */
     Object getService()
     {
+        final Object cached = m_cachedService;
+        if ( cached != null )
+        {
+            return ( cached == NO_SERVICE ) ? null : cached;
+        }
+
+        final int generation = getServiceCacheGeneration();
         ServiceReference sr = getFrameworkServiceReference();
-        return ( sr != null ) ? getService( sr ) : null;
+        final Object service = ( sr != null ) ? getService( sr ) : null;
+
+        synchronized ( m_serviceCacheLock )
+        {
+            if ( generation == m_serviceCacheGeneration )
+            {
+                m_cachedService = ( service == null ) ? NO_SERVICE : service;
+            }
+        }
+
+        return service;
     }
 
 
@@ -672,8 +1006,36 @@ public class DependencyManager implements ServiceListener, Reference
      * match the criteria configured for this dependency <code>null</code> is
      * returned. All services returned by this method will be considered bound
      * after this method returns.
+     * <p>
+     * Like the result of {@link #getService()} the array of services is
+     * cached. Each caller gets its own copy of the cached array, which it may
+     * modify, for example <code>ComponentContext.locateServices</code>
+     * callers.
      */
     Object[] getServices()
+    {
+        final Object[] cached = m_cachedServices;
+        if ( cached != null )
+        {
+            return ( cached.length == 0 ) ? null : cached.clone();
+        }
+
+        final int generation = getServiceCacheGeneration();
+        final Object[] services = getFrameworkServices();
+
+        synchronized ( m_serviceCacheLock )
+        {
+            if ( generation == m_serviceCacheGeneration )
+            {
+                m_cachedServices = ( services == null ) ? new Object[0] : services;
+            }
+        }
+
+        return ( services == null ) ? null : services.clone();
+    }
+
+
+    private Object[] getFrameworkServices()
     {
         ServiceReference[] sr = getFrameworkServiceReferences();
         if ( sr == null || sr.length == 0 )
@@ -695,21 +1057,66 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
 
+    private int getServiceCacheGeneration()
+    {
+        synchronized ( m_serviceCacheLock )
+        {
+            return m_serviceCacheGeneration;
+        }
+    }
+
+
+    /**
+     * Drops the cached results of {@link #getService()} and
+     * {@link #getServices()}. Lookups in progress while the cache is
+     * invalidated do not store their (possibly outdated) result.
+     */
+    private void invalidateServiceCache()
+    {
+        synchronized ( m_serviceCacheLock )
+        {
+            m_serviceCacheGeneration++;
+            m_cachedService = null;
+            m_cachedServices = null;
+        }
+    }
+
+
     //---------- bound services maintenance -----------------------------------
 
     /**
      * Returns an array of <code>ServiceReference</code> instances of all
      * services this instance is bound to or <code>null</code> if no services
      * are actually bound.
+     * <p>
+     * The array is cached until the bound services change and shared by all
+     * callers. It must therefore not be modified.
      */
     private ServiceReference[] getBoundServiceReferences()
     {
-        if ( m_bound.isEmpty() )
+        // take the generation before reading the map such that a change
+        // during the copy invalidates the copy
+        final int generation = m_boundGeneration.get();
+        final BoundReferences boundRefs = m_boundRefs;
+        if ( boundRefs != null && boundRefs.m_generation == generation )
         {
-            return null;
+            return boundRefs.m_refs;
         }
 
-        return ( ServiceReference[] ) m_bound.keySet().toArray( new ServiceReference[m_bound.size()] );
+        final ServiceReference[] refs = ( ServiceReference[] ) m_bound.keySet().toArray( new ServiceReference[0] );
+        final BoundReferences newRefs = new BoundReferences( generation, ( refs.length == 0 ) ? null : refs );
+        m_boundRefs = newRefs;
+        return newRefs.m_refs;
+    }
+
+
+    /**
+     * Invalidates the cached references of the bound services. Must be
+     * called after each change of the bound services.
+     */
+    private void boundServicesChanged()
+    {
+        m_boundGeneration.incrementAndGet();
     }
 
 
@@ -738,7 +1145,11 @@ public class DependencyManager implements ServiceListener, Reference
      */
     private void bindService( ServiceReference serviceReference )
     {
-        m_bound.put( serviceReference, BOUND_SERVICE_SENTINEL );
+        // keep the service object if the service has already been acquired
+        if ( m_bound.putIfAbsent( serviceReference, BOUND_SERVICE_SENTINEL ) == null )
+        {
+            boundServicesChanged();
+        }
     }
 
 
@@ -796,9 +1207,30 @@ public class DependencyManager implements ServiceListener, Reference
         }
 
         // keep the service for latter ungetting
-        if ( service != null )
+        while ( service != null )
         {
-            m_bound.put( serviceReference, service );
+            final Object previous = m_bound.putIfAbsent( serviceReference, service );
+            if ( previous == null )
+            {
+                boundServicesChanged();
+                break;
+            }
+            else if ( previous == BOUND_SERVICE_SENTINEL )
+            {
+                // bound without the service object, retry if changed concurrently
+                if ( m_bound.replace( serviceReference, BOUND_SERVICE_SENTINEL, service ) )
+                {
+                    break;
+                }
+            }
+            else
+            {
+                // acquired concurrently, keep the other service and release
+                // the use count taken here even if it is the same object
+                m_componentManager.getActivator().getBundleContext().ungetService( serviceReference );
+                service = previous;
+                break;
+            }
         }
 
         // return the acquired service (may be null of course)
@@ -812,8 +1244,15 @@ public class DependencyManager implements ServiceListener, Reference
      */
     void ungetService( ServiceReference serviceReference )
     {
+        // the service may be the cached lookup result
+        invalidateServiceCache();
+
         // check we really have this service, do nothing if not
         Object service = m_bound.remove( serviceReference );
+        if ( service != null )
+        {
+            boundServicesChanged();
+        }
         if ( service != null && service != BOUND_SERVICE_SENTINEL )
         {
             m_componentManager.getActivator().getBundleContext().ungetService( serviceReference );
@@ -864,7 +1303,7 @@ public class DependencyManager implements ServiceListener, Reference
     boolean open( Object instance )
     {
         m_componentInstance = instance;
-        initBindingMethods();
+        initBindingMethods( instance.getClass() );
         return bind();
     }
 
@@ -877,14 +1316,25 @@ public class DependencyManager implements ServiceListener, Reference
     {
         try
         {
+            // the component does not see any services from now on
+            if ( m_snapshot != null && m_componentInstance != null )
+            {
+                m_snapshot.inject( m_componentInstance, new Object[0] );
+            }
+
+            // unbind methods are called even while the framework shuts down
             unbind( getBoundServiceReferences() );
         }
         finally
         {
+            // keep the binding methods for the next component instance; they
+            // are not invoked until open() sets the next instance because the
+            // methods are only called for a non-null m_componentInstance
+            clearPendingBinds();
             m_componentInstance = null;
-            m_bind = null;
-            m_unbind = null;
             m_bound.clear();
+            boundServicesChanged();
+            invalidateServiceCache();
 
         }
     }
@@ -906,9 +1356,9 @@ public class DependencyManager implements ServiceListener, Reference
             return false;
         }
 
-        // if no bind method is configured or if this is a delayed component,
-        // we have nothing to do and just signal success
-        if ( m_componentInstance == null || m_dependencyMetadata.getBind() == null )
+        // if no bind method or snapshot is configured or if this is a delayed
+        // component, we have nothing to do and just signal success
+        if ( m_componentInstance == null || ( m_dependencyMetadata.getBind() == null && m_snapshot == null ) )
         {
             return true;
         }
@@ -924,7 +1374,15 @@ public class DependencyManager implements ServiceListener, Reference
         {
             // bind all registered services
             ServiceReference[] refs = getFrameworkServiceReferences();
-            if ( refs != null )
+            if ( refs != null && refs.length > 0 && isBulkBind() )
+            {
+                // bind all services with a single call
+                if ( invokeBulkBindMethod( refs ) )
+                {
+                    success = true;
+                }
+            }
+            else if ( refs != null )
             {
                 for ( int index = 0; index < refs.length; index++ )
                 {
@@ -948,6 +1406,8 @@ public class DependencyManager implements ServiceListener, Reference
             }
         }
 
+        updateSnapshot();
+
         // success will be true, if the service is optional or if at least
         // one service was available to be bound (regardless of whether the
         // bind method succeeded or not)
@@ -971,6 +1431,9 @@ public class DependencyManager implements ServiceListener, Reference
         {
             invokeUpdatedMethod( ref );
         }
+
+        // the service ranking may have changed
+        updateSnapshot();
     }
 
 
@@ -1025,6 +1488,12 @@ public class DependencyManager implements ServiceListener, Reference
         // null. This is valid for both immediate and delayed components
         if( m_componentInstance != null )
         {
+            // the snapshot needs the service objects of all bound services
+            if ( m_snapshot != null && getService( ref ) == null )
+            {
+                return false;
+            }
+
             return m_bind.invoke( m_componentInstance, new BindMethod.Service()
             {
                 public ServiceReference getReference()
@@ -1073,6 +1542,232 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
 
+    /**
+     * Returns <code>true</code> if the bind method may be a bulk bind method
+     * taking multiple services. This is the case for dynamic references of
+     * multiple cardinality declared with the DS 1.1-felix namespace.
+     */
+    private boolean isBulkBindApplicable()
+    {
+        return m_dependencyMetadata.getBind() != null && m_dependencyMetadata.isMultiple()
+            && !m_dependencyMetadata.isStatic() && m_componentManager.getComponentMetadata().isDS11Felix();
+    }
+
+
+    /**
+     * Returns <code>true</code> if the component declares a bulk bind method
+     * for this reference, which is then called instead of the bind method.
+     */
+    private boolean isBulkBind()
+    {
+        final BulkBindMethod bulkBind = m_bulkBind;
+        return bulkBind != null && bulkBind.methodExists();
+    }
+
+
+    /**
+     * Calls the bulk bind method for the given services. If the component
+     * has not been created yet, the services are handled by
+     * {@link #invokeBindMethod(ServiceReference)} one by one.
+     *
+     * @return <code>true</code> if at least one service is considered bound.
+     */
+    private boolean invokeBulkBindMethod( final ServiceReference[] refs )
+    {
+        if ( m_componentInstance == null )
+        {
+            boolean success = false;
+            for ( int i = 0; i < refs.length; i++ )
+            {
+                success |= invokeBindMethod( refs[i] );
+            }
+            return success;
+        }
+
+        final BindMethod.Service[] services = new BindMethod.Service[refs.length];
+        for ( int i = 0; i < refs.length; i++ )
+        {
+            final ServiceReference ref = refs[i];
+            services[i] = new BindMethod.Service()
+            {
+                public ServiceReference getReference()
+                {
+                    bindService( ref );
+                    return ref;
+                }
+
+
+                public Object getInstance()
+                {
+                    return getService( ref );
+                }
+            };
+        }
+
+        return m_bulkBind.invoke( m_componentInstance, services, true );
+    }
+
+
+    /**
+     * Adds a service to be bound with the next bulk bind call and schedules
+     * that call unless already scheduled. This way services registered in
+     * quick succession are delivered to the component as batches.
+     */
+    private void addPendingBind( final ServiceReference reference )
+    {
+        synchronized ( m_pendingBinds )
+        {
+            m_pendingBinds.add( reference );
+            if ( m_pendingBindsScheduled )
+            {
+                return;
+            }
+            m_pendingBindsScheduled = true;
+        }
+
+        final BundleComponentActivator activator = m_componentManager.getActivator();
+        if ( activator == null )
+        {
+            clearPendingBinds();
+            return;
+        }
+
+        activator.schedule( new Runnable()
+        {
+            public void run()
+            {
+                bindPendingServices();
+            }
+
+
+            public String toString()
+            {
+                return "Bind added services to " + m_dependencyMetadata.getName() + " of "
+                    + m_componentManager.getName();
+            }
+        } );
+    }
+
+
+    /**
+     * Binds the services added since the last bulk bind call which are
+     * still registered and not bound yet.
+     * <p>
+     * The services are marked bound while being dequeued. A service removed
+     * afterwards is thus unbound by {@link #serviceRemoved(ServiceReference)}
+     * and is no longer marked when the bulk bind method is called, while a
+     * service removed before has already been taken off the pending list.
+     */
+    private void bindPendingServices()
+    {
+        final List claimed;
+        synchronized ( m_pendingBinds )
+        {
+            if ( m_componentInstance == null || !handleServiceEvent() )
+            {
+                m_pendingBinds.clear();
+                m_pendingBindsScheduled = false;
+                return;
+            }
+
+            claimed = new ArrayList( m_pendingBinds.size() );
+            for ( int i = 0; i < m_pendingBinds.size(); i++ )
+            {
+                final ServiceReference ref = ( ServiceReference ) m_pendingBinds.get( i );
+                if ( ref.getBundle() != null && m_bound.putIfAbsent( ref, BOUND_SERVICE_SENTINEL ) == null )
+                {
+                    claimed.add( ref );
+                }
+            }
+            m_pendingBinds.clear();
+            m_pendingBindsScheduled = false;
+        }
+
+        if ( claimed.isEmpty() )
+        {
+            return;
+        }
+        boundServicesChanged();
+
+        // leave out the services removed and unbound in the meantime
+        final List refs = new ArrayList( claimed.size() );
+        for ( int i = 0; i < claimed.size(); i++ )
+        {
+            final ServiceReference ref = ( ServiceReference ) claimed.get( i );
+            if ( getBoundService( ref ) != null )
+            {
+                refs.add( ref );
+            }
+        }
+
+        if ( !refs.isEmpty() )
+        {
+            m_componentManager.log( LogService.LOG_DEBUG, "Dependency Manager: Binding {0} added services to {1}",
+                new Object[]
+                    { new Integer( refs.size() ), m_dependencyMetadata.getName() }, null );
+            invokeBulkBindMethod( ( ServiceReference[] ) refs.toArray( new ServiceReference[refs.size()] ) );
+            updateSnapshot();
+        }
+    }
+
+
+    private void removePendingBind( final ServiceReference reference )
+    {
+        synchronized ( m_pendingBinds )
+        {
+            m_pendingBinds.remove( reference );
+        }
+    }
+
+
+    private void clearPendingBinds()
+    {
+        synchronized ( m_pendingBinds )
+        {
+            m_pendingBinds.clear();
+            m_pendingBindsScheduled = false;
+        }
+    }
+
+
+    /**
+     * Injects a new snapshot of the bound services ordered by descending
+     * service ranking into the component if the reference declares a
+     * snapshot. Services only marked as bound are acquired for the snapshot.
+     */
+    private void updateSnapshot()
+    {
+        final SnapshotInjector snapshot = m_snapshot;
+        final Object componentInstance = m_componentInstance;
+        if ( snapshot == null || componentInstance == null )
+        {
+            return;
+        }
+
+        synchronized ( m_snapshotLock )
+        {
+            final List services = new ArrayList();
+            final ServiceReference[] boundRefs = getBoundServiceReferences();
+            if ( boundRefs != null )
+            {
+                // highest ranking first, sorting a copy of the cached array
+                final ServiceReference[] refs = boundRefs.clone();
+                Arrays.sort( refs, Collections.reverseOrder() );
+                for ( int i = 0; i < refs.length; i++ )
+                {
+                    final Object service = getService( refs[i] );
+                    if ( service != null )
+                    {
+                        services.add( service );
+                    }
+                }
+            }
+
+            snapshot.inject( componentInstance, services.toArray() );
+        }
+    }
+
+
     /**
      * Calls the updated method.
      *
@@ -1153,6 +1848,18 @@ public class DependencyManager implements ServiceListener, Reference
 
     //------------- Service target filter support -----------------------------
 
+    /**
+     * Returns <code>true</code> if the target filter of this dependency may
+     * be changed by a change of the given component properties. This is the
+     * case if the set of changed properties is <code>null</code> (unknown)
+     * or contains the target property of this dependency.
+     */
+    boolean isTargetAffected( Set changedKeys )
+    {
+        return changedKeys == null || changedKeys.contains( m_dependencyMetadata.getTargetPropertyName() );
+    }
+
+
     /**
      * Returns <code>true</code> if the <code>properties</code> can be
      * dynamically applied to the component to which the dependency manager
@@ -1258,11 +1965,15 @@ public class DependencyManager implements ServiceListener, Reference
         }
 
         m_target = target;
+        invalidateServiceCache();
         if ( target != null )
         {
             try
             {
-                m_targetFilter = m_componentManager.getActivator().getBundleContext().createFilter( target );
+                // use the filter compiled with the declaration if not overwritten
+                final Filter declaredFilter = m_dependencyMetadata.getTargetFilter();
+                m_targetFilter = ( declaredFilter != null && target.equals( m_dependencyMetadata.getTarget() ) )
+                    ? declaredFilter : FilterCache.getFilter( target );
             }
             catch ( InvalidSyntaxException ise )
             {
@@ -1275,6 +1986,9 @@ public class DependencyManager implements ServiceListener, Reference
             m_targetFilter = null;
         }
 
+        // have the framework apply the new target filter to service events
+        updateListenerFilter();
+
         // check for services to be removed
         if ( m_targetFilter != null )
         {
@@ -1328,6 +2042,110 @@ public class DependencyManager implements ServiceListener, Reference
     }
 
 
+    /**
+     * Returns the filter for the service listener. This is the objectClass
+     * filter for the service interface combined with the target filter such
+     * that the framework only sends events for matching services. Events
+     * for services no longer matching the target filter after modification
+     * of their properties are then received as <code>MODIFIED_ENDMATCH</code>
+     * events. If the framework does not support these events, the target
+     * filter is not included and applied to each event instead.
+     */
+    private String getListenerFilter()
+    {
+        final String classFilter = "(" + Constants.OBJECTCLASS + "=" + m_dependencyMetadata.getInterface() + ")";
+        if ( m_targetFilter == null || !isModifiedEndMatchSupported() )
+        {
+            return classFilter;
+        }
+        return "(&" + classFilter + m_target + ")";
+    }
+
+
+    /**
+     * Registers the service listener again with the filter for the current
+     * target filter if the listener is registered and the filter changed.
+     * Registering an already registered listener just replaces its filter.
+     */
+    private void updateListenerFilter()
+    {
+        final String currentFilter = m_listenerFilter;
+        if ( currentFilter == null )
+        {
+            return;
+        }
+
+        final String filterString = getListenerFilter();
+        if ( filterString.equals( currentFilter ) )
+        {
+            return;
+        }
+
+        final BundleComponentActivator activator = m_componentManager.getActivator();
+        final BundleContext context = ( activator != null ) ? activator.getBundleContext() : null;
+        if ( context == null )
+        {
+            return;
+        }
+
+        try
+        {
+            context.addServiceListener( this, filterString );
+            m_listenerFilter = filterString;
+        }
+        catch ( InvalidSyntaxException ise )
+        {
+            // not expected since the target filter has been created before
+            m_componentManager.log( LogService.LOG_ERROR, "Cannot apply target filter ''{0}'' to service events",
+                new Object[]
+                    { m_target }, ise );
+        }
+        catch ( IllegalStateException ise )
+        {
+            // bundle context is not valid any longer
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if the framework sends
+     * <code>MODIFIED_ENDMATCH</code> service events, which have been added
+     * with version 1.5 of the framework API.
+     */
+    private boolean isModifiedEndMatchSupported()
+    {
+        Boolean supported = m_modifiedEndMatchSupported;
+        if ( supported == null )
+        {
+            supported = Boolean.FALSE;
+            final BundleComponentActivator activator = m_componentManager.getActivator();
+            final BundleContext context = ( activator != null ) ? activator.getBundleContext() : null;
+            if ( context == null )
+            {
+                return false;
+            }
+
+            final String version = context.getProperty( Constants.FRAMEWORK_VERSION );
+            if ( version != null )
+            {
+                try
+                {
+                    final String[] parts = version.split( "\\." );
+                    final int major = Integer.parseInt( parts[0] );
+                    final int minor = ( parts.length > 1 ) ? Integer.parseInt( parts[1] ) : 0;
+                    supported = Boolean.valueOf( major > 1 || ( major == 1 && minor >= 5 ) );
+                }
+                catch ( NumberFormatException nfe )
+                {
+                    // unexpected version format, don't rely on the events
+                }
+            }
+            m_modifiedEndMatchSupported = supported;
+        }
+        return supported.booleanValue();
+    }
+
+
     /**
      * Checks whether the service references matches the target filter of this
      * dependency.
@@ -1340,4 +2158,24 @@ public class DependencyManager implements ServiceListener, Reference
     {
         return m_targetFilter == null || m_targetFilter.match( ref );
     }
+
+
+    /**
+     * The <code>BoundReferences</code> class holds the cached references of
+     * the bound services along with the generation of the bound services
+     * they have been taken from.
+     */
+    private static final class BoundReferences
+    {
+        final int m_generation;
+
+        final ServiceReference[] m_refs;
+
+
+        BoundReferences( final int generation, final ServiceReference[] refs )
+        {
+            m_generation = generation;
+            m_refs = refs;
+        }
+    }
 }
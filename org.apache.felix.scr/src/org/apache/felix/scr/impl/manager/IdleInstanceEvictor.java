@@ -0,0 +1,374 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.manager;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.felix.scr.impl.Activator;
+import org.apache.felix.scr.impl.BundleComponentActivator;
+import org.apache.felix.scr.impl.config.ScrConfiguration;
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>IdleInstanceEvictor</code> evicts the instances of delayed and
+ * service factory components which are not used any longer. While eviction
+ * is enabled, these components keep their instances after the last bundle
+ * has released the service, such that a bundle acquiring the service again
+ * gets the same instance. The instances no bundle is using are disposed of
+ * once evicted. Instances still in use are never touched and the service
+ * registration of the component is left as is.
+ * <p>
+ * Unused instances are evicted if the service has not been acquired or
+ * released for the {@link ScrConfiguration#getIdleTimeout() idle timeout} or
+ * if the heap usage exceeds the
+ * {@link ScrConfiguration#getIdleHeapThreshold() heap threshold}. The latter
+ * is detected with memory usage threshold notifications of the platform
+ * <code>MemoryMXBean</code>.
+ */
+public final class IdleInstanceEvictor
+{
+
+    private final ScrConfiguration m_configuration;
+
+    // the components whose instances may currently be in use
+    private final Set m_components = Collections.newSetFromMap( new ConcurrentHashMap() );
+
+    // the number of evictions and of the instances evicted thereby
+    private final AtomicLong m_evictions = new AtomicLong();
+    private final AtomicLong m_evictedInstances = new AtomicLong();
+
+    // the heap threshold currently applied, guarded by this
+    private int m_heapThreshold;
+
+    // the listener to heap threshold notifications, guarded by this
+    private HeapMonitor m_heapMonitor;
+
+
+    public IdleInstanceEvictor( final ScrConfiguration configuration )
+    {
+        m_configuration = configuration;
+        applyHeapThreshold();
+    }
+
+
+    /**
+     * Called when the SCR configuration has been updated. Applies a changed
+     * heap threshold and evicts the unused instances of all components if
+     * eviction has been switched off.
+     */
+    public void configurationUpdated()
+    {
+        applyHeapThreshold();
+
+        if ( !isEnabled() && !m_components.isEmpty() )
+        {
+            evictAll( "Idle instance eviction switched off" );
+        }
+    }
+
+
+    /**
+     * Returns <code>true</code> if components should keep their instances
+     * no bundle is using for them to be evicted later.
+     */
+    boolean isEnabled()
+    {
+        return m_configuration.getIdleTimeout() > 0 || m_configuration.getIdleHeapThreshold() > 0;
+    }
+
+
+    /**
+     * Stops monitoring the heap and forgets about all components.
+     */
+    public synchronized void dispose()
+    {
+        if ( m_heapMonitor != null )
+        {
+            m_heapMonitor.close();
+            m_heapMonitor = null;
+        }
+        m_heapThreshold = 0;
+        m_components.clear();
+    }
+
+
+    /**
+     * Returns the number of times instances of components have been evicted.
+     */
+    public long getEvictionCount()
+    {
+        return m_evictions.get();
+    }
+
+
+    /**
+     * Returns the number of component instances evicted.
+     */
+    public long getEvictedInstanceCount()
+    {
+        return m_evictedInstances.get();
+    }
+
+
+    /**
+     * Called when a bundle acquires or releases the service of the component.
+     * If the component is not known yet, its instances are from now on
+     * candidates for eviction and a check for the component being idle is
+     * scheduled.
+     */
+    void serviceUsed( final AbstractComponentManager component )
+    {
+        if ( m_components.add( component ) )
+        {
+            final long timeout = m_configuration.getIdleTimeout();
+            if ( timeout > 0 )
+            {
+                scheduleIdleCheck( component, timeout );
+            }
+        }
+    }
+
+
+    /**
+     * Called when the component is disposed of.
+     */
+    void forget( final AbstractComponentManager component )
+    {
+        m_components.remove( component );
+    }
+
+
+    private void scheduleIdleCheck( final AbstractComponentManager component, final long delay )
+    {
+        final BundleComponentActivator activator = component.getActivator();
+        if ( activator == null )
+        {
+            m_components.remove( component );
+            return;
+        }
+
+        final boolean scheduled = activator.schedule( new Runnable()
+        {
+            public void run()
+            {
+                final long timeout = m_configuration.getIdleTimeout();
+                if ( component.getState() != AbstractComponentManager.STATE_ACTIVE || timeout <= 0 )
+                {
+                    // no instances any more or idle eviction switched off,
+                    // the next use of the service tracks the component again
+                    m_components.remove( component );
+                    return;
+                }
+
+                final long idle = System.currentTimeMillis() - component.getLastServiceUse();
+                if ( idle >= timeout )
+                {
+                    m_components.remove( component );
+                    evict( component );
+                }
+                else
+                {
+                    scheduleIdleCheck( component, timeout - idle );
+                }
+            }
+
+
+            public String toString()
+            {
+                return "Check idle instances of " + component.getName();
+            }
+        }, delay );
+
+        if ( !scheduled )
+        {
+            m_components.remove( component );
+        }
+    }
+
+
+    /**
+     * Schedules eviction of the instances of all components because the
+     * heap threshold has been exceeded.
+     */
+    private void heapThresholdExceeded()
+    {
+        evictAll( "Heap usage threshold exceeded" );
+    }
+
+
+    /**
+     * Schedules eviction of the unused instances of all components.
+     */
+    private void evictAll( final String cause )
+    {
+        Activator.log( LogService.LOG_INFO, null, cause + ", evicting instances of " + m_components.size()
+            + " components", null );
+
+        for ( Iterator ci = m_components.iterator(); ci.hasNext(); )
+        {
+            final AbstractComponentManager component = ( AbstractComponentManager ) ci.next();
+            ci.remove();
+
+            final BundleComponentActivator activator = component.getActivator();
+            if ( activator != null )
+            {
+                activator.schedule( new Runnable()
+                {
+                    public void run()
+                    {
+                        evict( component );
+                    }
+
+
+                    public String toString()
+                    {
+                        return "Evict instances of " + component.getName();
+                    }
+                } );
+            }
+        }
+    }
+
+
+    private void evict( final AbstractComponentManager component )
+    {
+        final int instances = component.evictInstances();
+        if ( instances > 0 )
+        {
+            m_evictions.incrementAndGet();
+            m_evictedInstances.addAndGet( instances );
+        }
+    }
+
+
+    /**
+     * Starts, stops or adjusts monitoring of the heap if the configured heap
+     * threshold has changed.
+     */
+    private synchronized void applyHeapThreshold()
+    {
+        final int threshold = Math.min( m_configuration.getIdleHeapThreshold(), 100 );
+        if ( threshold == m_heapThreshold )
+        {
+            return;
+        }
+        m_heapThreshold = threshold;
+
+        if ( m_heapMonitor != null )
+        {
+            m_heapMonitor.close();
+            m_heapMonitor = null;
+        }
+
+        if ( threshold > 0 )
+        {
+            try
+            {
+                m_heapMonitor = new HeapMonitor( this, threshold );
+            }
+            catch ( Throwable t )
+            {
+                // the management API may not be available
+                Activator.log( LogService.LOG_WARNING, null, "Cannot monitor heap usage for evicting idle instances",
+                    t );
+            }
+        }
+    }
+
+    /**
+     * The <code>HeapMonitor</code> sets the usage threshold of the heap
+     * memory pools and listens for notifications of the threshold being
+     * exceeded. This is a separate class such that the management API is
+     * only required if the heap threshold is configured.
+     */
+    private static class HeapMonitor implements NotificationListener
+    {
+
+        private final IdleInstanceEvictor m_evictor;
+
+        // the memory pools with the usage threshold set, indexed by the
+        // pools with the previous thresholds as values
+        private final Map m_pools = new HashMap();
+
+
+        HeapMonitor( final IdleInstanceEvictor evictor, final int threshold )
+        {
+            m_evictor = evictor;
+
+            for ( Iterator pi = ManagementFactory.getMemoryPoolMXBeans().iterator(); pi.hasNext(); )
+            {
+                final MemoryPoolMXBean pool = ( MemoryPoolMXBean ) pi.next();
+                final long max = pool.getUsage().getMax();
+                if ( pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && max > 0 )
+                {
+                    m_pools.put( pool, new Long( pool.getUsageThreshold() ) );
+                    pool.setUsageThreshold( max / 100 * threshold );
+                }
+            }
+
+            ( ( NotificationEmitter ) ManagementFactory.getMemoryMXBean() ).addNotificationListener( this, null,
+                null );
+        }
+
+
+        void close()
+        {
+            try
+            {
+                ( ( NotificationEmitter ) ManagementFactory.getMemoryMXBean() ).removeNotificationListener( this );
+            }
+            catch ( Exception e )
+            {
+                // not registered
+            }
+
+            for ( Iterator pi = m_pools.entrySet().iterator(); pi.hasNext(); )
+            {
+                final Map.Entry entry = ( Map.Entry ) pi.next();
+                ( ( MemoryPoolMXBean ) entry.getKey() ).setUsageThreshold( ( ( Long ) entry.getValue() ).longValue() );
+            }
+            m_pools.clear();
+        }
+
+
+        public void handleNotification( final Notification notification, final Object handback )
+        {
+            if ( MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals( notification.getType() ) )
+            {
+                m_evictor.heapThresholdExceeded();
+            }
+        }
+    }
+}
@@ -19,15 +19,20 @@
 package org.apache.felix.scr.impl.manager;
 
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
+import org.apache.felix.scr.impl.Activator;
 import org.apache.felix.scr.impl.BundleComponentActivator;
 import org.apache.felix.scr.impl.config.ComponentHolder;
 import org.apache.felix.scr.impl.helper.ActivateMethod;
 import org.apache.felix.scr.impl.helper.DeactivateMethod;
+import org.apache.felix.scr.impl.helper.LayeredDictionary;
 import org.apache.felix.scr.impl.helper.ModifiedMethod;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
 import org.apache.felix.scr.impl.metadata.ReferenceMetadata;
@@ -45,6 +50,10 @@ import org.osgi.service.log.LogService;
 public class ImmediateComponentManager extends AbstractComponentManager
 {
 
+    // parameter types and arguments of the no-argument constructor
+    private static final Class[] NO_PARAMETERS = new Class[0];
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
     // The object that implements the service and that is bound to other services
     private Object m_implementationObject;
 
@@ -55,19 +64,30 @@ public class ImmediateComponentManager extends AbstractComponentManager
     private ComponentHolder m_componentHolder;
 
     // the activate method
-    private ActivateMethod m_activateMethod;
+    private volatile ActivateMethod m_activateMethod;
 
     // the deactivate method
-    private DeactivateMethod m_deactivateMethod;
+    private volatile DeactivateMethod m_deactivateMethod;
 
     // the modify method
-    private ModifiedMethod m_modifyMethod;
+    private volatile ModifiedMethod m_modifyMethod;
+
+    // guards setting up the activate, deactivate and modify methods, which
+    // may happen concurrently when preloading the component
+    private final Object m_methodsLock = new Object();
+
+    // the public no-argument constructor of the implementation class
+    private volatile Constructor m_implementationConstructor;
 
     // optional properties provided in the ComponentFactory.newInstance method
     private Dictionary m_factoryProperties;
 
-    // the component properties, also used as service properties
-    private Dictionary m_properties;
+    // the component properties, also used as service properties, rebuilt
+    // when the configuration, factory properties or component id change
+    private volatile Dictionary m_properties;
+
+    // the service properties last set on the service registration
+    private volatile Dictionary m_publishedServiceProperties;
 
     // the component properties from the Configuration Admin Service
     // this is null, if none exist or none are provided
@@ -174,16 +194,17 @@ public class ImmediateComponentManager extends AbstractComponentManager
         // If the component is not immediate, this is not done at this moment
         try
         {
-            // 112.4.4 The class is retrieved with the loadClass method of the component's bundle
-            implementationObjectClass = getActivator().getBundleContext().getBundle().loadClass(
-                getComponentMetadata().getImplementationClassName() );
-
-            // 112.4.4 The class must be public and have a public constructor without arguments so component instances
-            // may be created by the SCR with the newInstance method on Class
-            implementationObject = implementationObjectClass.newInstance();
+            final Constructor constructor = getImplementationConstructor();
+            implementationObjectClass = constructor.getDeclaringClass();
+            implementationObject = constructor.newInstance( NO_ARGUMENTS );
         }
         catch ( Throwable t )
         {
+            if ( t instanceof InvocationTargetException )
+            {
+                t = ( ( InvocationTargetException ) t ).getTargetException();
+            }
+
             // failed to instantiate, return null
             log( LogService.LOG_ERROR, "Error during instantiation of the implementation object", t );
             return null;
@@ -215,15 +236,8 @@ public class ImmediateComponentManager extends AbstractComponentManager
             }
         }
 
-        // get the method
-        if ( m_activateMethod == null)
-        {
-            m_activateMethod = new ActivateMethod( this, getComponentMetadata().getActivate(), getComponentMetadata()
-                .isActivateDeclared(), implementationObjectClass );
-        }
-
         // 4. Call the activate method, if present
-        if ( !m_activateMethod.invoke( implementationObject,
+        if ( !getActivateMethod( implementationObjectClass ).invoke( implementationObject,
             new ActivateMethod.ActivatorParameter( componentContext, 1 ), false ) )
         {
             // 112.5.8 If the activate method throws an exception, SCR must log an error message
@@ -242,22 +256,193 @@ public class ImmediateComponentManager extends AbstractComponentManager
     }
 
 
-    protected void disposeImplementationObject( Object implementationObject, ComponentContext componentContext,
-        int reason )
+    /**
+     * Returns the public no-argument constructor of the implementation class,
+     * loading the class on first use.
+     */
+    private Constructor getImplementationConstructor() throws ClassNotFoundException, NoSuchMethodException
+    {
+        Constructor constructor = m_implementationConstructor;
+        if ( constructor == null )
+        {
+            // 112.4.4 The class is retrieved with the loadClass method of the component's bundle
+            final Class implementationClass = getActivator().getBundleContext().getBundle().loadClass(
+                getComponentMetadata().getImplementationClassName() );
+
+            // 112.4.4 The class must be public and have a public constructor without arguments so component instances
+            // may be created by the SCR
+            constructor = implementationClass.getConstructor( NO_PARAMETERS );
+            m_implementationConstructor = constructor;
+        }
+        return constructor;
+    }
+
+
+    /**
+     * Loads the implementation class, looks up its constructor and resolves
+     * the activate, deactivate, modified and binding methods such that
+     * activating the component later only has to create and bind the
+     * instance.
+     * <p>
+     * Binding methods are only resolved for existing dependency managers. A
+     * component requiring configuration which has not been provided yet has
+     * no dependency managers, so its binding methods are resolved when the
+     * first service is bound after the configuration arrives.
+     */
+    protected void preload()
+    {
+        try
+        {
+            final Class implementationClass = getImplementationConstructor().getDeclaringClass();
+
+            getActivateMethod( implementationClass ).methodExists();
+            getDeactivateMethod( implementationClass ).methodExists();
+            if ( getComponentMetadata().getModified() != null )
+            {
+                getModifyMethod( implementationClass ).methodExists();
+            }
+
+            Iterator it = getDependencyManagers();
+            while ( it.hasNext() )
+            {
+                ( ( DependencyManager ) it.next() ).preload( implementationClass );
+            }
+
+            log( LogService.LOG_DEBUG, "Preloaded implementation class {0}", new Object[]
+                { implementationClass.getName() }, null );
+        }
+        catch ( Throwable t )
+        {
+            // not fatal here, activation will fail and report the problem
+            log( LogService.LOG_DEBUG, "Cannot preload implementation class", t );
+        }
+    }
+
+
+    /**
+     * Returns the activate method for the implementation class, setting it up
+     * on first use. The deactivate and modify methods are set up likewise.
+     * Setting up the methods is serialized since the component may be
+     * preloaded and activated concurrently.
+     */
+    private ActivateMethod getActivateMethod( final Class implementationClass )
+    {
+        synchronized ( m_methodsLock )
+        {
+            if ( m_activateMethod == null )
+            {
+                m_activateMethod = new ActivateMethod( this, getComponentMetadata().getActivate(),
+                    getComponentMetadata().isActivateDeclared(), implementationClass );
+            }
+            return m_activateMethod;
+        }
+    }
+
+
+    private DeactivateMethod getDeactivateMethod( final Class implementationClass )
     {
+        synchronized ( m_methodsLock )
+        {
+            if ( m_deactivateMethod == null )
+            {
+                m_deactivateMethod = new DeactivateMethod( this, getComponentMetadata().getDeactivate(),
+                    getComponentMetadata().isDeactivateDeclared(), implementationClass );
+            }
+            return m_deactivateMethod;
+        }
+    }
+
 
-        // get the method
-        if ( m_deactivateMethod == null )
+    private ModifiedMethod getModifyMethod( final Class implementationClass )
+    {
+        synchronized ( m_methodsLock )
         {
-            m_deactivateMethod = new DeactivateMethod( this, getComponentMetadata().getDeactivate(),
-                getComponentMetadata().isDeactivateDeclared(), implementationObject.getClass() );
+            if ( m_modifyMethod == null )
+            {
+                m_modifyMethod = new ModifiedMethod( this, getComponentMetadata().getModified(), implementationClass );
+            }
+            return m_modifyMethod;
         }
+    }
+
+
+    /**
+     * Prepares this component manager for activation without enabling it.
+     * If a template is given, its resolution is taken over as described for
+     * {@link #copyResolution(ImmediateComponentManager)}. Otherwise the
+     * dependency managers are created and the implementation class and the
+     * component and binding methods are resolved.
+     *
+     * @return <code>true</code> if the implementation class is available
+     */
+    boolean prepare( final ImmediateComponentManager template )
+    {
+        if ( template != null )
+        {
+            copyResolution( template );
+        }
+        else
+        {
+            loadDependencyManagers();
+            preload();
+        }
+        return m_implementationConstructor != null;
+    }
+
+
+    /**
+     * Takes over the implementation constructor as well as the component
+     * and binding methods already resolved by another manager of the same
+     * component. This allows creating many instances of a component, for
+     * example from a component factory, while looking up the implementation
+     * class and its methods only once.
+     */
+    void copyResolution( final ImmediateComponentManager template )
+    {
+        final Constructor constructor = template.m_implementationConstructor;
+        if ( constructor == null )
+        {
+            return;
+        }
+
+        m_implementationConstructor = constructor;
+        final Class implementationClass = constructor.getDeclaringClass();
+
+        if ( template.m_activateMethod != null )
+        {
+            getActivateMethod( implementationClass ).copyResolution( template.m_activateMethod );
+        }
+
+        if ( template.m_deactivateMethod != null )
+        {
+            getDeactivateMethod( implementationClass ).copyResolution( template.m_deactivateMethod );
+        }
+
+        if ( template.m_modifyMethod != null )
+        {
+            getModifyMethod( implementationClass ).copyResolution( template.m_modifyMethod );
+        }
+
+        // dependency managers of both managers are in declaration order,
+        // this component is about to be enabled and requires them anyway
+        Iterator it = loadDependencyManagers().iterator();
+        Iterator templateIt = template.getDependencyManagers();
+        while ( it.hasNext() && templateIt.hasNext() )
+        {
+            ( ( DependencyManager ) it.next() ).copyBindingMethods( ( DependencyManager ) templateIt.next() );
+        }
+    }
+
+
+    protected void disposeImplementationObject( Object implementationObject, ComponentContext componentContext,
+        int reason )
+    {
 
         // 1. Call the deactivate method, if present
         // don't care for the result, the error (acccording to 112.5.12 If the deactivate
         // method throws an exception, SCR must log an error message containing the
         // exception with the Log Service and continue) has already been logged
-        m_deactivateMethod.invoke( implementationObject, new ActivateMethod.ActivatorParameter( componentContext,
+        getDeactivateMethod( implementationObject.getClass() ).invoke( implementationObject, new ActivateMethod.ActivatorParameter( componentContext,
             reason ), true );
 
         // 2. Unbind any bound services
@@ -315,49 +500,80 @@ public class ImmediateComponentManager extends AbstractComponentManager
 
 
     /**
-     * Returns the (private copy) of the Component properties to be used
-     * for the ComponentContext as well as eventual service registration.
+     * Returns the Component properties to be used for the ComponentContext as
+     * well as eventual service registration.
      * <p>
      * Method implements the Component Properties provisioning as described
      * in 112.6, Component Properties.
+     * <p>
+     * The properties are built once as an immutable {@link LayeredDictionary}
+     * each time the configuration, the factory properties or the component
+     * id change and are shared by all users without copying. Only if the
+     * OSGi CT workaround is enabled, a writeable <code>Hashtable</code> is
+     * returned.
      *
-     * @return a private Hashtable of component properties
+     * @return the component properties
      */
     public Dictionary getProperties()
     {
-
-        if ( m_properties == null )
+        Dictionary properties = m_properties;
+        if ( properties == null )
         {
-
-            // 1. the properties from the component descriptor
-            Dictionary props = copyTo( null, getComponentMetadata().getProperties() );
-
-            // 2. add target properties of references
+            // 2. target properties of references
             // 112.6 Component Properties, target properties (p. 302)
+            Dictionary targets = null;
             List depMetaData = getComponentMetadata().getDependencies();
             for ( Iterator di = depMetaData.iterator(); di.hasNext(); )
             {
                 ReferenceMetadata rm = ( ReferenceMetadata ) di.next();
                 if ( rm.getTarget() != null )
                 {
-                    props.put( rm.getTargetPropertyName(), rm.getTarget() );
+                    if ( targets == null )
+                    {
+                        targets = new Hashtable();
+                    }
+                    targets.put( rm.getTargetPropertyName(), rm.getTarget() );
                 }
             }
 
-            // 3. overlay with Configuration Admin properties
-            copyTo( props, m_configurationProperties );
+            // 5. component.name and component.id
+            Dictionary component = new Hashtable();
+            component.put( ComponentConstants.COMPONENT_NAME, getComponentMetadata().getName() );
+            component.put( ComponentConstants.COMPONENT_ID, new Long( getId() ) );
 
-            // 4. copy any component factory properties, not supported yet
-            copyTo( props, m_factoryProperties );
+            // 1. the properties from the component descriptor overlayed with
+            // 2. the target properties, 3. the Configuration Admin properties,
+            // 4. any component factory properties and 5. name and id
+            properties = new LayeredDictionary( new Dictionary[]
+                { getComponentMetadata().getProperties(), targets, m_configurationProperties, m_factoryProperties,
+                    component } );
 
-            // 5. set component.name and component.id
-            props.put( ComponentConstants.COMPONENT_NAME, getComponentMetadata().getName() );
-            props.put( ComponentConstants.COMPONENT_ID, new Long( getId() ) );
+            // FELIX-2526: the CT expects to be able to modify the properties
+            if ( Activator.hasCtWorkaround() )
+            {
+                properties = copyTo( null, properties );
+            }
 
-            m_properties = props;
+            m_properties = properties;
         }
 
-        return m_properties;
+        return properties;
+    }
+
+
+    /**
+     * Returns the public component properties as the service properties. If
+     * the component properties are a {@link LayeredDictionary} the service
+     * properties are shared as well instead of being copied.
+     */
+    public Dictionary getServiceProperties()
+    {
+        final Dictionary properties = getProperties();
+        if ( properties instanceof LayeredDictionary )
+        {
+            return ( ( LayeredDictionary ) properties ).getPublicProperties();
+        }
+        return super.getServiceProperties();
     }
 
 
@@ -387,11 +603,20 @@ public class ImmediateComponentManager extends AbstractComponentManager
         }
 
         // store the properties
+        final Dictionary previousConfiguration = m_configurationProperties;
         m_configurationProperties = configuration;
 
         // clear the current properties to force using the configuration data
+        final Dictionary previousProperties = m_properties;
         m_properties = null;
 
+        // a new configuration may resolve the cause of failed activations
+        if ( getState() == STATE_FAILED_BACKOFF )
+        {
+            retryActivation();
+            return;
+        }
+
         if ( getState() == STATE_UNSATISFIED && configuration != null
             && getComponentMetadata().isConfigurationRequired() )
         {
@@ -407,13 +632,20 @@ public class ImmediateComponentManager extends AbstractComponentManager
             return;
         }
 
+        // nothing to do if the configuration did not change
+        if ( configuration != null && LayeredDictionary.equalProperties( configuration, previousConfiguration ) )
+        {
+            log( LogService.LOG_DEBUG, "Configuration not changed, nothing to do", null );
+            return;
+        }
+
         // if the configuration has been deleted but configuration is required
         // this component must be deactivated
         if ( configuration == null && getComponentMetadata().isConfigurationRequired() )
         {
             deactivateInternal( ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_DELETED );
         }
-        else if ( configuration == null | !modify() )
+        else if ( configuration == null | !modify( previousProperties ) )
         {
             // SCR 112.7.1 - deactivate if configuration is deleted or no modified method declared
             log( LogService.LOG_DEBUG, "Deactivating and Activating to reconfigure from configuration", null );
@@ -428,7 +660,78 @@ public class ImmediateComponentManager extends AbstractComponentManager
         }
     }
 
-    private boolean modify() {
+    /**
+     * Applies changed component properties or target filters of dynamic
+     * references from an updated component declaration. Property changes are
+     * handled like a configuration update: the modified method is called if
+     * declared, otherwise the component is reactivated. Target filter changes
+     * alone only rebind the affected references.
+     */
+    protected void metadataUpdated( int changes )
+    {
+        // rebuild the properties from the new metadata
+        final Dictionary previousProperties = m_properties;
+        m_properties = null;
+
+        if ( getState() == STATE_UNSATISFIED )
+        {
+            // a changed target filter may make the component satisfied
+            if ( ( changes & ComponentMetadata.CHANGE_REFERENCE_TARGET ) != 0 )
+            {
+                activateInternal();
+            }
+        }
+        else if ( ( getState() & ( STATE_ACTIVE | STATE_REGISTERED ) ) != 0 )
+        {
+            if ( ( changes & ComponentMetadata.CHANGE_PROPERTIES ) != 0 )
+            {
+                if ( !modify( previousProperties ) )
+                {
+                    log( LogService.LOG_DEBUG, "Deactivating and Activating to apply updated component properties",
+                        null );
+                    deactivateInternal( ComponentConstants.DEACTIVATION_REASON_CONFIGURATION_MODIFIED );
+                    activateInternal();
+                }
+            }
+            else if ( !verifyDependencyManagers( getProperties(), getChangedProperties( previousProperties ) ) )
+            {
+                log( LogService.LOG_DEBUG, "Updated target filter caused a reference to become unsatisfied", null );
+                deactivateInternal( ComponentConstants.DEACTIVATION_REASON_REFERENCE );
+            }
+            else
+            {
+                // target filters are published as service properties
+                updateServiceRegistration();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the names of the component properties changed with respect to
+     * the given previous component properties or <code>null</code> if the
+     * changes cannot be determined.
+     */
+    private Set getChangedProperties( final Dictionary previousProperties )
+    {
+        final Dictionary properties = getProperties();
+        if ( previousProperties == null || !( properties instanceof LayeredDictionary ) )
+        {
+            return null;
+        }
+        return ( ( LayeredDictionary ) properties ).getChangedKeys( previousProperties );
+    }
+
+
+    /**
+     * Applies the current component properties to the active component by
+     * calling the modified method if possible.
+     *
+     * @param previousProperties The component properties before the change
+     *      or <code>null</code> if not known. Only the target filters of
+     *      references whose target property changed are checked and updated.
+     */
+    private boolean modify( final Dictionary previousProperties ) {
         // 0. no live update if there is no instance
         if ( getInstance() == null )
         {
@@ -443,20 +746,18 @@ public class ImmediateComponentManager extends AbstractComponentManager
         // invariant: we have a modified method name
 
         // 2. get and check configured method
-        if ( m_modifyMethod == null )
-        {
-            m_modifyMethod = new ModifiedMethod( this, getComponentMetadata().getModified(), getInstance().getClass() );
-        }
+        final ModifiedMethod modifyMethod = getModifyMethod( getInstance().getClass() );
         // invariant: modify method is configured and found
 
         // 3. check whether we can dynamically apply the configuration if
         // any target filters influence the bound services
         final Dictionary props = getProperties();
+        final Set changedKeys = getChangedProperties( previousProperties );
         Iterator it = getDependencyManagers();
         while ( it.hasNext() )
         {
             DependencyManager dm = ( DependencyManager ) it.next();
-            if ( !dm.canUpdateDynamically( props ) )
+            if ( dm.isTargetAffected( changedKeys ) && !dm.canUpdateDynamically( props ) )
             {
                 log( LogService.LOG_INFO,
                     "Cannot dynamically update the configuration due to dependency changes induced on dependency {0}",
@@ -468,7 +769,7 @@ public class ImmediateComponentManager extends AbstractComponentManager
         // invariant: modify method existing and no static bound service changes
 
         // 4. call method (nothing to do when failed, since it has already been logged)
-        if ( !m_modifyMethod.invoke( getInstance(), new ActivateMethod.ActivatorParameter( m_componentContext, -1 ),
+        if ( !modifyMethod.invoke( getInstance(), new ActivateMethod.ActivatorParameter( m_componentContext, -1 ),
             true ) )
         {
             // log an error if the declared method cannot be found
@@ -481,7 +782,7 @@ public class ImmediateComponentManager extends AbstractComponentManager
         // 5. update the target filter on the services now, this may still
         // result in unsatisfied dependencies, in which case we abort
         // this dynamic update and have the component be deactivated
-        if ( !verifyDependencyManagers( props ) )
+        if ( !verifyDependencyManagers( props, changedKeys ) )
         {
             log(
                 LogService.LOG_ERROR,
@@ -491,6 +792,19 @@ public class ImmediateComponentManager extends AbstractComponentManager
         }
 
         // 6. update service registration properties
+        updateServiceRegistration();
+
+        // 7. everything set and done, the component has been udpated
+        return true;
+    }
+
+
+    /**
+     * Updates the properties of the service registration, if any, with the
+     * current service properties unless they did not change.
+     */
+    private void updateServiceRegistration()
+    {
         ServiceRegistration sr = getServiceRegistration();
         if ( sr != null )
         {
@@ -498,10 +812,32 @@ public class ImmediateComponentManager extends AbstractComponentManager
             {
                 // Don't propagate if service properties did not change.
                 final Dictionary regProps = getServiceProperties();
-                if ( !servicePropertiesMatches( sr, regProps ) )
+                final Dictionary published = m_publishedServiceProperties;
+                if ( regProps == published )
                 {
-                    sr.setProperties( regProps );
+                    return;
                 }
+
+                if ( published != null && regProps instanceof LayeredDictionary )
+                {
+                    // compare against the last published properties
+                    final Set changedKeys = ( ( LayeredDictionary ) regProps ).getChangedKeys( published );
+                    if ( changedKeys.isEmpty() )
+                    {
+                        m_publishedServiceProperties = regProps;
+                        return;
+                    }
+
+                    log( LogService.LOG_DEBUG, "Updating service properties, changed: {0}", new Object[]
+                        { changedKeys }, null );
+                }
+                else if ( servicePropertiesMatches( sr, regProps ) )
+                {
+                    return;
+                }
+
+                sr.setProperties( regProps );
+                servicePropertiesPublished( regProps );
             }
             catch ( IllegalStateException ise )
             {
@@ -519,9 +855,17 @@ public class ImmediateComponentManager extends AbstractComponentManager
                     t );
             }
         }
+    }
 
-        // 7. everything set and done, the component has been udpated
-        return true;
+
+    /**
+     * Remembers the service properties last published with the service
+     * registration to be able to detect unchanged and changed service
+     * properties without accessing the service registration.
+     */
+    protected void servicePropertiesPublished( Dictionary serviceProperties )
+    {
+        m_publishedServiceProperties = serviceProperties;
     }
 
 
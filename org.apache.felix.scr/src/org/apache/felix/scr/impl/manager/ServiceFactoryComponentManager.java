@@ -19,7 +19,11 @@
 package org.apache.felix.scr.impl.manager;
 
 
-import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.impl.BundleComponentActivator;
 import org.apache.felix.scr.impl.config.ComponentHolder;
@@ -28,7 +32,6 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentConstants;
-import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.ComponentInstance;
 import org.osgi.service.log.LogService;
 
@@ -40,8 +43,19 @@ public class ServiceFactoryComponentManager extends ImmediateComponentManager im
 {
 
     // maintain the map of ComponentContext objects created for the
-    // service instances
-    private IdentityHashMap serviceContexts = new IdentityHashMap();
+    // service instances indexed by the using bundle. The framework requests
+    // at most one service instance per bundle from a service factory.
+    private final ConcurrentMap serviceContexts = new ConcurrentHashMap();
+
+    // the ComponentContext objects of the service instances kept after
+    // the using bundle released them until evicted for being idle
+    private final ConcurrentMap idleContexts = new ConcurrentHashMap();
+
+    // the number of service instances currently in use or kept idle
+    private final AtomicInteger useCount = new AtomicInteger();
+
+    // guards switching between the REGISTERED and ACTIVE states
+    private final Object useStateLock = new Object();
 
 
     /**
@@ -74,6 +88,14 @@ public class ServiceFactoryComponentManager extends ImmediateComponentManager im
     }
 
 
+    protected void deleteComponent( int reason )
+    {
+        // the instances in use are disposed of by ungetService, only the
+        // instances kept idle are left to dispose of
+        disposeIdleInstances( reason );
+    }
+
+
     protected Object getService()
     {
         return this;
@@ -91,6 +113,30 @@ public class ServiceFactoryComponentManager extends ImmediateComponentManager im
     }
 
 
+    int disposeIdleInstances()
+    {
+        return disposeIdleInstances( ComponentConstants.DEACTIVATION_REASON_UNSPECIFIED );
+    }
+
+
+    private int disposeIdleInstances( final int reason )
+    {
+        int count = 0;
+        for ( Iterator ci = idleContexts.entrySet().iterator(); ci.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) ci.next();
+
+            // the bundle may be reacquiring the instance concurrently
+            if ( idleContexts.remove( entry.getKey(), entry.getValue() ) )
+            {
+                disposeInstance( ( BundleComponentContext ) entry.getValue(), reason );
+                count++;
+            }
+        }
+        return count;
+    }
+
+
     /* (non-Javadoc)
      * @see org.osgi.framework.ServiceFactory#getService(org.osgi.framework.Bundle, org.osgi.framework.ServiceRegistration)
      */
@@ -98,6 +144,15 @@ public class ServiceFactoryComponentManager extends ImmediateComponentManager im
     {
         log( LogService.LOG_DEBUG, "ServiceFactory.getService()", null );
 
+        // reuse the instance kept since the bundle last released the service
+        final BundleComponentContext idleContext = ( BundleComponentContext ) idleContexts.remove( bundle );
+        if ( idleContext != null )
+        {
+            serviceContexts.put( bundle, idleContext );
+            serviceUsed();
+            return idleContext.getInstance();
+        }
+
         // When the getServiceMethod is called, the implementation object must be created
 
         // private ComponentContext and implementation instances
@@ -108,17 +163,15 @@ public class ServiceFactoryComponentManager extends ImmediateComponentManager im
         if ( service != null )
         {
             serviceContext.setImplementationObject( service );
+            serviceContexts.put( bundle, serviceContext );
 
-            synchronized ( serviceContexts )
+            // if this is the first use of this component, switch to ACTIVE state
+            if ( useCount.getAndIncrement() == 0 )
             {
-                serviceContexts.put( service, serviceContext );
-
-                // if this is the first use of this component, switch to ACTIVE state
-                if ( getState() == STATE_REGISTERED )
-                {
-                    changeState( Active.getInstance() );
-                }
+                updateUseState();
             }
+
+            serviceUsed();
         }
         else
         {
@@ -141,18 +194,56 @@ public class ServiceFactoryComponentManager extends ImmediateComponentManager im
         // When the ungetServiceMethod is called, the implementation object must be deactivated
 
         // private ComponentContext and implementation instances
-        final ComponentContext serviceContext;
-        synchronized ( serviceContexts )
+        final BundleComponentContext serviceContext = ( BundleComponentContext ) serviceContexts.get( bundle );
+        if ( serviceContext == null || serviceContext.getInstance() != service
+            || !serviceContexts.remove( bundle, serviceContext ) )
         {
-            serviceContext = ( ComponentContext ) serviceContexts.remove( service );
+            log( LogService.LOG_DEBUG, "ServiceFactory.ungetService(): Ignoring unknown service instance", null );
+            return;
         }
 
-        disposeImplementationObject( service, serviceContext, ComponentConstants.DEACTIVATION_REASON_DISPOSED );
+        // keep the instance until evicted for being idle
+        if ( getState() == STATE_ACTIVE && keepIdleInstances() )
+        {
+            idleContexts.put( bundle, serviceContext );
+            serviceUsed();
+            return;
+        }
+
+        disposeInstance( serviceContext, ComponentConstants.DEACTIVATION_REASON_DISPOSED );
+    }
+
+
+    private void disposeInstance( final BundleComponentContext serviceContext, final int reason )
+    {
+        disposeImplementationObject( serviceContext.getInstance(), serviceContext, reason );
 
         // if this was the last use of the component, go back to REGISTERED state
-        synchronized ( serviceContexts )
+        if ( useCount.decrementAndGet() == 0 )
         {
-            if ( serviceContexts.isEmpty() && getState() == STATE_ACTIVE )
+            updateUseState();
+        }
+    }
+
+
+    /**
+     * Switches to the ACTIVE state if service instances are in use and back
+     * to the REGISTERED state if not. This is only called when the number of
+     * service instances in use changes from or to zero such that creating
+     * and disposing of the service instances does not require any locking.
+     */
+    private void updateUseState()
+    {
+        synchronized ( useStateLock )
+        {
+            if ( useCount.get() > 0 )
+            {
+                if ( getState() == STATE_REGISTERED )
+                {
+                    changeState( Active.getInstance() );
+                }
+            }
+            else if ( getState() == STATE_ACTIVE )
             {
                 changeState( Registered.getInstance() );
             }
@@ -0,0 +1,658 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.metadata;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * The <code>ComponentIndex</code> class reads and writes the binary component
+ * index which may be generated at build time from the XML component
+ * descriptors of a bundle.
+ * <p>
+ * The index contains the component declarations as read from the descriptors
+ * (before validation) plus the signatures of the activate, deactivate,
+ * modified, bind, updated and unbind methods as resolved against the
+ * implementation classes at build time. Using the index, the descriptors need
+ * not be parsed and the methods need not be searched for by reflection when
+ * the bundle is started.
+ * <p>
+ * The index records the value of the <code>Service-Component</code> header
+ * for which it has been generated as well as the size and CRC-32 checksum of
+ * each descriptor. The index is only used if the header of the bundle still
+ * has the same value and the descriptors found for the header still have the
+ * same contents. Property values are stored in their binary form such that
+ * they are read back without conversion.
+ */
+public class ComponentIndex
+{
+
+    /**
+     * The name of the bundle entry containing the component index.
+     */
+    public static final String INDEX_ENTRY = "OSGI-INF/scr.idx";
+
+    // marks the stream as a component index ("SCRI")
+    private static final int MAGIC = 0x53435249;
+
+    // the version of the index format
+    private static final short VERSION = 4;
+
+    // markers for the immediate attribute
+    private static final byte IMMEDIATE_UNSET = -1;
+    private static final byte IMMEDIATE_FALSE = 0;
+    private static final byte IMMEDIATE_TRUE = 1;
+
+    // markers for property values
+    private static final byte VALUE_NONE = 0;
+    private static final byte VALUE_SINGLE = 1;
+    private static final byte VALUE_MULTIPLE = 2;
+
+    private final String m_header;
+
+    // the checksums of the component descriptors by entry path (Map of String to Long)
+    private final Map m_descriptors = new TreeMap();
+
+    // the serialized component declarations (byte[])
+    private final List m_declarations = new ArrayList();
+
+    // the method signatures of the components (Map of String[])
+    private final List m_signatures = new ArrayList();
+
+
+    /**
+     * Creates an empty index to be written for a bundle whose
+     * <code>Service-Component</code> header has the given value.
+     */
+    public ComponentIndex( String header )
+    {
+        m_header = header;
+    }
+
+
+    /**
+     * Adds a component declaration to the index. The metadata must not have
+     * been validated yet because the validation replaces undeclared values
+     * with their defaults. The declaration is serialized immediately, such
+     * that the metadata may be validated after this method returns.
+     *
+     * @param metadata The component declaration as read from the descriptor
+     *
+     * @return The modifiable map of method signatures of the component to be
+     *      filled by the caller. The keys and values are as described for
+     *      {@link ComponentMetadata#setMethodSignature(String, String[])}.
+     *
+     * @throws IOException If the declaration cannot be serialized
+     */
+    public Map addComponent( ComponentMetadata metadata ) throws IOException
+    {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream( buf );
+        writeComponent( out, metadata );
+        out.flush();
+
+        final Map signatures = new TreeMap();
+        m_declarations.add( buf.toByteArray() );
+        m_signatures.add( signatures );
+        return signatures;
+    }
+
+
+    /**
+     * Records the checksum of a component descriptor read for the index.
+     *
+     * @param path The path of the descriptor entry in the bundle
+     * @param contents The contents of the descriptor, which is read up to
+     *      the end but not closed
+     *
+     * @throws IOException If the descriptor cannot be read
+     */
+    public void addDescriptor( String path, InputStream contents ) throws IOException
+    {
+        m_descriptors.put( getEntryPath( path ), new Long( checksum( contents ) ) );
+    }
+
+
+    /**
+     * Writes the index to the given stream. The stream is not closed.
+     */
+    public void write( OutputStream stream ) throws IOException
+    {
+        final DataOutputStream out = new DataOutputStream( stream );
+        out.writeInt( MAGIC );
+        out.writeShort( VERSION );
+        out.writeUTF( m_header );
+
+        out.writeInt( m_descriptors.size() );
+        for ( Iterator di = m_descriptors.entrySet().iterator(); di.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) di.next();
+            out.writeUTF( ( String ) entry.getKey() );
+            out.writeLong( ( ( Long ) entry.getValue() ).longValue() );
+        }
+
+        out.writeInt( m_declarations.size() );
+        for ( int i = 0; i < m_declarations.size(); i++ )
+        {
+            out.write( ( byte[] ) m_declarations.get( i ) );
+            writeSignatures( out, ( Map ) m_signatures.get( i ) );
+        }
+
+        out.flush();
+    }
+
+
+    /**
+     * Reads the component declarations from the index provided by the given
+     * stream. The stream is not closed.
+     *
+     * @param stream The stream providing the index
+     * @param header The current value of the <code>Service-Component</code>
+     *      header of the bundle
+     * @param descriptors The checksums as computed by
+     *      {@link #checksum(InputStream)} of the descriptors currently found
+     *      for the header indexed by their entry paths as returned by
+     *      {@link #getEntryPath(String)}
+     *
+     * @return The list of {@link ComponentMetadata} objects, which are not
+     *      validated yet, or <code>null</code> if the stream does not contain
+     *      a component index or if the index has been generated for another
+     *      value of the <code>Service-Component</code> header or other
+     *      descriptors.
+     *
+     * @throws IOException If an error occurrs reading the index
+     */
+    public static List read( InputStream stream, String header, Map descriptors ) throws IOException
+    {
+        final DataInputStream in = new DataInputStream( stream );
+        if ( in.readInt() != MAGIC || in.readShort() != VERSION )
+        {
+            return null;
+        }
+        if ( !in.readUTF().equals( header ) )
+        {
+            return null;
+        }
+
+        final Map indexed = new TreeMap();
+        for ( int count = in.readInt(); count > 0; count-- )
+        {
+            final String path = in.readUTF();
+            indexed.put( path, new Long( in.readLong() ) );
+        }
+        if ( !indexed.equals( descriptors ) )
+        {
+            return null;
+        }
+
+        final int count = in.readInt();
+        final List components = new ArrayList( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            final ComponentMetadata metadata = readComponent( in );
+            readSignatures( in, metadata );
+            components.add( metadata );
+        }
+
+        return components;
+    }
+
+
+    /**
+     * Returns the checksum of a component descriptor combining the size of
+     * the descriptor in the upper and its CRC-32 checksum in the lower 32
+     * bits.
+     *
+     * @param contents The contents of the descriptor, which is read up to
+     *      the end but not closed
+     *
+     * @throws IOException If the descriptor cannot be read
+     */
+    public static long checksum( InputStream contents ) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        final byte[] buf = new byte[4096];
+        long size = 0;
+        for ( int rd = contents.read( buf ); rd >= 0; rd = contents.read( buf ) )
+        {
+            crc.update( buf, 0, rd );
+            size += rd;
+        }
+        return ( size << 32 ) | crc.getValue();
+    }
+
+
+    /**
+     * Returns the path of a descriptor entry relative to the root of the
+     * bundle, that is without a leading slash.
+     */
+    public static String getEntryPath( String path )
+    {
+        return path.startsWith( "/" ) ? path.substring( 1 ) : path;
+    }
+
+
+    //---------- component declarations
+
+    private static void writeComponent( final DataOutputStream out, final ComponentMetadata metadata )
+        throws IOException
+    {
+        out.writeInt( metadata.getNamespaceCode() );
+        writeString( out, metadata.getName() );
+        out.writeBoolean( metadata.isEnabled() );
+        writeString( out, metadata.getFactoryIdentifier() );
+
+        final Boolean immediate = metadata.getDeclaredImmediate();
+        if ( immediate == null )
+        {
+            out.writeByte( IMMEDIATE_UNSET );
+        }
+        else
+        {
+            out.writeByte( immediate.booleanValue() ? IMMEDIATE_TRUE : IMMEDIATE_FALSE );
+        }
+
+        writeString( out, metadata.getImplementationClassName() );
+        writeString( out, metadata.getConfigurationPolicy() );
+        writeString( out, metadata.getActivate() );
+        writeString( out, metadata.getDeactivate() );
+        writeString( out, metadata.getModified() );
+
+        final List properties = metadata.getPropertyMetaData();
+        out.writeInt( properties.size() );
+        for ( Iterator pi = properties.iterator(); pi.hasNext(); )
+        {
+            writeProperty( out, ( PropertyMetadata ) pi.next() );
+        }
+
+        final ServiceMetadata service = metadata.getServiceMetadata();
+        out.writeBoolean( service != null );
+        if ( service != null )
+        {
+            out.writeBoolean( service.isServiceFactory() );
+            writeStrings( out, service.getProvides() );
+        }
+
+        final List references = metadata.getDependencies();
+        out.writeInt( references.size() );
+        for ( Iterator ri = references.iterator(); ri.hasNext(); )
+        {
+            final ReferenceMetadata ref = ( ReferenceMetadata ) ri.next();
+            writeString( out, ref.getName() );
+            writeString( out, ref.getInterface() );
+            writeString( out, ref.getCardinality() );
+            writeString( out, ref.getPolicy() );
+            writeString( out, ref.getPolicyOption() );
+            writeString( out, ref.getTarget() );
+            writeString( out, ref.getBind() );
+            writeString( out, ref.getUpdated() );
+            writeString( out, ref.getUnbind() );
+            writeString( out, ref.getSnapshot() );
+        }
+    }
+
+
+    private static ComponentMetadata readComponent( final DataInputStream in ) throws IOException
+    {
+        final ComponentMetadata metadata = new ComponentMetadata( in.readInt() );
+        metadata.setName( readString( in ) );
+        metadata.setEnabled( in.readBoolean() );
+        metadata.setFactoryIdentifier( readString( in ) );
+
+        final byte immediate = in.readByte();
+        if ( immediate != IMMEDIATE_UNSET )
+        {
+            metadata.setImmediate( immediate == IMMEDIATE_TRUE );
+        }
+
+        metadata.setImplementationClassName( readString( in ) );
+        metadata.setConfigurationPolicy( readString( in ) );
+
+        // only call the setters for declared methods, since the
+        // setters also record the method as being declared
+        final String activate = readString( in );
+        if ( activate != null )
+        {
+            metadata.setActivate( activate );
+        }
+        final String deactivate = readString( in );
+        if ( deactivate != null )
+        {
+            metadata.setDeactivate( deactivate );
+        }
+        metadata.setModified( readString( in ) );
+
+        for ( int count = in.readInt(); count > 0; count-- )
+        {
+            metadata.addProperty( readProperty( in ) );
+        }
+
+        if ( in.readBoolean() )
+        {
+            final ServiceMetadata service = new ServiceMetadata();
+            service.setServiceFactory( in.readBoolean() );
+            final String[] provides = readStrings( in );
+            for ( int i = 0; i < provides.length; i++ )
+            {
+                service.addProvide( provides[i] );
+            }
+            metadata.setService( service );
+        }
+
+        for ( int count = in.readInt(); count > 0; count-- )
+        {
+            final ReferenceMetadata ref = new ReferenceMetadata();
+            ref.setName( readString( in ) );
+            ref.setInterface( readString( in ) );
+            final String cardinality = readString( in );
+            if ( cardinality != null )
+            {
+                ref.setCardinality( cardinality );
+            }
+            final String policy = readString( in );
+            if ( policy != null )
+            {
+                ref.setPolicy( policy );
+            }
+            final String policyOption = readString( in );
+            if ( policyOption != null )
+            {
+                ref.setPolicyOption( policyOption );
+            }
+            ref.setTarget( readString( in ) );
+            ref.setBind( readString( in ) );
+            ref.setUpdated( readString( in ) );
+            ref.setUnbind( readString( in ) );
+            ref.setSnapshot( readString( in ) );
+            metadata.addDependency( ref );
+        }
+
+        return metadata;
+    }
+
+
+    //---------- properties
+
+    private static void writeProperty( final DataOutputStream out, final PropertyMetadata property )
+        throws IOException
+    {
+        writeString( out, property.getName() );
+        out.writeUTF( property.getType() );
+
+        // write the converted values in binary form since converting them
+        // back from strings does not reproduce all values, for example
+        // blank characters or strings with leading or trailing blanks
+        final Object value = property.getValue();
+        if ( value == null )
+        {
+            out.writeByte( VALUE_NONE );
+        }
+        else if ( value.getClass().isArray() )
+        {
+            out.writeByte( VALUE_MULTIPLE );
+            final int length = Array.getLength( value );
+            out.writeInt( length );
+            for ( int i = 0; i < length; i++ )
+            {
+                writeValue( out, Array.get( value, i ) );
+            }
+        }
+        else
+        {
+            out.writeByte( VALUE_SINGLE );
+            writeValue( out, value );
+        }
+    }
+
+
+    private static void writeValue( final DataOutputStream out, final Object value ) throws IOException
+    {
+        if ( value instanceof String )
+        {
+            out.writeUTF( ( String ) value );
+        }
+        else if ( value instanceof Long )
+        {
+            out.writeLong( ( ( Long ) value ).longValue() );
+        }
+        else if ( value instanceof Double )
+        {
+            out.writeDouble( ( ( Double ) value ).doubleValue() );
+        }
+        else if ( value instanceof Float )
+        {
+            out.writeFloat( ( ( Float ) value ).floatValue() );
+        }
+        else if ( value instanceof Integer )
+        {
+            out.writeInt( ( ( Integer ) value ).intValue() );
+        }
+        else if ( value instanceof Byte )
+        {
+            out.writeByte( ( ( Byte ) value ).byteValue() );
+        }
+        else if ( value instanceof Character )
+        {
+            out.writeChar( ( ( Character ) value ).charValue() );
+        }
+        else if ( value instanceof Boolean )
+        {
+            out.writeBoolean( ( ( Boolean ) value ).booleanValue() );
+        }
+        else if ( value instanceof Short )
+        {
+            out.writeShort( ( ( Short ) value ).shortValue() );
+        }
+        else
+        {
+            throw new IOException( "Unsupported property value " + value );
+        }
+    }
+
+
+    private static PropertyMetadata readProperty( final DataInputStream in ) throws IOException
+    {
+        final PropertyMetadata property = new PropertyMetadata();
+        property.setName( readString( in ) );
+        property.setType( in.readUTF() );
+
+        final byte kind = in.readByte();
+        if ( kind == VALUE_SINGLE )
+        {
+            property.setTypedValue( readValue( in, property.getType() ) );
+        }
+        else if ( kind == VALUE_MULTIPLE )
+        {
+            // 112.4.5 Except for String objects, multiple values are arrays of primitive types
+            final Object values = Array.newInstance( getValueType( property.getType() ), in.readInt() );
+            for ( int i = 0; i < Array.getLength( values ); i++ )
+            {
+                Array.set( values, i, readValue( in, property.getType() ) );
+            }
+            property.setTypedValue( values );
+        }
+
+        return property;
+    }
+
+
+    private static Object readValue( final DataInputStream in, final String type ) throws IOException
+    {
+        final Class valueType = getValueType( type );
+        if ( valueType == String.class )
+        {
+            return in.readUTF();
+        }
+        else if ( valueType == Long.TYPE )
+        {
+            return new Long( in.readLong() );
+        }
+        else if ( valueType == Double.TYPE )
+        {
+            return new Double( in.readDouble() );
+        }
+        else if ( valueType == Float.TYPE )
+        {
+            return new Float( in.readFloat() );
+        }
+        else if ( valueType == Integer.TYPE )
+        {
+            return new Integer( in.readInt() );
+        }
+        else if ( valueType == Byte.TYPE )
+        {
+            return new Byte( in.readByte() );
+        }
+        else if ( valueType == Character.TYPE )
+        {
+            return new Character( in.readChar() );
+        }
+        else if ( valueType == Boolean.TYPE )
+        {
+            return Boolean.valueOf( in.readBoolean() );
+        }
+        else
+        {
+            return new Short( in.readShort() );
+        }
+    }
+
+
+    /**
+     * Returns the type of the values of a property of the given type, which
+     * is <code>String</code> or the respective primitive type.
+     */
+    private static Class getValueType( final String type ) throws IOException
+    {
+        if ( type.equals( "String" ) )
+        {
+            return String.class;
+        }
+        else if ( type.equals( "Long" ) )
+        {
+            return Long.TYPE;
+        }
+        else if ( type.equals( "Double" ) )
+        {
+            return Double.TYPE;
+        }
+        else if ( type.equals( "Float" ) )
+        {
+            return Float.TYPE;
+        }
+        else if ( type.equals( "Integer" ) )
+        {
+            return Integer.TYPE;
+        }
+        else if ( type.equals( "Byte" ) )
+        {
+            return Byte.TYPE;
+        }
+        else if ( type.equals( "Char" ) || type.equals( "Character" ) )
+        {
+            return Character.TYPE;
+        }
+        else if ( type.equals( "Boolean" ) )
+        {
+            return Boolean.TYPE;
+        }
+        else if ( type.equals( "Short" ) )
+        {
+            return Short.TYPE;
+        }
+        throw new IOException( "Undefined property type '" + type + "'" );
+    }
+
+
+    //---------- method signatures
+
+    private static void writeSignatures( final DataOutputStream out, final Map signatures ) throws IOException
+    {
+        out.writeInt( signatures.size() );
+        for ( Iterator si = signatures.entrySet().iterator(); si.hasNext(); )
+        {
+            final Map.Entry entry = ( Map.Entry ) si.next();
+            out.writeUTF( ( String ) entry.getKey() );
+            writeStrings( out, ( String[] ) entry.getValue() );
+        }
+    }
+
+
+    private static void readSignatures( final DataInputStream in, final ComponentMetadata metadata )
+        throws IOException
+    {
+        for ( int count = in.readInt(); count > 0; count-- )
+        {
+            final String key = in.readUTF();
+            metadata.setMethodSignature( key, readStrings( in ) );
+        }
+    }
+
+
+    //---------- helpers
+
+    private static void writeString( final DataOutputStream out, final String value ) throws IOException
+    {
+        out.writeBoolean( value != null );
+        if ( value != null )
+        {
+            out.writeUTF( value );
+        }
+    }
+
+
+    private static String readString( final DataInputStream in ) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+
+    private static void writeStrings( final DataOutputStream out, final String[] values ) throws IOException
+    {
+        out.writeInt( values.length );
+        for ( int i = 0; i < values.length; i++ )
+        {
+            out.writeUTF( values[i] );
+        }
+    }
+
+
+    private static String[] readStrings( final DataInputStream in ) throws IOException
+    {
+        final String[] values = new String[in.readInt()];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            values[i] = in.readUTF();
+        }
+        return values;
+    }
+}
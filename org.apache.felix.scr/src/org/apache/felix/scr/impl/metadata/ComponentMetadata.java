@@ -19,12 +19,17 @@
 package org.apache.felix.scr.impl.metadata;
 
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -55,6 +60,18 @@ public class ComponentMetadata
     // marker value indicating duplicate service setting
     private static final ServiceMetadata SERVICE_DUPLICATE = new ServiceMetadata();
 
+    // no difference between two component declarations (see getChanges)
+    public static final int CHANGE_NONE = 0;
+
+    // the component properties declared in the descriptor differ
+    public static final int CHANGE_PROPERTIES = 1;
+
+    // the target filter of at least one dynamic reference differs
+    public static final int CHANGE_REFERENCE_TARGET = 2;
+
+    // the declarations differ in a way requiring the component to be recreated
+    public static final int CHANGE_STRUCTURE = 4;
+
     // the namespace code of the namespace declaring this component, this is
     // one of the XmlHandler.DS_VERSION_* constants
     private final int m_namespaceCode;
@@ -112,6 +129,9 @@ public class ComponentMetadata
     // Flag that is set once the component is verified (its properties cannot be changed)
     private boolean m_validated = false;
 
+    // Pre-resolved method signatures read from a component index (may be null)
+    private Map m_methodSignatures = null;
+
     static
     {
         CONFIGURATION_POLICY_VALID = new TreeSet();
@@ -339,6 +359,30 @@ public class ComponentMetadata
     }
 
 
+    /**
+     * Sets a method signature resolved ahead of time, for example by the
+     * {@link ComponentIndex} generator. The signature is an array whose first
+     * element is the name of the class declaring the method followed by the
+     * names of the parameter types.
+     *
+     * @param key The key identifying the method, for example
+     *      <code>activate</code> or <code>&lt;reference&gt;/bind</code>
+     * @param signature The method signature
+     */
+    public void setMethodSignature( String key, String[] signature )
+    {
+        if ( m_validated )
+        {
+            return;
+        }
+        if ( m_methodSignatures == null )
+        {
+            m_methodSignatures = new HashMap();
+        }
+        m_methodSignatures.put( key, signature );
+    }
+
+
     /////////////////////////////////////////// GETTERS //////////////////////////////////////
 
     /**
@@ -444,6 +488,16 @@ public class ComponentMetadata
     }
 
 
+    /**
+     * Returns the explicitly declared value of the immediate attribute or
+     * <code>null</code> if the attribute has not been declared.
+     */
+    Boolean getDeclaredImmediate()
+    {
+        return m_immediate;
+    }
+
+
     /**
      * Returns the name of the implementation class
      *
@@ -565,6 +619,18 @@ public class ComponentMetadata
     }
 
 
+    /**
+     * Returns the pre-resolved signature of the method identified by the
+     * given key or <code>null</code> if the signature is not known.
+     *
+     * @see #setMethodSignature(String, String[])
+     */
+    public String[] getMethodSignature( String key )
+    {
+        return ( m_methodSignatures == null ) ? null : ( String[] ) m_methodSignatures.get( key );
+    }
+
+
     /**
      * Returns the dependency descriptors
      *
@@ -766,6 +832,135 @@ public class ComponentMetadata
     }
 
 
+    /**
+     * Returns a bit mask of <code>CHANGE_*</code> flags describing the
+     * differences between this component declaration and the given
+     * <code>other</code> declaration of the same component. Both declarations
+     * are expected to have been validated.
+     * <p>
+     * {@link #CHANGE_STRUCTURE} is set if anything but the component
+     * properties or the target filter of a dynamic reference differs, for
+     * example the implementation class, the life cycle methods, the provided
+     * services or any static reference. In this case the other flags are
+     * meaningless and the component has to be recreated from the new
+     * declaration.
+     *
+     * @param other The new declaration of this component
+     * @return A combination of the <code>CHANGE_*</code> flags or
+     *      {@link #CHANGE_NONE} if the declarations are equivalent.
+     */
+    public int getChanges( final ComponentMetadata other )
+    {
+        if ( m_namespaceCode != other.m_namespaceCode || !equals( getName(), other.getName() )
+            || m_enabled != other.m_enabled || !equals( m_factory, other.m_factory )
+            || isImmediate() != other.isImmediate()
+            || !equals( m_implementationClassName, other.m_implementationClassName )
+            || !equals( m_activate, other.m_activate ) || m_activateDeclared != other.m_activateDeclared
+            || !equals( m_deactivate, other.m_deactivate ) || m_deactivateDeclared != other.m_deactivateDeclared
+            || !equals( m_modified, other.m_modified )
+            || !equals( m_configurationPolicy, other.m_configurationPolicy )
+            || !isServiceEqual( m_service, other.m_service ) || m_references.size() != other.m_references.size() )
+        {
+            return CHANGE_STRUCTURE;
+        }
+
+        int changes = CHANGE_NONE;
+
+        // references are matched by position, a reordering changes the
+        // bind order and thus is a structural change
+        for ( int i = 0; i < m_references.size(); i++ )
+        {
+            final ReferenceMetadata ref = ( ReferenceMetadata ) m_references.get( i );
+            final ReferenceMetadata otherRef = ( ReferenceMetadata ) other.m_references.get( i );
+            if ( !ref.isBindingEqual( otherRef ) )
+            {
+                return CHANGE_STRUCTURE;
+            }
+            else if ( !equals( ref.getTarget(), otherRef.getTarget() ) )
+            {
+                // static references are only ever bound on activation
+                if ( ref.isStatic() )
+                {
+                    return CHANGE_STRUCTURE;
+                }
+                changes |= CHANGE_REFERENCE_TARGET;
+            }
+        }
+
+        if ( !isPropertiesEqual( m_properties, other.m_properties ) )
+        {
+            changes |= CHANGE_PROPERTIES;
+        }
+
+        return changes;
+    }
+
+
+    private static boolean isServiceEqual( final ServiceMetadata service, final ServiceMetadata other )
+    {
+        if ( service == null || other == null )
+        {
+            return service == other;
+        }
+
+        return service.isServiceFactory() == other.isServiceFactory()
+            && Arrays.equals( service.getProvides(), other.getProvides() );
+    }
+
+
+    private static boolean isPropertiesEqual( final Dictionary props, final Dictionary other )
+    {
+        if ( props.size() != other.size() )
+        {
+            return false;
+        }
+
+        for ( Enumeration ke = props.keys(); ke.hasMoreElements(); )
+        {
+            final Object key = ke.nextElement();
+            final Object value = props.get( key );
+            final Object otherValue = other.get( key );
+
+            // array valued properties are compared element by element
+            if ( value instanceof Object[] && otherValue instanceof Object[] )
+            {
+                if ( !Arrays.equals( ( Object[] ) value, ( Object[] ) otherValue ) )
+                {
+                    return false;
+                }
+            }
+            else if ( value != null && value.getClass().isArray() && otherValue != null
+                && value.getClass() == otherValue.getClass() )
+            {
+                final int len = Array.getLength( value );
+                if ( len != Array.getLength( otherValue ) )
+                {
+                    return false;
+                }
+                for ( int i = 0; i < len; i++ )
+                {
+                    if ( !equals( Array.get( value, i ), Array.get( otherValue, i ) ) )
+                    {
+                        return false;
+                    }
+                }
+            }
+            else if ( !equals( value, otherValue ) )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    static boolean equals( final Object o1, final Object o2 )
+    {
+        return ( o1 == null ) ? o2 == null : o1.equals( o2 );
+    }
+
+
     /**
      * Returns a <code>ComponentException</code> for this compeonent with the
      * given explanation for failure.
@@ -163,6 +163,21 @@ public class PropertyMetadata {
         }
     }
 
+    /**
+     * Sets the value already converted to the property type, which is a
+     * boxed value or, for multiple values, an array of the primitive type or
+     * a <code>String[]</code>. Used when reading the {@link ComponentIndex}.
+     *
+     * @param value
+     */
+    void setTypedValue(Object value) {
+        if (m_validated == true) {
+            return;
+        }
+
+        m_value = value;
+    }
+
     /**
      * Get the name of the property
      *
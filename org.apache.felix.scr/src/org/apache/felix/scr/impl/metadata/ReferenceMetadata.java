@@ -21,7 +21,10 @@ package org.apache.felix.scr.impl.metadata;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.apache.felix.scr.impl.helper.FilterCache;
 import org.apache.felix.scr.impl.helper.Logger;
+import org.osgi.framework.Filter;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.service.log.LogService;
 
 /**
@@ -54,6 +57,15 @@ public class ReferenceMetadata
     // set of valid policy settings
     private static final Set POLICY_VALID;
 
+    // constant for reluctant policy option
+    public static final String POLICY_OPTION_RELUCTANT = "reluctant";
+
+    // constant for greedy policy option
+    public static final String POLICY_OPTION_GREEDY = "greedy";
+
+    // set of valid policy option settings
+    private static final Set POLICY_OPTION_VALID;
+
     // Name for the reference (required)
     private String m_name = null;
 
@@ -66,6 +78,9 @@ public class ReferenceMetadata
     // Target (optional)
     private String m_target;
 
+    // Target compiled at validation, null if no or an invalid target
+    private Filter m_targetFilter;
+
     // Name of the bind method (optional)
     private String m_bind = null;
 
@@ -75,9 +90,15 @@ public class ReferenceMetadata
     // Name of the unbind method (optional)
     private String m_unbind = null;
 
+    // Name of the field or method receiving the bound services (optional, since DS 1.1-felix)
+    private String m_snapshot = null;
+
     // Policy attribute (optional, default = static)
     private String m_policy = null;
 
+    // Policy option attribute (optional, default = reluctant, since DS 1.1-felix)
+    private String m_policyOption = null;
+
     // Flag that is set once the component is verified (its properties cannot be changed)
     private boolean m_validated = false;
 
@@ -97,6 +118,10 @@ public class ReferenceMetadata
         POLICY_VALID = new TreeSet();
         POLICY_VALID.add( POLICY_DYNAMIC );
         POLICY_VALID.add( POLICY_STATIC );
+
+        POLICY_OPTION_VALID = new TreeSet();
+        POLICY_OPTION_VALID.add( POLICY_OPTION_RELUCTANT );
+        POLICY_OPTION_VALID.add( POLICY_OPTION_GREEDY );
     }
 
 
@@ -174,6 +199,22 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Setter for the policy option attribute
+     *
+     * @param policyOption
+     */
+    public void setPolicyOption( String policyOption )
+    {
+        if ( m_validated )
+        {
+            return;
+        }
+
+        m_policyOption = policyOption;
+    }
+
+
     /**
      * Setter for the target attribute (filter)
      *
@@ -222,6 +263,22 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Setter for the snapshot attribute
+     *
+     * @param snapshot
+     */
+    public void setSnapshot( String snapshot )
+    {
+        if ( m_validated )
+        {
+            return;
+        }
+
+        m_snapshot = snapshot;
+    }
+
+
     /**
      * Setter for the unbind method attribute
      *
@@ -284,6 +341,17 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Get the policy option as a string
+     *
+     * @return A string with the policy option
+    **/
+    public String getPolicyOption()
+    {
+        return m_policyOption;
+    }
+
+
     /**
      * Returns the filter expression that further constrains the set of target services
      *
@@ -295,6 +363,20 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Returns the compiled {@link #getTarget() target} filter or
+     * <code>null</code> if the reference declares no target or the target
+     * is not a valid filter. The filter is compiled once when this metadata
+     * is validated.
+     *
+     * @return the compiled target filter
+     */
+    public Filter getTargetFilter()
+    {
+        return m_targetFilter;
+    }
+
+
     /**
      * Get the name of a method in the component implementation class that is used to notify that
      * a service is bound to the component configuration
@@ -319,6 +401,18 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Get the name of a field or method in the component implementation class receiving an
+     * array of all bound services ordered by service ranking whenever the bound services change
+     *
+     * @return a String with the name of the field or method
+     **/
+    public String getSnapshot()
+    {
+        return m_snapshot;
+    }
+
+
     /**
      * Get the name of a method in the component implementation class that is used to notify that
      * a service is unbound from the component configuration
@@ -366,6 +460,19 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Test if the dependency's policy option is greedy, that is whether
+     * better matching services registered later replace the bound service
+     * for unary references or are bound for static multiple references.
+     *
+     * @return true if greedy
+     */
+    public boolean isGreedy()
+    {
+        return POLICY_OPTION_GREEDY.equals( m_policyOption );
+    }
+
+
     /**
      * Returns the name of the component property referring to the {@link #getTarget() target}
      * property of this reference.
@@ -379,6 +486,25 @@ public class ReferenceMetadata
     }
 
 
+    /**
+     * Returns <code>true</code> if the given reference declares the same
+     * service binding as this reference. This compares all attributes
+     * except for the target filter.
+     */
+    boolean isBindingEqual( final ReferenceMetadata other )
+    {
+        return ComponentMetadata.equals( m_name, other.m_name )
+            && ComponentMetadata.equals( m_interface, other.m_interface )
+            && ComponentMetadata.equals( m_cardinality, other.m_cardinality )
+            && ComponentMetadata.equals( m_policy, other.m_policy )
+            && ComponentMetadata.equals( m_policyOption, other.m_policyOption )
+            && ComponentMetadata.equals( m_bind, other.m_bind )
+            && ComponentMetadata.equals( m_updated, other.m_updated )
+            && ComponentMetadata.equals( m_unbind, other.m_unbind )
+            && ComponentMetadata.equals( m_snapshot, other.m_snapshot );
+    }
+
+
     /**
      *  Method used to verify if the semantics of this metadata are correct
      *
@@ -419,6 +545,23 @@ public class ReferenceMetadata
             throw componentMetadata.validationFailure( "Policy must be one of " + POLICY_VALID );
         }
 
+        // policy option is only supported in namespace xxx and later
+        if ( m_policyOption != null && !componentMetadata.isDS11Felix() )
+        {
+            logger.log( LogService.LOG_WARNING,
+                "Ignoring policy-option definition, DS 1.1-felix or later namespace required", componentMetadata,
+                null );
+            m_policyOption = null;
+        }
+        else if ( m_policyOption == null )
+        {
+            setPolicyOption( POLICY_OPTION_RELUCTANT );
+        }
+        else if ( !POLICY_OPTION_VALID.contains( m_policyOption ) )
+        {
+            throw componentMetadata.validationFailure( "Policy option must be one of " + POLICY_OPTION_VALID );
+        }
+
         // updated method is only supported in namespace xxx and later
         if ( m_updated != null && !componentMetadata.isDS11Felix() )
         {
@@ -428,6 +571,35 @@ public class ReferenceMetadata
                     null );
             m_updated = null;
         }
+
+        // snapshot injection is only supported in namespace xxx and later
+        if ( m_snapshot != null && !componentMetadata.isDS11Felix() )
+        {
+            logger.log( LogService.LOG_WARNING,
+                "Ignoring snapshot definition, DS 1.1-felix or later namespace required", componentMetadata, null );
+            m_snapshot = null;
+        }
+        else if ( m_snapshot != null && !m_isMultiple )
+        {
+            logger.log( LogService.LOG_WARNING,
+                "Ignoring snapshot definition, only supported for references of multiple cardinality",
+                componentMetadata, null );
+            m_snapshot = null;
+        }
+
+        // precompile the target filter once for all component instances
+        if ( m_target != null )
+        {
+            try
+            {
+                m_targetFilter = FilterCache.getFilter( m_target );
+            }
+            catch ( InvalidSyntaxException ise )
+            {
+                logger.log( LogService.LOG_WARNING, "Invalid target filter ''{0}'' for reference {1}", new Object[]
+                    { m_target, m_name }, componentMetadata, ise );
+            }
+        }
     }
 
 }
\ No newline at end of file
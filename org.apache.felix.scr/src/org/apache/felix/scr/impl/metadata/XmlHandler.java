@@ -310,11 +310,17 @@ public class XmlHandler implements KXml2SAXHandler
                         ref.setPolicy( attrib.getProperty( "policy" ) );
                     }
 
+                    if ( attrib.getProperty( "policy-option" ) != null )
+                    {
+                        ref.setPolicyOption( attrib.getProperty( "policy-option" ) );
+                    }
+
                     //if
                     ref.setTarget( attrib.getProperty( "target" ) );
                     ref.setBind( attrib.getProperty( "bind" ) );
                     ref.setUpdated( attrib.getProperty( "updated" ) );
                     ref.setUnbind( attrib.getProperty( "unbind" ) );
+                    ref.setSnapshot( attrib.getProperty( "snapshot" ) );
 
                     m_currentComponent.addDependency( ref );
                 }